@@ -36,6 +36,11 @@ public class Main {
             Log.info("Loading rule file '" + file.getName() + "' (" + (++current) + " out of " + ruleFilesCount + ")");
             Log.processRuleFileEvent(file.getName(), RuleFile.STATE_IN_PROGRESS);
 
+            // drives may have been mounted or unmounted while the previous rule file was processed
+            if (current > 1) {
+                Drive.refreshDrives();
+            }
+
             // load rule file
             RuleFile ruleFile;
             try {
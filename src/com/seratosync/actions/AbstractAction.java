@@ -3,14 +3,32 @@ package com.seratosync.actions;
 import com.seratosync.config.ActionExecutionException;
 import com.seratosync.config.RuleFile;
 
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.StringTokenizer;
 
 public abstract class AbstractAction {
 
+    private static final int DEFAULT_THREADS = 4;
+
     private RuleFile ruleFile;
     private Map<String, String> parameters = new HashMap<String, String>();
 
+    /**
+     * Called for all actions of the rule file before any of them runs
+     *
+     * @throws ActionExecutionException in case of invalid action parameters
+     */
+    public void prepare() throws ActionExecutionException {
+    }
+
     public abstract void run() throws ActionExecutionException;
 
     public String getParameter(String name) {
@@ -21,6 +39,124 @@ public abstract class AbstractAction {
         parameters.put(name, value);
     }
 
+    /**
+     * Returns names of the parameters which start with the prefix, in alphabetical order
+     *
+     * @param prefix name prefix
+     * @return parameter names
+     */
+    protected List<String> getParameterNames(String prefix) {
+        List<String> result = new ArrayList<String>();
+        for (String name : parameters.keySet()) {
+            if (name.startsWith(prefix)) {
+                result.add(name);
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Returns integer parameter
+     *
+     * @param name         parameter name
+     * @param defaultValue value to use if the parameter is not specified or is not a number
+     * @param minValue     the smallest value allowed, smaller values are raised to it
+     * @return parameter value
+     */
+    protected int getIntParameter(String name, int defaultValue, int minValue) {
+        String value = getParameter(name);
+        if (value != null && !value.isEmpty()) {
+            try {
+                return Math.max(minValue, Integer.parseInt(value));
+            } catch (NumberFormatException e) {
+                // fall back to the default
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Returns the number of threads for the actions which read files in parallel ('threads' parameter)
+     *
+     * @return number of threads, at least one
+     */
+    protected int getThreads() {
+        return getIntParameter("threads", DEFAULT_THREADS, 1);
+    }
+
+    /**
+     * Returns canonical path of the folder the action works on ('folder' parameter, relative to drive base path)
+     *
+     * @return canonical path
+     * @throws ActionExecutionException if path is invalid
+     */
+    protected String getFolderPath() throws ActionExecutionException {
+        String folder = getParameter("folder");
+        if (folder == null || folder.isEmpty()) {
+            folder = "/";
+        }
+
+        String path = getRuleFile().getDriveBasePath() + folder;
+        try {
+            return new File(path).getCanonicalPath();
+        } catch (IOException e) {
+            throw new ActionExecutionException("Invalid folder path: " + path, e);
+        }
+    }
+
+    /**
+     * Returns exclude patterns ('exclude' parameter, comma separated)
+     *
+     * @return exclude patterns possibly containing wildcards
+     */
+    protected List<String> getExcludeFilter() {
+        String value = getParameter("exclude");
+        if (value == null) {
+            value = "";
+        }
+        List<String> result = new ArrayList<String>();
+        StringTokenizer items = new StringTokenizer(value, ",");
+        while (items.hasMoreTokens()) {
+            result.add(items.nextToken().trim());
+        }
+        return result;
+    }
+
+    /**
+     * Finds all crate files in 'Subcrates' and 'Crates' folders of serato base path
+     *
+     * @return crate files
+     */
+    protected List<File> findCrateFiles() {
+        List<File> crateFiles = new ArrayList<File>();
+
+        {
+            String cratesPath = getRuleFile().getSeratoBasePath() + "/Subcrates";
+            File[] foundCrates = new File(cratesPath).listFiles(new FileFilter() {
+                public boolean accept(File file) {
+                    return file.exists() && file.isFile() && file.getName().toLowerCase().endsWith(".crate");
+                }
+            });
+            if (foundCrates != null) {
+                crateFiles.addAll(Arrays.asList(foundCrates));
+            }
+        }
+
+        {
+            String cratesPath = getRuleFile().getSeratoBasePath() + "/Crates";
+            File[] foundCrates = new File(cratesPath).listFiles(new FileFilter() {
+                public boolean accept(File file) {
+                    return file.exists() && file.isFile() && file.getName().toLowerCase().endsWith(".crate");
+                }
+            });
+            if (foundCrates != null) {
+                crateFiles.addAll(Arrays.asList(foundCrates));
+            }
+        }
+        return crateFiles;
+    }
+
     public RuleFile getRuleFile() {
         return ruleFile;
     }
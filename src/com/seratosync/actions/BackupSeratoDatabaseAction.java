@@ -16,10 +16,12 @@ public class BackupSeratoDatabaseAction extends AbstractAction {
 
     private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy_MM_dd_HH_mm_ss");
 
+    static final String DEFAULT_FOLDER = "Backup";
+
     private String getBackupFolder() {
         String value = getParameter("folder");
         if (value == null || value.isEmpty()) {
-            value = "Backup";
+            value = DEFAULT_FOLDER;
         }
         return value;
     }
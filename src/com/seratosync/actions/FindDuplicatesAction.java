@@ -0,0 +1,87 @@
+package com.seratosync.actions;
+
+import com.seratosync.config.ActionExecutionException;
+import com.seratosync.db.SeratoLibrary;
+import com.seratosync.filesystem.DuplicateFinder;
+import com.seratosync.filesystem.MediaLibrary;
+import com.seratosync.filesystem.MediaLibraryCache;
+import com.seratosync.log.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Finds media files with the same content in the folder, and optionally puts all of them into a crate,
+ * so they can be reviewed in serato
+ */
+public class FindDuplicatesAction extends AbstractAction {
+
+    private static final int DEFAULT_LIMIT = 50;
+    private static final int DEFAULT_PARTIAL_KB = 16;
+
+    private String getCrate() {
+        String value = getParameter("crate");
+        return value != null && !value.isEmpty() ? value : null;
+    }
+
+    @Override
+    public void prepare() throws ActionExecutionException {
+        // the same folder is likely to be synced as well, so it's scanned only once
+        MediaLibraryCache.getInstance().plan(getFolderPath(), getExcludeFilter());
+    }
+
+    public void run() throws ActionExecutionException {
+        Log.info("* running: find duplicates");
+
+        MediaLibrary fsLibrary = MediaLibraryCache.getInstance().readFrom(getFolderPath(), getExcludeFilter());
+        List<String> tracks = fsLibrary.getAllTracks();
+
+        ExecutorService executor = Executors.newFixedThreadPool(getThreads());
+        DuplicateFinder finder = new DuplicateFinder(executor, getIntParameter("partial-kb", DEFAULT_PARTIAL_KB, 1) * 1024);
+        List<List<String>> groups;
+        try {
+            groups = finder.findDuplicates(tracks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ActionExecutionException("Finding duplicates was interrupted", e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // report duplicates
+        long wasted = 0;
+        List<String> duplicates = new ArrayList<String>();
+        for (List<String> group : groups) {
+            wasted += new File(group.get(0)).length() * (group.size() - 1);
+            duplicates.addAll(group);
+        }
+        Log.info("  * checked " + tracks.size() + " media files, read " + toMegabytes(finder.getBytesRead()) + " MB out of " + toMegabytes(finder.getBytesTotal()) + " MB");
+        Log.info("  * found " + groups.size() + " groups of duplicates with " + duplicates.size() + " files, " + toMegabytes(wasted) + " MB can be freed");
+
+        int limit = getIntParameter("limit", DEFAULT_LIMIT, 0);
+        for (int i = 0; i < groups.size() && i < limit; i++) {
+            Log.info("  * duplicates:");
+            for (String path : groups.get(i)) {
+                Log.info("      " + path);
+            }
+        }
+        if (groups.size() > limit) {
+            Log.info("  * ... and " + (groups.size() - limit) + " more groups");
+        }
+
+        // put all duplicates into the crate, replacing what was found last time
+        String crate = getCrate();
+        if (crate != null) {
+            SeratoLibrary seratoLibrary = SeratoLibrary.writeToCrate(duplicates, getRuleFile().getSeratoBasePath(), crate, true);
+            Log.info("  * crate files left intact " + seratoLibrary.getCratesIntact() + ", modified " + seratoLibrary.getCratesModified() + ", created " + seratoLibrary.getCratesCreated() + ", deleted " + seratoLibrary.getCratesDeleted());
+        }
+    }
+
+    private static long toMegabytes(long bytes) {
+        return (bytes + 512 * 1024) / (1024 * 1024);
+    }
+
+}
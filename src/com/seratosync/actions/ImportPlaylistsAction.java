@@ -0,0 +1,214 @@
+package com.seratosync.actions;
+
+import com.seratosync.config.ActionExecutionException;
+import com.seratosync.db.SeratoLibrary;
+import com.seratosync.filesystem.DirectoryListingCache;
+import com.seratosync.filesystem.Drive;
+import com.seratosync.filesystem.PlaylistReader;
+import com.seratosync.log.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Imports playlists exported by other DJ software (M3U, M3U8 and PLS) as crates. Every playlist in the folder and its
+ * sub-folders becomes a crate inside 'crate' parameter, sub-folders becoming parent crates, e.g. 'Sets/Friday.m3u'
+ * goes to 'Playlists/Sets/Friday'. Crates are replaced, unless 'replace' parameter is 'false'.
+ * <p/>
+ * Playlists are read in parallel, and their entries are checked against directory listings shared by all of them,
+ * so every folder with tracks is listed once. Crates are written once all playlists are read, playlists which end up
+ * in the same crate (e.g. 'Friday.m3u' and 'Friday.pls') are merged.
+ */
+public class ImportPlaylistsAction extends AbstractAction {
+
+    private static final String DEFAULT_CRATE = "Playlists";
+
+    /**
+     * Playlist and the tracks it refers to
+     */
+    private static class Playlist {
+        private final File file;
+        private final String crate;
+        private final List<String> tracks = new ArrayList<String>();
+        private int entries = 0;
+        private int missing = 0;
+        private int otherDrive = 0;
+        private String error;
+
+        private Playlist(File file, String crate) {
+            this.file = file;
+            this.crate = crate;
+        }
+    }
+
+    private String getCrate() {
+        String value = getParameter("crate");
+        return value != null && !value.isEmpty() ? value : DEFAULT_CRATE;
+    }
+
+    private boolean replace() {
+        return !"false".equals(getParameter("replace"));
+    }
+
+    public void run() throws ActionExecutionException {
+        Log.info("* running: import playlists");
+
+        String folderPath = getFolderPath();
+        List<Playlist> playlists = new ArrayList<Playlist>();
+        findPlaylists(new File(folderPath), getCrate(), playlists);
+        Log.info("  * found " + playlists.size() + " playlists in " + folderPath);
+
+        final DirectoryListingCache listings = new DirectoryListingCache();
+        final Drive seratoDrive = Drive.findDrive(getRuleFile().getSeratoBasePath());
+        ExecutorService executor = Executors.newFixedThreadPool(getThreads());
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        try {
+            // read all playlists
+            for (final Playlist playlist : playlists) {
+                results.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws InterruptedException {
+                        resolve(playlist, listings, seratoDrive);
+                        return null;
+                    }
+                }));
+            }
+            waitFor(results);
+            results.clear();
+
+            // merge playlists by crate, keeping the order of the tracks
+            final Map<String, Set<String>> crates = new TreeMap<String, Set<String>>();
+            int entries = 0;
+            int missing = 0;
+            int otherDrive = 0;
+            int failed = 0;
+            for (Playlist playlist : playlists) {
+                if (playlist.error != null) {
+                    Log.error("Can't read playlist " + playlist.file.getPath() + ". " + playlist.error);
+                    failed++;
+                    continue;
+                }
+                Set<String> tracks = crates.get(playlist.crate);
+                if (tracks == null) {
+                    tracks = new LinkedHashSet<String>();
+                    crates.put(playlist.crate, tracks);
+                }
+                tracks.addAll(playlist.tracks);
+                entries += playlist.entries;
+                missing += playlist.missing;
+                otherDrive += playlist.otherDrive;
+                if (playlist.missing > 0) {
+                    Log.info("  * " + playlist.file.getName() + ": " + playlist.missing + " of " + playlist.entries + " tracks not found");
+                }
+            }
+            Log.info("  * " + entries + " playlist entries, " + missing + " not found, " + otherDrive + " on another drive, "
+                    + listings.getDirectoriesListed() + " folders listed");
+
+            // tracks of folders on a drive which didn't respond are unknown, so they're not removed from crates
+            final boolean replace = replace() && listings.getDirectoriesUnavailable() == 0;
+            if (replace() && !replace) {
+                Log.error("Not removing tracks from crates, as " + listings.getDirectoriesUnavailable() + " folders couldn't be read");
+            }
+
+            // write crates, every crate is written only once
+            final String seratoBasePath = getRuleFile().getSeratoBasePath();
+            List<Future<SeratoLibrary>> writes = new ArrayList<Future<SeratoLibrary>>();
+            for (final Map.Entry<String, Set<String>> crate : crates.entrySet()) {
+                writes.add(executor.submit(new Callable<SeratoLibrary>() {
+                    public SeratoLibrary call() {
+                        return SeratoLibrary.writeToCrate(crate.getValue(), seratoBasePath, crate.getKey(), replace);
+                    }
+                }));
+            }
+            results.addAll(writes);
+
+            int intact = 0;
+            int modified = 0;
+            int created = 0;
+            int deleted = 0;
+            for (Future<SeratoLibrary> write : writes) {
+                SeratoLibrary library = write.get();
+                intact += library.getCratesIntact();
+                modified += library.getCratesModified();
+                created += library.getCratesCreated();
+                deleted += library.getCratesDeleted();
+            }
+            Log.info("  * imported " + crates.size() + " crates" + (failed > 0 ? ", " + failed + " playlists failed" : "")
+                    + ", crate files left intact " + intact + ", modified " + modified + ", created " + created + ", deleted " + deleted);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ActionExecutionException("Importing playlists was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new ActionExecutionException(e.getCause());
+        } finally {
+            for (Future<?> result : results) {
+                result.cancel(false);
+            }
+            executor.shutdown();
+        }
+    }
+
+    private static void waitFor(List<Future<?>> results) throws InterruptedException, ExecutionException {
+        for (Future<?> result : results) {
+            result.get();
+        }
+    }
+
+    /**
+     * Finds playlists in the directory and its sub-directories
+     *
+     * @param directory directory
+     * @param crate     crate for the playlists of the directory
+     * @param result    playlists, in the order of their paths
+     */
+    private static void findPlaylists(File directory, String crate, List<Playlist> result) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(".")) {
+                continue;
+            }
+            if (file.isDirectory()) {
+                findPlaylists(file, crate + "/" + name, result);
+            } else if (PlaylistReader.isPlaylist(name)) {
+                result.add(new Playlist(file, crate + "/" + name.substring(0, name.lastIndexOf('.'))));
+            }
+        }
+    }
+
+    /**
+     * Reads the playlist and finds its tracks
+     *
+     * @param playlist    playlist
+     * @param listings    directory listings
+     * @param seratoDrive drive of the serato database, crates can only refer to tracks on that drive
+     * @throws InterruptedException if interrupted
+     */
+    private static void resolve(Playlist playlist, DirectoryListingCache listings, Drive seratoDrive) throws InterruptedException {
+        List<String> entries;
+        try {
+            entries = PlaylistReader.read(playlist.file);
+        } catch (IOException e) {
+            playlist.error = e.getMessage();
+            return;
+        }
+
+        playlist.entries = entries.size();
+        for (String entry : entries) {
+            String track = listings.resolve(entry);
+            if (track == null) {
+                playlist.missing++;
+            } else if (seratoDrive != null && !seratoDrive.equals(Drive.findDrive(track))) {
+                playlist.otherDrive++;
+            } else {
+                playlist.tracks.add(track);
+            }
+        }
+    }
+
+}
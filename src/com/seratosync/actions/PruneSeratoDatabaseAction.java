@@ -3,38 +3,104 @@ package com.seratosync.actions;
 import com.seratosync.config.ActionExecutionException;
 import com.seratosync.db.SeratoLibraryException;
 import com.seratosync.filesystem.Drive;
+import com.seratosync.filesystem.DriveAccess;
+import com.seratosync.filesystem.DriveUnavailableException;
 import com.seratosync.log.Log;
+import com.seratosync.log.Trace;
 import com.seratosync.db.SeratoLibrary;
 import com.seratosync.db.files.SeratoCrateFile;
 import com.seratosync.db.files.SeratoDatabaseV2File;
 import com.seratosync.db.files.SeratoWindowOrderFile;
 
 import java.io.File;
-import java.io.FileFilter;
+import java.text.Collator;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class PruneSeratoDatabaseAction extends AbstractAction {
 
     private int deletedCrates = 0;
     private int modifiedCrates = 0;
     private int intactCrates = 0;
+    private int skippedCrates = 0;
     private int removedFiles = 0;
     private boolean reorderedCrates = false;
 
+    private static final int STATUS_INTACT = 0;
+    private static final int STATUS_MODIFIED = 1;
+    private static final int STATUS_DELETED = 2;
+    private static final int STATUS_SKIPPED = 3;
+
+    /**
+     * Outcome of cleaning up a single crate or database V2 file
+     */
+    private static class CleanupResult {
+        private final int status;
+        private final int removed;
+
+        private CleanupResult(int status, int removed) {
+            this.status = status;
+            this.removed = removed;
+        }
+    }
+
+    /**
+     * Compares crate names level by level (levels are separated with '%%'). Sort rules look like
+     * "default ascending, level 0 natural descending, level 1 collated", where every level can be sorted
+     * ascending or descending, and using plain, natural (numbers inside names are compared by value)
+     * or collated (according to the current locale) ordering.
+     */
     public static class CrateFileNameAdvancedComparator implements Comparator<String> {
-        private final Comparator<String> ASCENDING_COMPARATOR = new Comparator<String>() {
-            public int compare(String a, String b) {
-                return a.compareTo(b);
+
+        private static final int MODE_PLAIN = 0;
+        private static final int MODE_NATURAL = 1;
+        private static final int MODE_COLLATED = 2;
+
+        private static class LevelRule {
+            private final int mode;
+            private final boolean descending;
+
+            private LevelRule(int mode, boolean descending) {
+                this.mode = mode;
+                this.descending = descending;
             }
-        };
-        private final Comparator<String> DESCENDING_COMPARATOR = new Comparator<String>() {
-            public int compare(String a, String b) {
-                return b.compareTo(a);
+        }
+
+        /**
+         * Crate name split into levels, with a precomputed sort key for every level
+         */
+        private static class SortKey {
+            private final String name;
+            // strings, natural keys or collation keys, the same kind at the same level
+            private final Object[] levels;
+
+            private SortKey(String name, Object[] levels) {
+                this.name = name;
+                this.levels = levels;
+            }
+        }
+
+        private final Comparator<SortKey> SORT_KEY_COMPARATOR = new Comparator<SortKey>() {
+            public int compare(SortKey a, SortKey b) {
+                int common = Math.min(a.levels.length, b.levels.length);
+                for (int k = 0; k < common; k++) {
+                    int result = compareLevels(a.levels[k], b.levels[k]);
+                    if (result != 0) {
+                        return getRule(k).descending ? -result : result;
+                    }
+                }
+                return a.levels.length - b.levels.length;
             }
         };
 
-        private Comparator<String> defaultComparator = ASCENDING_COMPARATOR;
-        private Map<Integer, Comparator<String>> comparators = new HashMap<Integer, Comparator<String>>();
+        @SuppressWarnings({"unchecked"})
+        private static int compareLevels(Object a, Object b) {
+            return ((Comparable<Object>) a).compareTo(b);
+        }
+
+        private LevelRule defaultRule = new LevelRule(MODE_PLAIN, false);
+        private LevelRule[] rules = new LevelRule[0];
+        private Collator collator;
 
         public CrateFileNameAdvancedComparator(String input) {
             StringTokenizer items = new StringTokenizer(input, ",");
@@ -45,14 +111,17 @@ public class PruneSeratoDatabaseAction extends AbstractAction {
                     String where = t.nextToken();
                     if ("default".equals(where)) {
                         if (t.hasMoreTokens()) {
-                            defaultComparator = getComparatorByMode(t.nextToken());
+                            defaultRule = getRuleByModes(t);
                         }
                     } else if ("level".equals(where)) {
                         if (t.hasMoreTokens()) {
                             try {
                                 int level = Integer.parseInt(t.nextToken());
-                                if (t.hasMoreTokens()) {
-                                    comparators.put(level, getComparatorByMode(t.nextToken()));
+                                if (level >= 0 && t.hasMoreTokens()) {
+                                    if (level >= rules.length) {
+                                        rules = Arrays.copyOf(rules, level + 1);
+                                    }
+                                    rules[level] = getRuleByModes(t);
                                 }
                             } catch (NumberFormatException e) {
                                 // do nothing
@@ -63,30 +132,162 @@ public class PruneSeratoDatabaseAction extends AbstractAction {
             }
         }
 
-        private Comparator<String> getComparatorByMode(String mode) {
-            return "ascending".equals(mode) ? ASCENDING_COMPARATOR : DESCENDING_COMPARATOR;
+        private LevelRule getRuleByModes(StringTokenizer t) {
+            int mode = MODE_PLAIN;
+            String direction = "ascending";
+            while (t.hasMoreTokens()) {
+                String token = t.nextToken();
+                if ("natural".equals(token)) {
+                    mode = MODE_NATURAL;
+                } else if ("collated".equals(token)) {
+                    mode = MODE_COLLATED;
+                } else {
+                    direction = token;
+                }
+            }
+            if (mode == MODE_COLLATED && collator == null) {
+                collator = Collator.getInstance();
+            }
+            return new LevelRule(mode, !"ascending".equals(direction));
         }
 
-        public Comparator<String> getComparator(int level) {
-            Comparator<String> result = comparators.get(level);
+        private LevelRule getRule(int level) {
+            LevelRule result = level < rules.length ? rules[level] : null;
             if (result == null) {
-                result = defaultComparator;
+                result = defaultRule;
             }
             return result;
         }
 
+        /**
+         * Splits crate name into levels, the same way as split("%%") does, and computes sort keys for them
+         *
+         * @param name crate name
+         * @return sort key
+         */
+        private SortKey getSortKey(String name) {
+            List<String> levels = new ArrayList<String>();
+            int start = 0;
+            for (int end; (end = name.indexOf("%%", start)) >= 0; start = end + 2) {
+                levels.add(name.substring(start, end));
+            }
+            levels.add(name.substring(start));
+
+            // trailing empty levels are dropped, unless the name itself is empty
+            int count = levels.size();
+            while (count > 0 && levels.get(count - 1).isEmpty() && !name.isEmpty()) {
+                count--;
+            }
+
+            Object[] keys = new Object[count];
+            for (int k = 0; k < count; k++) {
+                String level = levels.get(k);
+                switch (getRule(k).mode) {
+                    case MODE_NATURAL:
+                        keys[k] = new NaturalKey(level);
+                        break;
+                    case MODE_COLLATED:
+                        keys[k] = collator.getCollationKey(level);
+                        break;
+                    default:
+                        keys[k] = level;
+                }
+            }
+            return new SortKey(name, keys);
+        }
+
+        /**
+         * Sorts crate names, computing sort keys only once per name
+         *
+         * @param names crate names to sort
+         */
+        public void sort(List<String> names) {
+            SortKey[] keys = new SortKey[names.size()];
+            int i = 0;
+            for (String name : names) {
+                keys[i++] = getSortKey(name);
+            }
+
+            Arrays.sort(keys, SORT_KEY_COMPARATOR);
+
+            ListIterator<String> it = names.listIterator();
+            for (SortKey key : keys) {
+                it.next();
+                it.set(key.name);
+            }
+        }
+
         public int compare(String a, String b) {
-            String[] aa = a.split("%%");
-            String[] bb = b.split("%%");
+            return SORT_KEY_COMPARATOR.compare(getSortKey(a), getSortKey(b));
+        }
+
+    }
+
+    /**
+     * Sort key for natural ordering, where runs of digits are compared by their numeric value ("Set 2" < "Set 10")
+     */
+    private static class NaturalKey implements Comparable<NaturalKey> {
+
+        private final String value;
+        private final String[] chunks;
+
+        private NaturalKey(String value) {
+            this.value = value;
+
+            List<String> result = new ArrayList<String>();
+            int start = 0;
+            for (int i = 1; i <= value.length(); i++) {
+                if (i == value.length() || Character.isDigit(value.charAt(i)) != Character.isDigit(value.charAt(start))) {
+                    result.add(value.substring(start, i));
+                    start = i;
+                }
+            }
+            this.chunks = result.toArray(new String[result.size()]);
+        }
+
+        private static boolean isNumber(String chunk) {
+            return Character.isDigit(chunk.charAt(0));
+        }
+
+        private static int compareNumbers(String a, String b) {
+            // skip leading zeros, then the longer number is the bigger one
+            int za = 0;
+            while (za < a.length() - 1 && a.charAt(za) == '0') {
+                za++;
+            }
+            int zb = 0;
+            while (zb < b.length() - 1 && b.charAt(zb) == '0') {
+                zb++;
+            }
+            int result = (a.length() - za) - (b.length() - zb);
+            if (result != 0) {
+                return result;
+            }
+            for (int i = za, j = zb; i < a.length(); i++, j++) {
+                result = Character.digit(a.charAt(i), 10) - Character.digit(b.charAt(j), 10);
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return 0;
+        }
 
-            int common = Math.min(aa.length, bb.length);
+        public int compareTo(NaturalKey that) {
+            int common = Math.min(this.chunks.length, that.chunks.length);
             for (int k = 0; k < common; k++) {
-                int result = getComparator(k).compare(aa[k], bb[k]);
+                String a = this.chunks[k];
+                String b = that.chunks[k];
+                int result = isNumber(a) && isNumber(b) ? compareNumbers(a, b) : a.compareTo(b);
                 if (result != 0) {
                     return result;
                 }
             }
-            return aa.length - bb.length;
+            if (this.chunks.length != that.chunks.length) {
+                return this.chunks.length - that.chunks.length;
+            }
+
+            // equal by value ("01" and "1"), fall back to plain ordering to keep it consistent
+            return this.value.compareTo(that.value);
         }
 
     }
@@ -107,7 +308,6 @@ public class PruneSeratoDatabaseAction extends AbstractAction {
         return !"false".equals(value) ? new CrateFileNameAdvancedComparator(value) : null;
     }
 
-    @SuppressWarnings({"ResultOfMethodCallIgnored"})
     public void run() throws ActionExecutionException {
         Log.info("* running: serato db pruning");
 
@@ -117,22 +317,88 @@ public class PruneSeratoDatabaseAction extends AbstractAction {
         // retrieve the list of crates files from the filesystem
         List<File> crateFiles = findCrateFiles();
 
-        // cleanup each and every crate (delete missing files, delete empty crates)
-        cleanupCrates(drive, crateFiles);
+        // cleanup database V2 file and each and every crate (delete missing files, delete empty crates) in parallel
+        ExecutorService executor = Executors.newFixedThreadPool(getThreads());
+        List<Future<CleanupResult>> results = new ArrayList<Future<CleanupResult>>();
+        try {
+            // tracks are usually shared between crates and database V2, so every track is checked only once
+            ConcurrentMap<String, Boolean> checkedTracks = new ConcurrentHashMap<String, Boolean>();
 
-        // cleanup database V2 file
-        cleanupDbV2(drive);
+            // database V2 is the largest file, so it goes first
+            if (removeMissingTracks()) {
+                results.add(executor.submit(new DbV2CleanupTask(drive, checkedTracks)));
+            }
+            for (File crateFile : crateFiles) {
+                results.add(executor.submit(new CrateCleanupTask(drive, checkedTracks, crateFile)));
+            }
+
+            // aggregate results in the same order, no matter which task has finished first
+            for (Future<CleanupResult> result : results) {
+                aggregate(getResult(result));
+            }
+        } finally {
+            // don't start anything new if one of the tasks failed, but let running ones finish writing
+            for (Future<CleanupResult> result : results) {
+                result.cancel(false);
+            }
+            executor.shutdown();
+            awaitTermination(executor);
+        }
 
         // modify crate order file
         modifyCrateOrder(crateFiles);
 
         Log.info("  * crate files left intact " + intactCrates + ", modified " + modifiedCrates + ", deleted " + deletedCrates);
         Log.info("  * removed missing file entries " + removedFiles);
+        if (skippedCrates > 0) {
+            Log.error("  * files skipped as the drive didn't respond " + skippedCrates + ", nothing was removed from them");
+        }
         if (reorderedCrates) {
             Log.info("  * reordered crates");
         }
     }
 
+    private void aggregate(CleanupResult result) {
+        switch (result.status) {
+            case STATUS_MODIFIED:
+                modifiedCrates++;
+                removedFiles += result.removed;
+                break;
+            case STATUS_DELETED:
+                deletedCrates++;
+                break;
+            case STATUS_SKIPPED:
+                skippedCrates++;
+                break;
+            default:
+                intactCrates++;
+        }
+    }
+
+    private CleanupResult getResult(Future<CleanupResult> result) throws ActionExecutionException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ActionExecutionException("Serato db pruning was interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ActionExecutionException) {
+                throw (ActionExecutionException) e.getCause();
+            }
+            throw new ActionExecutionException(e.getCause());
+        }
+    }
+
+    private void awaitTermination(ExecutorService executor) {
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                // wait until all files are written
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private void modifyCrateOrder(List<File> crateFiles) throws ActionExecutionException {
         CrateFileNameAdvancedComparator crateFileNameAdvancedComparator = getCrateSortRules();
 
@@ -158,6 +424,11 @@ public class PruneSeratoDatabaseAction extends AbstractAction {
         }
 
         crateOrder.reorder(crateFileNameAdvancedComparator);
+
+        // don't touch the file if the order is the same
+        if (!crateOrder.isModified()) {
+            return;
+        }
         reorderedCrates = true;
 
         try {
@@ -167,41 +438,75 @@ public class PruneSeratoDatabaseAction extends AbstractAction {
         }
     }
 
-    private void cleanupDbV2(Drive drive) throws ActionExecutionException {
+    /**
+     * Cleans up database V2 file
+     */
+    private class DbV2CleanupTask implements Callable<CleanupResult> {
 
-        // well, should we be removing empty tracks? if not - just return
-        if (!removeMissingTracks()) {
-            return;
-        }
+        private final Drive drive;
+        private final ConcurrentMap<String, Boolean> checkedTracks;
 
-        // remove missing tracks from 'database V2' file
-        File dbV2File;
-        SeratoDatabaseV2File dbV2;
-        try {
-            dbV2File = new File(getRuleFile().getSeratoBasePath() + "/database V2");
-            dbV2 = new SeratoDatabaseV2File();
-            dbV2.loadFrom(dbV2File);
-        } catch (SeratoLibraryException e) {
-            throw new ActionExecutionException("Failed to read serato database V2 file", e);
+        private DbV2CleanupTask(Drive drive, ConcurrentMap<String, Boolean> checkedTracks) {
+            this.drive = drive;
+            this.checkedTracks = checkedTracks;
         }
 
-        int removed = dbV2.getEntries().removeMissingTracks(drive);
-        if (removed > 0) {
+        public CleanupResult call() throws ActionExecutionException {
+            // remove missing tracks from 'database V2' file
+            File dbV2File;
+            SeratoDatabaseV2File dbV2;
             try {
-                dbV2.saveTo(dbV2File);
-                modifiedCrates++;
-                removedFiles += removed;
+                dbV2File = new File(getRuleFile().getSeratoBasePath() + "/database V2");
+                dbV2 = new SeratoDatabaseV2File();
+                dbV2.loadFrom(dbV2File);
             } catch (SeratoLibraryException e) {
-                throw new ActionExecutionException("Failed to write modified database V2 file", e);
+                throw new ActionExecutionException("Failed to read serato database V2 file", e);
+            }
+
+            Trace.Event event = Trace.begin(Trace.EXISTENCE_CHECK, dbV2File.getPath());
+            int removed = 0;
+            try {
+                removed = dbV2.getEntries().removeMissingTracks(drive, checkedTracks);
+            } catch (DriveUnavailableException e) {
+                return new CleanupResult(STATUS_SKIPPED, 0);
+            } finally {
+                event.count(removed).end();
+            }
+
+            // nothing is deleted once the drive stopped responding
+            if (DriveAccess.forDrive(drive).isTripped()) {
+                return new CleanupResult(STATUS_SKIPPED, 0);
+            }
+            if (removed > 0) {
+                try {
+                    dbV2.saveTo(dbV2File);
+                    return new CleanupResult(STATUS_MODIFIED, removed);
+                } catch (SeratoLibraryException e) {
+                    throw new ActionExecutionException("Failed to write modified database V2 file", e);
+                }
             }
-        } else {
-            intactCrates++;
+            return new CleanupResult(STATUS_INTACT, 0);
         }
+
     }
 
-    @SuppressWarnings({"ResultOfMethodCallIgnored"})
-    private void cleanupCrates(Drive drive, List<File> crateFiles) throws ActionExecutionException {
-        for (File crateFile : crateFiles) {
+    /**
+     * Cleans up a single crate (deletes missing files, deletes the crate if it's empty)
+     */
+    private class CrateCleanupTask implements Callable<CleanupResult> {
+
+        private final Drive drive;
+        private final ConcurrentMap<String, Boolean> checkedTracks;
+        private final File crateFile;
+
+        private CrateCleanupTask(Drive drive, ConcurrentMap<String, Boolean> checkedTracks, File crateFile) {
+            this.drive = drive;
+            this.checkedTracks = checkedTracks;
+            this.crateFile = crateFile;
+        }
+
+        @SuppressWarnings({"ResultOfMethodCallIgnored"})
+        public CleanupResult call() throws ActionExecutionException {
             SeratoCrateFile crate = new SeratoCrateFile();
             try {
                 crate.loadFrom(crateFile);
@@ -209,58 +514,39 @@ public class PruneSeratoDatabaseAction extends AbstractAction {
                 throw new ActionExecutionException("Failed to read crate '" + crateFile.getName() + "'", e);
             }
 
-
             // should we remove missing tracks? if so - let's go ahead and remove them
             int removed = 0;
             if (removeMissingTracks()) {
-                removed = crate.getEntries().removeMissingTracks(drive);
+                Trace.Event event = Trace.begin(Trace.EXISTENCE_CHECK, crateFile.getPath());
+                try {
+                    removed = crate.getEntries().removeMissingTracks(drive, checkedTracks);
+                } catch (DriveUnavailableException e) {
+                    return new CleanupResult(STATUS_SKIPPED, 0);
+                } finally {
+                    event.count(removed).end();
+                }
+            }
+
+            // nothing is deleted once the drive stopped responding
+            if (DriveAccess.forDrive(drive).isTripped()) {
+                return new CleanupResult(STATUS_SKIPPED, 0);
             }
 
             // delete crates only if we need to do so
             if (removeEmptyCrates() && !crate.getEntries().hasTracks()) {
                 crateFile.delete();
-                deletedCrates++;
+                return new CleanupResult(STATUS_DELETED, removed);
             } else if (removed > 0) {
                 try {
                     crate.saveTo(crateFile);
-                    modifiedCrates++;
-                    removedFiles += removed;
+                    return new CleanupResult(STATUS_MODIFIED, removed);
                 } catch (SeratoLibraryException e) {
                     throw new ActionExecutionException("Failed to write modified crate '" + crateFile.getName() + "'", e);
                 }
-            } else {
-                intactCrates++;
             }
+            return new CleanupResult(STATUS_INTACT, 0);
         }
-    }
-
-    private List<File> findCrateFiles() {
-        List<File> crateFiles = new ArrayList<File>();
 
-        {
-            String cratesPath = getRuleFile().getSeratoBasePath() + "/Subcrates";
-            File[] foundCrates = new File(cratesPath).listFiles(new FileFilter() {
-                public boolean accept(File file) {
-                    return file.exists() && file.isFile() && file.getName().toLowerCase().endsWith(".crate");
-                }
-            });
-            if (foundCrates != null) {
-                crateFiles.addAll(Arrays.asList(foundCrates));
-            }
-        }
-
-        {
-            String cratesPath = getRuleFile().getSeratoBasePath() + "/Crates";
-            File[] foundCrates = new File(cratesPath).listFiles(new FileFilter() {
-                public boolean accept(File file) {
-                    return file.exists() && file.isFile() && file.getName().toLowerCase().endsWith(".crate");
-                }
-            });
-            if (foundCrates != null) {
-                crateFiles.addAll(Arrays.asList(foundCrates));
-            }
-        }
-        return crateFiles;
     }
 
 }
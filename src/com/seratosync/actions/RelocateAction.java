@@ -0,0 +1,339 @@
+package com.seratosync.actions;
+
+import com.seratosync.config.ActionExecutionException;
+import com.seratosync.db.SeratoLibraryException;
+import com.seratosync.db.files.SeratoCrateFile;
+import com.seratosync.db.files.SeratoDatabaseV2File;
+import com.seratosync.filesystem.*;
+import com.seratosync.log.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Finds tracks which were moved to another folder, and points their entries in database V2 and all crates
+ * to the new location, so serato keeps all it knows about them. It has to run before 'sync' and 'prune-serato-db',
+ * as those would add moved tracks as new ones and remove the old ones.
+ * <p/>
+ * Tracks are matched by file name, size and partial hash. As a moved file can't be hashed at its old location,
+ * fingerprints of all tracks are remembered on every run. Tracks which were moved before they had a fingerprint
+ * can only be matched by file name ('match-by-name: true'), if it's unique among both moved and new files. That is
+ * off by default, as a different file which happens to have the same name would take the place of the track.
+ */
+public class RelocateAction extends AbstractAction {
+
+    private static final int DEFAULT_PARTIAL_KB = 4;
+
+    // how many files are fingerprinted by a single task
+    private static final int FINGERPRINT_BATCH = 256;
+
+    private boolean matchByName() {
+        return "true".equals(getParameter("match-by-name"));
+    }
+
+    @Override
+    public void prepare() throws ActionExecutionException {
+        // the same folder is likely to be synced as well, so it's scanned only once
+        MediaLibraryCache.getInstance().plan(getFolderPath(), getExcludeFilter());
+    }
+
+    public void run() throws ActionExecutionException {
+        Log.info("* running: relocate moved files");
+
+        String seratoBasePath = getRuleFile().getSeratoBasePath();
+        Drive drive = Drive.getDrive(seratoBasePath);
+
+        // database V2 and crates only refer to the tracks located on the same drive by relative paths, so files
+        // from another drive would be taken for the moved tracks at paths which don't exist
+        if (!Drive.onSameDrive(getFolderPath(), seratoBasePath)) {
+            Log.error("Not relocating tracks, as folder " + getFolderPath() + " is located on another drive than serato database");
+            return;
+        }
+
+        // files which are there now, by serato path
+        MediaLibrary fsLibrary = MediaLibraryCache.getInstance().readFrom(getFolderPath(), getExcludeFilter());
+        Map<String, String> scanned = new HashMap<String, String>();
+        for (String track : fsLibrary.getAllTracks()) {
+            scanned.put(FileDirectoryUtils.convertFromFileToSeratoFile(track), track);
+        }
+
+        // tracks serato knows about
+        File dbV2File = new File(seratoBasePath + "/database V2");
+        SeratoDatabaseV2File dbV2 = new SeratoDatabaseV2File();
+        try {
+            dbV2.loadFrom(dbV2File);
+        } catch (SeratoLibraryException e) {
+            throw new ActionExecutionException("Failed to read serato database V2 file", e);
+        }
+        Set<String> dbTracks = new HashSet<String>(dbV2.getEntries().getTracks());
+
+        FileFingerprints fingerprints = new FileFingerprints(seratoBasePath);
+        try {
+            fingerprints.load();
+        } catch (IOException e) {
+            Log.error("Can't load fingerprints, all files will be hashed again. " + e.getMessage());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(getThreads());
+        try {
+            updateFingerprints(scanned, fingerprints, executor);
+
+            // tracks which are not where serato expects them, and files serato doesn't know about
+            List<String> vanished = new ArrayList<String>();
+            DriveAccess access = DriveAccess.forDrive(drive);
+            for (String track : dbTracks) {
+                if (!scanned.containsKey(track) && isVanished(access, drive.getPrefix() + track)) {
+                    vanished.add(track);
+                }
+            }
+            Collections.sort(vanished);
+            List<String> appeared = new ArrayList<String>();
+            for (String track : scanned.keySet()) {
+                if (!dbTracks.contains(track)) {
+                    appeared.add(track);
+                }
+            }
+            Collections.sort(appeared);
+
+            Map<String, String> moves = match(vanished, appeared, fingerprints);
+            Log.info("  * missing tracks " + vanished.size() + ", new files " + appeared.size() + ", moved tracks found " + moves.size());
+
+            if (!moves.isEmpty()) {
+                relocate(dbV2, dbV2File, moves, executor);
+                for (Map.Entry<String, String> move : moves.entrySet()) {
+                    dbTracks.remove(move.getKey());
+                    dbTracks.add(move.getValue());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // remember fingerprints of the files which are there, and of the tracks which might come back
+        Set<String> known = new HashSet<String>(scanned.keySet());
+        known.addAll(dbTracks);
+        fingerprints.retain(known);
+        try {
+            fingerprints.save();
+        } catch (IOException e) {
+            Log.error("Can't save fingerprints. " + e.getMessage());
+        }
+    }
+
+    /**
+     * Hashes files in parallel, unless they are not changed since they were hashed last time
+     *
+     * @param scanned      absolute file paths by serato path
+     * @param fingerprints fingerprints
+     * @param executor     executor
+     * @throws ActionExecutionException if interrupted
+     */
+    private void updateFingerprints(Map<String, String> scanned, final FileFingerprints fingerprints, ExecutorService executor) throws ActionExecutionException {
+        final int partialBytes = getIntParameter("partial-kb", DEFAULT_PARTIAL_KB, 1) * 1024;
+        final List<Map.Entry<String, String>> files = new ArrayList<Map.Entry<String, String>>(scanned.entrySet());
+
+        List<Future<FileFingerprints.Fingerprint[]>> results = new ArrayList<Future<FileFingerprints.Fingerprint[]>>();
+        for (int start = 0; start < files.size(); start += FINGERPRINT_BATCH) {
+            final List<Map.Entry<String, String>> batch = files.subList(start, Math.min(start + FINGERPRINT_BATCH, files.size()));
+            results.add(executor.submit(new Callable<FileFingerprints.Fingerprint[]>() {
+                public FileFingerprints.Fingerprint[] call() {
+                    FileFingerprints.Fingerprint[] updated = new FileFingerprints.Fingerprint[batch.size()];
+                    for (int i = 0; i < updated.length; i++) {
+                        File file = new File(batch.get(i).getValue());
+                        long size = file.length();
+                        long lastModified = file.lastModified();
+                        FileFingerprints.Fingerprint known = fingerprints.get(batch.get(i).getKey());
+                        if (known != null && known.getSize() == size && known.getLastModified() == lastModified) {
+                            continue;
+                        }
+                        try {
+                            updated[i] = new FileFingerprints.Fingerprint(size, lastModified, DuplicateFinder.hashPartial(file.getPath(), partialBytes, null));
+                        } catch (IOException e) {
+                            Log.error("Can't read " + file.getPath() + ". " + e.getMessage());
+                        }
+                    }
+                    return updated;
+                }
+            }));
+        }
+
+        // wait for all tasks, as they read fingerprints, and only then modify them
+        List<FileFingerprints.Fingerprint[]> updates = new ArrayList<FileFingerprints.Fingerprint[]>();
+        try {
+            for (Future<FileFingerprints.Fingerprint[]> result : results) {
+                updates.add(result.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ActionExecutionException("Relocating moved files was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new ActionExecutionException(e.getCause());
+        }
+
+        int i = 0;
+        int hashed = 0;
+        for (FileFingerprints.Fingerprint[] updated : updates) {
+            for (FileFingerprints.Fingerprint fingerprint : updated) {
+                if (fingerprint != null) {
+                    fingerprints.put(files.get(i).getKey(), fingerprint);
+                    hashed++;
+                }
+                i++;
+            }
+        }
+        Log.info("  * fingerprinted " + hashed + " new or changed files");
+    }
+
+    private static boolean isVanished(DriveAccess access, String path) {
+        try {
+            return !access.isFile(new File(path));
+        } catch (DriveUnavailableException e) {
+            // can't tell, so it stays where it is
+            return false;
+        }
+    }
+
+    private static String getFileName(String track) {
+        return track.substring(track.lastIndexOf('/') + 1);
+    }
+
+    private static String getKey(String track, FileFingerprints.Fingerprint fingerprint) {
+        return getFileName(track) + "\t" + fingerprint.getSize() + "\t" + fingerprint.getHash();
+    }
+
+    /**
+     * Matches missing tracks with new files
+     *
+     * @param vanished     missing tracks
+     * @param appeared     new files
+     * @param fingerprints fingerprints
+     * @return new paths by old paths
+     */
+    private Map<String, String> match(List<String> vanished, List<String> appeared, FileFingerprints fingerprints) {
+        Map<String, List<String>> byKey = new HashMap<String, List<String>>();
+        Map<String, List<String>> byName = new HashMap<String, List<String>>();
+        for (String track : appeared) {
+            FileFingerprints.Fingerprint fingerprint = fingerprints.get(track);
+            if (fingerprint != null) {
+                add(byKey, getKey(track, fingerprint), track);
+            }
+            add(byName, getFileName(track), track);
+        }
+        Map<String, List<String>> vanishedByName = new HashMap<String, List<String>>();
+        for (String track : vanished) {
+            add(vanishedByName, getFileName(track), track);
+        }
+
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        Set<String> taken = new HashSet<String>();
+        for (String track : vanished) {
+            String target = null;
+            FileFingerprints.Fingerprint fingerprint = fingerprints.get(track);
+            if (fingerprint != null) {
+                // the same name and contents, the first one which is not taken yet if there are several copies
+                List<String> candidates = byKey.get(getKey(track, fingerprint));
+                if (candidates != null) {
+                    for (String candidate : candidates) {
+                        if (!taken.contains(candidate)) {
+                            target = candidate;
+                            break;
+                        }
+                    }
+                }
+            } else if (matchByName()) {
+                // nothing else to go by, so the name has to be unique on both sides
+                List<String> candidates = byName.get(getFileName(track));
+                if (candidates != null && candidates.size() == 1 && vanishedByName.get(getFileName(track)).size() == 1
+                        && !taken.contains(candidates.get(0))) {
+                    target = candidates.get(0);
+                }
+            }
+
+            if (target != null) {
+                taken.add(target);
+                result.put(track, target);
+                Log.debug("Relocating: " + track + " -> " + target);
+            }
+        }
+        return result;
+    }
+
+    private static void add(Map<String, List<String>> groups, String key, String track) {
+        List<String> group = groups.get(key);
+        if (group == null) {
+            group = new ArrayList<String>(1);
+            groups.put(key, group);
+        }
+        group.add(track);
+    }
+
+    /**
+     * Rewrites track paths in all crates, processed in parallel, and then in database V2. Database V2 goes last,
+     * so if a crate can't be written, the tracks are still missing from database V2 on the next run, and the crates
+     * which were not written are relocated then (the ones which were written have nothing to relocate anymore)
+     *
+     * @param dbV2     loaded database V2 file
+     * @param dbV2File database V2 file
+     * @param moves    new paths by old paths
+     * @param executor executor
+     * @throws ActionExecutionException if a file can't be read or written
+     */
+    private void relocate(SeratoDatabaseV2File dbV2, File dbV2File, final Map<String, String> moves, ExecutorService executor) throws ActionExecutionException {
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (final File crateFile : findCrateFiles()) {
+            results.add(executor.submit(new Callable<Integer>() {
+                public Integer call() throws ActionExecutionException {
+                    try {
+                        SeratoCrateFile crate = new SeratoCrateFile();
+                        crate.loadFrom(crateFile);
+                        int relocated = crate.getEntries().relocateTracks(moves);
+                        if (relocated > 0) {
+                            crate.saveTo(crateFile);
+                        }
+                        return relocated;
+                    } catch (SeratoLibraryException e) {
+                        throw new ActionExecutionException("Failed to relocate tracks in crate '" + crateFile.getName() + "'", e);
+                    }
+                }
+            }));
+        }
+
+        int modifiedCrates = 0;
+        int relocatedEntries = 0;
+        try {
+            for (Future<Integer> result : results) {
+                int relocated = result.get();
+                if (relocated > 0) {
+                    modifiedCrates++;
+                    relocatedEntries += relocated;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ActionExecutionException("Relocating moved files was interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ActionExecutionException) {
+                throw (ActionExecutionException) e.getCause();
+            }
+            throw new ActionExecutionException(e.getCause());
+        } finally {
+            for (Future<Integer> result : results) {
+                result.cancel(false);
+            }
+        }
+
+        int dbRelocated;
+        try {
+            dbRelocated = dbV2.getEntries().relocateTracks(moves);
+            if (dbRelocated > 0) {
+                dbV2.saveTo(dbV2File);
+            }
+        } catch (SeratoLibraryException e) {
+            throw new ActionExecutionException("Failed to write relocated tracks to database V2 file", e);
+        }
+        Log.info("  * relocated " + dbRelocated + " database V2 entries, and " + relocatedEntries + " crate entries in " + modifiedCrates + " crates");
+    }
+
+}
@@ -0,0 +1,329 @@
+package com.seratosync.actions;
+
+import com.seratosync.config.ActionExecutionException;
+import com.seratosync.db.SeratoLibrary;
+import com.seratosync.db.SeratoLibraryException;
+import com.seratosync.db.SeratoLibraryIndex;
+import com.seratosync.db.files.SeratoCrateFile;
+import com.seratosync.db.files.SeratoDatabaseV2File;
+import com.seratosync.filesystem.Drive;
+import com.seratosync.log.Log;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Loads database V2 and all crates into an in-memory index once, and reports what can be learned from it:
+ * tracks which are not in any crate, crates which overlap, how tracks are distributed by folder and which
+ * database V2 entries point to drives or folders that are not there. Report is written as text or JSON.
+ */
+public class ReportAction extends AbstractAction {
+
+    private static final int DEFAULT_LIMIT = 20;
+    private static final int DEFAULT_FOLDER_DEPTH = 2;
+    private static final double DEFAULT_OVERLAP = 0.9;
+    private static final String DEFAULT_JSON_OUTPUT = "serato-sync-report.json";
+
+    private double getOverlap() {
+        String value = getParameter("overlap");
+        if (value != null && !value.isEmpty()) {
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                // fall back to the default
+            }
+        }
+        return DEFAULT_OVERLAP;
+    }
+
+    private boolean isJson() {
+        return "json".equals(getParameter("format"));
+    }
+
+    private String getOutput() {
+        String value = getParameter("output");
+        if (value == null || value.isEmpty()) {
+            value = isJson() ? DEFAULT_JSON_OUTPUT : null;
+        }
+        return value;
+    }
+
+    public void run() throws ActionExecutionException {
+        Log.info("* running: serato library report");
+
+        SeratoLibraryIndex index = new SeratoLibraryIndex();
+        loadDatabase(index);
+        loadCrates(index);
+        Log.info("  * indexed " + index.getTrackCount() + " tracks, " + index.getDatabaseTrackCount() + " of them in database V2, and " + index.getCrateCount() + " crates");
+
+        int limit = getIntParameter("limit", DEFAULT_LIMIT, 0);
+        List<String> withoutCrate = index.getTracksWithoutCrate();
+        List<String> notInDatabase = index.getTracksNotInDatabase();
+        List<SeratoLibraryIndex.Overlap> overlaps = index.findOverlappingCrates(getOverlap(), limit);
+        SortedMap<String, Integer> byFolder = index.countDatabaseTracksByFolder(getIntParameter("folder-depth", DEFAULT_FOLDER_DEPTH, 1));
+        SortedMap<String, Integer> missing = countMissingLocations(index.getDatabaseTracks());
+
+        String report = isJson()
+                ? formatJson(index, withoutCrate, notInDatabase, overlaps, byFolder, missing, limit)
+                : formatText(index, withoutCrate, notInDatabase, overlaps, byFolder, missing, limit);
+
+        String output = getOutput();
+        if (output == null) {
+            for (String line : report.split("\n")) {
+                Log.info(line);
+            }
+        } else {
+            writeReport(output, report);
+            Log.info("  * report written to " + output);
+        }
+    }
+
+    private void loadDatabase(SeratoLibraryIndex index) throws ActionExecutionException {
+        File dbV2File = new File(getRuleFile().getSeratoBasePath() + "/database V2");
+        if (!dbV2File.isFile()) {
+            return;
+        }
+        try {
+            SeratoDatabaseV2File dbV2 = new SeratoDatabaseV2File();
+            dbV2.loadFrom(dbV2File);
+            index.addDatabaseTracks(dbV2.getEntries().getTracks());
+        } catch (SeratoLibraryException e) {
+            throw new ActionExecutionException("Failed to read serato database V2 file", e);
+        }
+    }
+
+    /**
+     * Loads all crates in parallel, while adding them to the index in the same order
+     *
+     * @param index library index
+     * @throws ActionExecutionException if a crate can't be read
+     */
+    private void loadCrates(SeratoLibraryIndex index) throws ActionExecutionException {
+        Map<String, File> crateFiles = findCratesByName();
+
+        ExecutorService executor = Executors.newFixedThreadPool(getThreads());
+        List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+        try {
+            for (final File crateFile : crateFiles.values()) {
+                results.add(executor.submit(new Callable<List<String>>() {
+                    public List<String> call() throws ActionExecutionException {
+                        SeratoCrateFile crate = new SeratoCrateFile();
+                        try {
+                            crate.loadFrom(crateFile);
+                        } catch (SeratoLibraryException e) {
+                            throw new ActionExecutionException("Failed to read crate '" + crateFile.getName() + "'", e);
+                        }
+                        return new ArrayList<String>(crate.getEntries().getTracks());
+                    }
+                }));
+            }
+
+            Iterator<String> crateNames = crateFiles.keySet().iterator();
+            for (Future<List<String>> result : results) {
+                index.addCrate(crateNames.next(), getResult(result));
+            }
+        } finally {
+            for (Future<List<String>> result : results) {
+                result.cancel(false);
+            }
+            executor.shutdown();
+        }
+    }
+
+    private List<String> getResult(Future<List<String>> result) throws ActionExecutionException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ActionExecutionException("Serato library report was interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ActionExecutionException) {
+                throw (ActionExecutionException) e.getCause();
+            }
+            throw new ActionExecutionException(e.getCause());
+        }
+    }
+
+    /**
+     * Finds crate files by crate name. When a crate is in both 'Subcrates' and 'Crates' folders,
+     * the one in 'Subcrates' is taken, as it's the one serato reads
+     *
+     * @return crate files by crate name, ordered by name
+     */
+    private Map<String, File> findCratesByName() {
+        Map<String, File> result = new TreeMap<String, File>();
+        for (File crateFile : findCrateFiles()) {
+            String crateName = SeratoLibrary.getBaseCrate(crateFile.getName()).replaceAll("(?i)\\.crate$", "");
+            if (!result.containsKey(crateName)) {
+                result.put(crateName, crateFile);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Counts database V2 tracks located on drives or in top level folders which don't exist. Every drive
+     * and folder is checked only once, no matter how many tracks are there
+     *
+     * @param tracks database V2 tracks
+     * @return the number of tracks by missing location
+     */
+    private SortedMap<String, Integer> countMissingLocations(List<String> tracks) {
+        Drive drive = Drive.findDrive(getRuleFile().getSeratoBasePath());
+        String drivePrefix = drive != null ? drive.getPrefix() : "/";
+
+        Map<String, Boolean> checked = new HashMap<String, Boolean>();
+        SortedMap<String, Integer> result = new TreeMap<String, Integer>();
+        for (String track : tracks) {
+            // tracks on other drives are stored as 'Volumes/<drive>/...' on mac os
+            String location = SeratoLibraryIndex.getFolder(track, track.startsWith("Volumes/") ? 2 : 1);
+            if (location.isEmpty()) {
+                continue;
+            }
+
+            Boolean exists = checked.get(location);
+            if (exists == null) {
+                exists = new File(drivePrefix + location).isDirectory();
+                checked.put(location, exists);
+            }
+            if (!exists) {
+                Integer count = result.get(location);
+                result.put(location, count == null ? 1 : count + 1);
+            }
+        }
+        return result;
+    }
+
+    private String formatText(SeratoLibraryIndex index, List<String> withoutCrate, List<String> notInDatabase,
+                              List<SeratoLibraryIndex.Overlap> overlaps, SortedMap<String, Integer> byFolder,
+                              SortedMap<String, Integer> missing, int limit) {
+        StringBuilder out = new StringBuilder();
+        out.append("  * tracks: ").append(index.getTrackCount())
+                .append(", in database V2: ").append(index.getDatabaseTrackCount())
+                .append(", crates: ").append(index.getCrateCount()).append("\n");
+
+        out.append("  * tracks in database V2 which are not in any crate: ").append(withoutCrate.size()).append("\n");
+        appendExamples(out, withoutCrate, limit);
+
+        out.append("  * tracks in crates which are not in database V2: ").append(notInDatabase.size()).append("\n");
+        appendExamples(out, notInDatabase, limit);
+
+        out.append("  * overlapping crates: ").append(overlaps.size()).append("\n");
+        for (SeratoLibraryIndex.Overlap overlap : overlaps) {
+            out.append("      ").append(overlap.getCrate1()).append(" / ").append(overlap.getCrate2())
+                    .append(": ").append(overlap.getShared()).append(" shared tracks (")
+                    .append(Math.round(overlap.getRatio() * 100)).append("%)\n");
+        }
+
+        out.append("  * tracks by folder:\n");
+        for (Map.Entry<String, Integer> e : byFolder.entrySet()) {
+            out.append("      ").append(e.getKey().isEmpty() ? "/" : e.getKey()).append(": ").append(e.getValue()).append("\n");
+        }
+
+        out.append("  * tracks on missing drives and folders:");
+        out.append(missing.isEmpty() ? " none\n" : "\n");
+        for (Map.Entry<String, Integer> e : missing.entrySet()) {
+            out.append("      ").append(e.getKey()).append(": ").append(e.getValue()).append("\n");
+        }
+        return out.toString();
+    }
+
+    private static void appendExamples(StringBuilder out, List<String> tracks, int limit) {
+        for (int i = 0; i < tracks.size() && i < limit; i++) {
+            out.append("      ").append(tracks.get(i)).append("\n");
+        }
+        if (tracks.size() > limit) {
+            out.append("      ... and ").append(tracks.size() - limit).append(" more\n");
+        }
+    }
+
+    private String formatJson(SeratoLibraryIndex index, List<String> withoutCrate, List<String> notInDatabase,
+                              List<SeratoLibraryIndex.Overlap> overlaps, SortedMap<String, Integer> byFolder,
+                              SortedMap<String, Integer> missing, int limit) {
+        StringBuilder out = new StringBuilder();
+        out.append("{\n");
+        out.append("  \"tracks\": ").append(index.getTrackCount()).append(",\n");
+        out.append("  \"databaseTracks\": ").append(index.getDatabaseTrackCount()).append(",\n");
+        out.append("  \"crates\": ").append(index.getCrateCount()).append(",\n");
+
+        out.append("  \"tracksWithoutCrate\": ");
+        appendJsonTracks(out, withoutCrate, limit);
+        out.append(",\n");
+
+        out.append("  \"tracksNotInDatabase\": ");
+        appendJsonTracks(out, notInDatabase, limit);
+        out.append(",\n");
+
+        out.append("  \"overlappingCrates\": [");
+        for (int i = 0; i < overlaps.size(); i++) {
+            SeratoLibraryIndex.Overlap overlap = overlaps.get(i);
+            out.append(i > 0 ? ",\n" : "\n").append("    {\"crate1\": ");
+            appendJsonString(out, overlap.getCrate1());
+            out.append(", \"crate2\": ");
+            appendJsonString(out, overlap.getCrate2());
+            out.append(", \"shared\": ").append(overlap.getShared());
+            out.append(", \"ratio\": ").append(Math.round(overlap.getRatio() * 1000) / 1000.0).append("}");
+        }
+        out.append(overlaps.isEmpty() ? "],\n" : "\n  ],\n");
+
+        out.append("  \"tracksByFolder\": ");
+        appendJsonCounts(out, byFolder);
+        out.append(",\n");
+
+        out.append("  \"tracksOnMissingLocations\": ");
+        appendJsonCounts(out, missing);
+        out.append("\n}\n");
+        return out.toString();
+    }
+
+    private static void appendJsonTracks(StringBuilder out, List<String> tracks, int limit) {
+        out.append("{\"count\": ").append(tracks.size()).append(", \"examples\": [");
+        for (int i = 0; i < tracks.size() && i < limit; i++) {
+            out.append(i > 0 ? ", " : "");
+            appendJsonString(out, tracks.get(i));
+        }
+        out.append("]}");
+    }
+
+    private static void appendJsonCounts(StringBuilder out, SortedMap<String, Integer> counts) {
+        out.append("{");
+        boolean first = true;
+        for (Map.Entry<String, Integer> e : counts.entrySet()) {
+            out.append(first ? "\n    " : ",\n    ");
+            appendJsonString(out, e.getKey());
+            out.append(": ").append(e.getValue());
+            first = false;
+        }
+        out.append(first ? "}" : "\n  }");
+    }
+
+    private static void appendJsonString(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    private void writeReport(String output, String report) throws ActionExecutionException {
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(output), "UTF-8");
+            try {
+                out.write(report);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new ActionExecutionException("Failed to write report to " + output, e);
+        }
+    }
+
+}
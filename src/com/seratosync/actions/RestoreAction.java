@@ -0,0 +1,240 @@
+package com.seratosync.actions;
+
+import com.seratosync.config.ActionExecutionException;
+import com.seratosync.db.SeratoBackupIndex;
+import com.seratosync.db.SeratoLibrary;
+import com.seratosync.db.SeratoLibraryException;
+import com.seratosync.db.files.AbstractSeratoFile;
+import com.seratosync.db.files.SeratoCrateFile;
+import com.seratosync.db.files.SeratoDatabaseV2File;
+import com.seratosync.filesystem.FileDirectoryUtils;
+import com.seratosync.log.Log;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Restores crates ('crates' parameter, comma separated) and/or database V2 ('database: true') from the archives made
+ * by backup action. By default the latest good copy of every file is taken: archives are searched from the latest
+ * one, using the backup index, and a copy is good if it's not damaged in the archive and serato file can be read
+ * from it. 'archive' parameter restores from the given archive only, 'dry-run' only tells which copies would be used.
+ * <p/>
+ * Archives are opened through their central directory, and only the requested entries are read. Every file is
+ * extracted into a temporary file first, and it replaces the current one once it's checked.
+ */
+public class RestoreAction extends AbstractAction {
+
+    private static final String DATABASE_V2 = "database V2";
+
+    private File getBackupFolder() {
+        String value = getParameter("folder");
+        if (value == null || value.isEmpty()) {
+            value = BackupSeratoDatabaseAction.DEFAULT_FOLDER;
+        }
+        return new File(getRuleFile().getSeratoBasePath() + "/" + value);
+    }
+
+    private boolean isDryRun() {
+        return "true".equals(getParameter("dry-run"));
+    }
+
+    /**
+     * Returns names of the entries to restore, as they are stored in backup archives
+     *
+     * @return entry names by what is restored (crate files are either in 'Subcrates' or in 'Crates', or in both)
+     * @throws ActionExecutionException if nothing is requested
+     */
+    private Map<String, List<String>> getRequestedEntries() throws ActionExecutionException {
+        Map<String, List<String>> result = new LinkedHashMap<String, List<String>>();
+        if ("true".equals(getParameter("database"))) {
+            result.put(DATABASE_V2, Collections.singletonList(DATABASE_V2));
+        }
+        String crates = getParameter("crates");
+        if (crates != null) {
+            StringTokenizer items = new StringTokenizer(crates, ",");
+            while (items.hasMoreTokens()) {
+                String crate = items.nextToken().trim();
+                String crateName = SeratoLibrary.getBaseCrate(crate);
+                if (!crateName.isEmpty()) {
+                    result.put("crate " + crate, Arrays.asList("Subcrates/" + crateName + ".crate", "Crates/" + crateName + ".crate"));
+                }
+            }
+        }
+        if (result.isEmpty()) {
+            throw new ActionExecutionException("Nothing to restore, either 'crates' or 'database: true' parameter is required");
+        }
+        return result;
+    }
+
+    @Override
+    public void prepare() throws ActionExecutionException {
+        getRequestedEntries();
+    }
+
+    public void run() throws ActionExecutionException {
+        Log.info("* running: restore from backup" + (isDryRun() ? " (dry run)" : ""));
+
+        File folder = getBackupFolder();
+        SeratoBackupIndex index = new SeratoBackupIndex(folder);
+        try {
+            index.load();
+        } catch (IOException e) {
+            Log.error("Can't load backup index, all archives will be read. " + e.getMessage());
+        }
+        int read = index.refresh();
+        Log.info("  * indexed backup archives in " + folder.getPath() + ", " + read + " new or changed");
+
+        String archive = getParameter("archive");
+        Map<String, ZipFile> opened = new HashMap<String, ZipFile>();
+        int restored = 0;
+        try {
+            for (Map.Entry<String, List<String>> requested : getRequestedEntries().entrySet()) {
+                boolean found = false;
+                for (String entryName : requested.getValue()) {
+                    List<String> candidates = archive != null ? Collections.singletonList(archive) : index.getArchives(entryName);
+                    if (archive != null && !index.getEntries(archive).contains(entryName)) {
+                        continue;
+                    }
+
+                    // the latest copy which is good
+                    for (String candidate : candidates) {
+                        found = true;
+                        try {
+                            if (restore(folder, candidate, entryName, opened)) {
+                                Log.info("  * " + (isDryRun() ? "would restore " : "restored ") + entryName + " from " + candidate);
+                                restored++;
+                                break;
+                            }
+                            index.markBroken(candidate, entryName);
+                            Log.error("Copy of " + entryName + " in " + candidate + " is damaged");
+                        } catch (IOException e) {
+                            // the copy may well be good, so it's not marked, and it's tried again next time
+                            Log.error("Can't read " + entryName + " from " + candidate + ". " + e.getMessage());
+                        }
+                    }
+                }
+                if (!found) {
+                    Log.error("No copy of " + requested.getKey() + " in " + (archive != null ? archive : "backup archives"));
+                }
+            }
+        } finally {
+            for (ZipFile zip : opened.values()) {
+                try {
+                    zip.close();
+                } catch (IOException e) {
+                    // do nothing
+                }
+            }
+            try {
+                index.save();
+            } catch (IOException e) {
+                Log.error("Can't save backup index. " + e.getMessage());
+            }
+        }
+
+        if (restored == 0) {
+            throw new ActionExecutionException("Nothing was restored, no backup archive has a good copy of the requested files");
+        }
+        Log.info("  * " + (isDryRun() ? "would restore " : "restored ") + restored + " files");
+    }
+
+    /**
+     * Extracts the entry into a temporary file, checks it and replaces the current file with it
+     *
+     * @param folder      backup folder
+     * @param archiveName archive name
+     * @param entryName   entry name
+     * @param opened      archives opened so far, by name
+     * @return false if the copy is damaged: it doesn't match its checksum, the archive is not a valid zip file,
+     * or serato file can't be read from it
+     * @throws IOException              if the archive can't be read for some other reason
+     * @throws ActionExecutionException if the copy can't be written, or the current file can't be replaced
+     */
+    private boolean restore(File folder, String archiveName, String entryName, Map<String, ZipFile> opened) throws IOException, ActionExecutionException {
+        File target = new File(getRuleFile().getSeratoBasePath() + "/" + entryName);
+        File tmpFile = new File(target.getPath() + ".tmp");
+        boolean good = false;
+        try {
+            ZipFile zip = opened.get(archiveName);
+            if (zip == null) {
+                zip = new ZipFile(new File(folder, archiveName));
+                opened.put(archiveName, zip);
+            }
+            ZipEntry entry = zip.getEntry(entryName);
+            if (entry == null) {
+                return false;
+            }
+            target.getParentFile().mkdirs();
+            good = extract(zip, entry, tmpFile) && isReadable(tmpFile, entryName);
+        } catch (ZipException e) {
+            // damaged archive or entry
+        } finally {
+            if (!good) {
+                tmpFile.delete();
+            }
+        }
+        if (!good) {
+            return false;
+        }
+
+        if (isDryRun()) {
+            tmpFile.delete();
+        } else if (!FileDirectoryUtils.replaceFile(tmpFile, target)) {
+            tmpFile.delete();
+            throw new ActionExecutionException("Can't replace " + target.getPath() + " with the restored copy");
+        }
+        return true;
+    }
+
+    /**
+     * Copies the entry into the file
+     *
+     * @return false if the entry doesn't match its checksum
+     * @throws IOException              if the entry can't be read
+     * @throws ActionExecutionException if the file can't be written
+     */
+    private static boolean extract(ZipFile zip, ZipEntry entry, File file) throws IOException, ActionExecutionException {
+        CRC32 crc = new CRC32();
+        InputStream in = zip.getInputStream(entry);
+        try {
+            OutputStream out;
+            try {
+                out = new FileOutputStream(file);
+            } catch (IOException e) {
+                throw new ActionExecutionException("Can't write " + file.getPath() + ". " + e.getMessage(), e);
+            }
+            try {
+                byte[] buf = new byte[1 << 16];
+                int len;
+                while ((len = in.read(buf)) > 0) {
+                    crc.update(buf, 0, len);
+                    try {
+                        out.write(buf, 0, len);
+                    } catch (IOException e) {
+                        throw new ActionExecutionException("Can't write " + file.getPath() + ". " + e.getMessage(), e);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        return entry.getCrc() == -1 || entry.getCrc() == crc.getValue();
+    }
+
+    private static boolean isReadable(File file, String entryName) {
+        AbstractSeratoFile seratoFile = DATABASE_V2.equals(entryName) ? new SeratoDatabaseV2File() : new SeratoCrateFile();
+        try {
+            seratoFile.loadFrom(file);
+            return true;
+        } catch (SeratoLibraryException e) {
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+package com.seratosync.actions;
+
+import com.seratosync.config.ActionExecutionException;
+import com.seratosync.db.SeratoLibraryException;
+import com.seratosync.db.files.SeratoPathRewriter;
+import com.seratosync.log.Log;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Points all tracks in database V2 and crates to another folder, when music was moved as a whole (e.g. to a new drive
+ * or into another folder). Path prefixes are given either as 'from' and 'to' parameters, or as a comma separated
+ * 'map' parameter, e.g. 'Music/Old -> Music/New, Mixes -> Music/Mixes'. Paths are relative to the drive root, as
+ * serato stores them. If several prefixes match, the longest one wins. Files are processed in parallel.
+ */
+public class RewritePathsAction extends AbstractAction {
+
+    private boolean isDryRun() {
+        return "true".equals(getParameter("dry-run"));
+    }
+
+    /**
+     * Returns prefix mappings from 'from'/'to' and 'map' parameters
+     *
+     * @return new prefixes by old prefixes
+     * @throws ActionExecutionException if mappings are missing or malformed
+     */
+    private Map<String, String> getPrefixes() throws ActionExecutionException {
+        Map<String, String> prefixes = new LinkedHashMap<String, String>();
+
+        String from = getParameter("from");
+        String to = getParameter("to");
+        if (from != null || to != null) {
+            if (from == null || to == null) {
+                throw new ActionExecutionException("Both 'from' and 'to' parameters are required");
+            }
+            addPrefix(prefixes, from, to);
+        }
+
+        String map = getParameter("map");
+        if (map != null) {
+            StringTokenizer items = new StringTokenizer(map, ",");
+            while (items.hasMoreTokens()) {
+                String item = items.nextToken();
+                int arrow = item.indexOf("->");
+                if (arrow < 0) {
+                    throw new ActionExecutionException("Invalid path mapping, expected 'old -> new': " + item.trim());
+                }
+                addPrefix(prefixes, item.substring(0, arrow), item.substring(arrow + 2));
+            }
+        }
+
+        if (prefixes.isEmpty()) {
+            throw new ActionExecutionException("No path mappings, either 'from' and 'to' or 'map' parameters are required");
+        }
+        return prefixes;
+    }
+
+    private static void addPrefix(Map<String, String> prefixes, String from, String to) throws ActionExecutionException {
+        from = from.trim();
+        to = to.trim();
+        if (from.replace("/", "").replace("\\", "").isEmpty()) {
+            throw new ActionExecutionException("Old path prefix can't be empty");
+        }
+        if (prefixes.containsKey(from) && !prefixes.get(from).equals(to)) {
+            throw new ActionExecutionException("Conflicting path mappings for " + from);
+        }
+        prefixes.put(from, to);
+    }
+
+    @Override
+    public void prepare() throws ActionExecutionException {
+        // fail early on malformed mappings, before any other action modifies serato files
+        getPrefixes();
+    }
+
+    public void run() throws ActionExecutionException {
+        Log.info("* running: rewrite track paths" + (isDryRun() ? " (dry run)" : ""));
+
+        Map<String, String> prefixes = getPrefixes();
+        for (Map.Entry<String, String> prefix : prefixes.entrySet()) {
+            Log.info("  * " + prefix.getKey() + " -> " + prefix.getValue());
+        }
+        final SeratoPathRewriter rewriter = new SeratoPathRewriter(prefixes);
+        final boolean dryRun = isDryRun();
+
+        List<File> files = new ArrayList<File>();
+        File dbV2File = new File(getRuleFile().getSeratoBasePath() + "/database V2");
+        if (dbV2File.isFile()) {
+            files.add(dbV2File);
+        }
+        files.addAll(findCrateFiles());
+
+        // every file is streamed through the rewriter on its own, so they are all processed in parallel
+        ExecutorService executor = Executors.newFixedThreadPool(getThreads());
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        try {
+            for (final File file : files) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    public Integer call() throws ActionExecutionException {
+                        try {
+                            return rewriter.rewrite(file, dryRun);
+                        } catch (SeratoLibraryException e) {
+                            throw new ActionExecutionException("Failed to rewrite track paths in '" + file.getName() + "'", e);
+                        }
+                    }
+                }));
+            }
+
+            int modifiedFiles = 0;
+            int rewrittenEntries = 0;
+            int dbRewritten = 0;
+            for (int i = 0; i < files.size(); i++) {
+                int rewritten = results.get(i).get();
+                if (files.get(i) == dbV2File) {
+                    dbRewritten = rewritten;
+                }
+                if (rewritten > 0) {
+                    modifiedFiles++;
+                    rewrittenEntries += rewritten;
+                }
+            }
+            Log.info("  * " + (dryRun ? "would rewrite " : "rewritten ") + dbRewritten + " database V2 entries, and "
+                    + (rewrittenEntries - dbRewritten) + " crate entries, " + modifiedFiles + " files out of " + files.size());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ActionExecutionException("Rewriting track paths was interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ActionExecutionException) {
+                throw (ActionExecutionException) e.getCause();
+            }
+            throw new ActionExecutionException(e.getCause());
+        } finally {
+            for (Future<Integer> result : results) {
+                result.cancel(false);
+            }
+            executor.shutdown();
+        }
+    }
+
+}
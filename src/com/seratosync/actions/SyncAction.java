@@ -1,66 +1,244 @@
 package com.seratosync.actions;
 
 import com.seratosync.config.ActionExecutionException;
-import com.seratosync.filesystem.FileDirectoryUtils;
+import com.seratosync.db.SeratoLibraryException;
+import com.seratosync.filesystem.Drive;
+import com.seratosync.filesystem.DriveAccess;
 import com.seratosync.filesystem.MediaLibrary;
+import com.seratosync.filesystem.MediaLibraryCache;
+import com.seratosync.filesystem.TrackFilter;
 import com.seratosync.log.Log;
 import com.seratosync.db.SeratoLibrary;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.StringTokenizer;
-import java.util.regex.Pattern;
+import java.util.concurrent.*;
 
 public class SyncAction extends AbstractAction {
 
+    // how many scanned directories may wait for their crates to be written, before the scan pauses
+    private static final int PIPELINE_CAPACITY = 256;
+
     /**
-     * Scans media library on a filesystem and returns its contents (all music and video files)
-     *
+     * Directory which is scanned and waits for its crates to be written
+     */
+    private static class ScannedDirectory {
+        private final MediaLibrary library;
+        private final List<String> relativePath;
+
+        private ScannedDirectory(MediaLibrary library, List<String> relativePath) {
+            this.library = library;
+            this.relativePath = relativePath;
+        }
+    }
+
+    // marks the end of the scan
+    private static final ScannedDirectory END = new ScannedDirectory(null, null);
+
+    // smart crates are defined by parameters like 'smart-crate /Smart/Video: extension mov, mp4'
+    private static final String SMART_CRATE_PREFIX = "smart-crate ";
+
+    /**
+     * Crate of the tracks which match the filter, it's filled during the same pass as regular crates
+     */
+    private static class SmartCrate {
+        private final String crate;
+        private final TrackFilter filter;
+        private final List<String> tracks = new ArrayList<String>();
+
+        private SmartCrate(String crate, TrackFilter filter) {
+            this.crate = crate;
+            this.filter = filter;
+        }
+    }
+
+    /**
+     * Scans media library on a filesystem (or takes it from the scans which were already done during this run)
+     * and writes crates at the same time. Scan runs in a separate thread and hands over every directory as soon as
+     * its subtree is scanned, while this thread writes crates for it.
      *
-     * @param path path where to find the content
-     * @param excludeFilter Exclude patterns possibly containing wildcards
+     * @param path            path where to find the content
+     * @param excludeFilter   Exclude patterns possibly containing wildcards
+     * @param relativeToCrate Crate as string
      * @return MediaLibrary
+     * @throws ActionExecutionException if the scan fails
      */
-    private MediaLibrary loadMediaLibrary(String path, List<String> excludeFilter) {
-        List<Pattern> excludePatterns = FileDirectoryUtils.convertPatternsWildcardToRegex(excludeFilter);
+    private MediaLibrary syncMediaLibrary(final String path, final List<String> excludeFilter, String relativeToCrate) throws ActionExecutionException {
+        final BlockingQueue<ScannedDirectory> queue = new ArrayBlockingQueue<ScannedDirectory>(PIPELINE_CAPACITY);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<MediaLibrary> scan = executor.submit(new Callable<MediaLibrary>() {
+            public MediaLibrary call() throws Exception {
+                MediaLibrary result = null;
+                try {
+                    result = MediaLibraryCache.getInstance().readFrom(path, excludeFilter, new MediaLibrary.ScanListener() {
+                        public void directoryScanned(MediaLibrary library, List<String> relativePath) throws InterruptedException {
+                            queue.put(new ScannedDirectory(library, relativePath));
+                        }
+                    });
+                } finally {
+                    if (result == null) {
+                        // the scan failed, or it was stopped as crates can't be written, and then nobody takes
+                        // from the queue anymore, so the end is marked without waiting
+                        queue.clear();
+                        queue.offer(END);
+                    }
+                }
+                queue.put(END);
+                return result;
+            }
+        });
+
+        MediaLibrary fsLibrary;
+        SeratoLibrary seratoLibrary = new SeratoLibrary(getRuleFile().getSeratoBasePath(), relativeToCrate, path, skipUnchanged(), mirror(),
+                includeSubcrateTracks());
+        List<SmartCrate> smartCrates = getSmartCrates();
+        DriveAccess access = DriveAccess.forPath(path);
+        // false if some tracks couldn't be matched, as their drive didn't respond
+        boolean smartCratesComplete = true;
+        try {
+            for (ScannedDirectory item = queue.take(); item != END; item = queue.take()) {
+                seratoLibrary.writeDirectory(item.library, item.relativePath);
+                if (!smartCrates.isEmpty()) {
+                    smartCratesComplete &= matchSmartCrates(smartCrates, item, access);
+                }
+            }
+            fsLibrary = scan.get();
+        } catch (InterruptedException e) {
+            throw new ActionExecutionException("Interrupted while syncing " + path, e);
+        } catch (ExecutionException e) {
+            throw new ActionExecutionException("Failed to scan " + path, e.getCause());
+        } finally {
+            // stop the scan if crates can't be written
+            scan.cancel(true);
+            executor.shutdown();
+        }
+        seratoLibrary.finish();
 
-        Log.info("  * scanning " + path + "...");
-        MediaLibrary fsLibrary = MediaLibrary.readFrom(path, excludePatterns);
         if (fsLibrary.getTotalNumberOfTracks() <= 0) {
             Log.info("  * unable to find any matching media files");
         } else {
             Log.info("  * found " + fsLibrary.getTotalNumberOfTracks() + " matching media files in " + fsLibrary.getTotalNumberOfDirectories() + " directories");
         }
+        if (fsLibrary.getTotalNumberOfSkippedLinks() > 0) {
+            Log.info("  * linked directories not scanned, as duplicates or loops " + fsLibrary.getTotalNumberOfSkippedLinks());
+        }
+        Log.info("  * crate files left intact " + seratoLibrary.getCratesIntact() + ", modified " + seratoLibrary.getCratesModified() + ", created " + seratoLibrary.getCratesCreated());
+        if (seratoLibrary.getCratesSkipped() > 0) {
+            Log.info("  * crate files skipped as unchanged since the last sync " + seratoLibrary.getCratesSkipped());
+        }
+        if (seratoLibrary.getCratesDeleted() > 0) {
+            Log.info("  * crate files deleted as their directories are gone " + seratoLibrary.getCratesDeleted());
+        }
+        writeSmartCrates(smartCrates, fsLibrary.isComplete() && smartCratesComplete);
         return fsLibrary;
     }
 
     /**
-     * Writes all information about music and video files to serato library
+     * Adds new tracks to serato database V2 file
      *
-     * @param mediaLibrary    Media library
-     * @param relativeToCrate Crate as string
+     * @param mediaLibrary Media library
+     * @param mediaPath    Path of the media library
+     * @throws ActionExecutionException if database V2 file can't be updated
      */
-    private void saveMediaLibraryToSerato(MediaLibrary mediaLibrary, String relativeToCrate) {
-        SeratoLibrary seratoLibrary = SeratoLibrary.writeToCrates(mediaLibrary, getRuleFile().getSeratoBasePath(), relativeToCrate);
-        Log.info("  * crate files left intact " + seratoLibrary.getCratesIntact() + ", modified " + seratoLibrary.getCratesModified() + ", created " + seratoLibrary.getCratesCreated());
+    private void saveMediaLibraryToSeratoDatabase(MediaLibrary mediaLibrary, String mediaPath) throws ActionExecutionException {
+        // database V2 only refers to the tracks located on the same drive
+        if (!Drive.onSameDrive(mediaPath, getRuleFile().getSeratoBasePath())) {
+            Log.info("  * not registering tracks in database V2, as it's located on another drive");
+            return;
+        }
+
+        try {
+            int added = SeratoLibrary.writeToDatabase(mediaLibrary, getRuleFile().getSeratoBasePath());
+            Log.info("  * registered " + added + " new tracks in database V2");
+        } catch (SeratoLibraryException e) {
+            throw new ActionExecutionException("Failed to register new tracks in serato database V2 file", e);
+        }
     }
 
-    private String getSyncPath() throws ActionExecutionException {
-        String folder = getParameter("folder");
-        if (folder == null || folder.isEmpty()) {
-            folder = "/";
+    private boolean skipUnchanged() {
+        return !"false".equals(getParameter("skip-unchanged"));
+    }
+
+    private boolean mirror() {
+        return "true".equals(getParameter("mirror"));
+    }
+
+    /**
+     * Returns smart crates defined for this sync
+     *
+     * @return smart crates, in the order of their names
+     * @throws ActionExecutionException if a definition is malformed
+     */
+    private List<SmartCrate> getSmartCrates() throws ActionExecutionException {
+        long now = System.currentTimeMillis();
+        List<SmartCrate> result = new ArrayList<SmartCrate>();
+        for (String name : getParameterNames(SMART_CRATE_PREFIX)) {
+            String crate = name.substring(SMART_CRATE_PREFIX.length()).trim();
+            if (SeratoLibrary.getBaseCrate(crate).isEmpty()) {
+                throw new ActionExecutionException("Smart crate name is missing: " + name);
+            }
+            try {
+                result.add(new SmartCrate(crate, TrackFilter.parse(getParameter(name), now)));
+            } catch (IllegalArgumentException e) {
+                throw new ActionExecutionException("Invalid smart crate '" + crate + "'. " + e.getMessage());
+            }
         }
+        return result;
+    }
 
-        String syncPath = getRuleFile().getDriveBasePath() + folder;
-        try {
-            return new File(syncPath).getCanonicalPath();
-        } catch (IOException e) {
-            throw new ActionExecutionException("Invalid sync path: " + syncPath, e);
+    /**
+     * Checks tracks of the directory against all smart crates. File attributes are read at most once per track,
+     * with the deadline of the drive
+     *
+     * @param smartCrates smart crates
+     * @param item        scanned directory
+     * @param access      access to the drive of the synced folder
+     * @return false if attributes of some tracks couldn't be read
+     */
+    private static boolean matchSmartCrates(List<SmartCrate> smartCrates, ScannedDirectory item, DriveAccess access) {
+        StringBuilder directory = new StringBuilder();
+        for (String name : item.relativePath) {
+            directory.append(name).append('/');
+        }
+        boolean result = true;
+        for (String path : item.library.getTracks()) {
+            TrackFilter.Track track = new TrackFilter.Track(path, directory + path.substring(path.lastIndexOf(File.separatorChar) + 1), access);
+            for (SmartCrate smartCrate : smartCrates) {
+                if (smartCrate.filter.matches(track)) {
+                    smartCrate.tracks.add(path);
+                }
+            }
+            result &= !track.isUnknown();
+        }
+        return result;
+    }
+
+    /**
+     * Writes smart crates, replacing tracks which don't match anymore (unless some directories couldn't be read)
+     *
+     * @param smartCrates smart crates
+     * @param replace     whether to remove tracks which don't match
+     */
+    private void writeSmartCrates(List<SmartCrate> smartCrates, boolean replace) {
+        for (SmartCrate smartCrate : smartCrates) {
+            Collections.sort(smartCrate.tracks);
+            SeratoLibrary library = SeratoLibrary.writeToCrate(smartCrate.tracks, getRuleFile().getSeratoBasePath(), smartCrate.crate, replace);
+            Log.info("  * smart crate " + smartCrate.crate + ": " + smartCrate.tracks.size() + " tracks, crate files left intact "
+                    + library.getCratesIntact() + ", modified " + library.getCratesModified() + ", created " + library.getCratesCreated()
+                    + ", deleted " + library.getCratesDeleted());
         }
     }
 
+    private boolean includeSubcrateTracks() {
+        return "true".equals(getParameter("include-subcrate-tracks"));
+    }
+
+    private boolean registerTracks() {
+        return "true".equals(getParameter("register-tracks"));
+    }
+
     private String getSyncCrate() {
         String result = getParameter("crate");
         if (result == null || result.isEmpty()) {
@@ -69,30 +247,26 @@ public class SyncAction extends AbstractAction {
         return result;
     }
 
-    private List<String> getExcludeFilter() {
-        String value = getParameter("exclude");
-        if (value == null) {
-            value = "";
-        }
-        List<String> result = new ArrayList<String>();
-        StringTokenizer items = new StringTokenizer(value, ",");
-        while (items.hasMoreTokens()) {
-            result.add(items.nextToken().trim());
-        }
-        return result;
-    }
+    @Override
+    public void prepare() throws ActionExecutionException {
+        // fail early on malformed smart crates, before any other action modifies serato files
+        getSmartCrates();
 
+        // let the cache know which folder we are going to scan, so overlapping folders are scanned only once
+        MediaLibraryCache.getInstance().plan(getFolderPath(), getExcludeFilter());
+    }
 
     public void run() throws ActionExecutionException {
         Log.info("* running sync");
 
-        // scan media library using the specified mediaPath
-        String mediaPath = getSyncPath();
-        MediaLibrary mediaLibrary = loadMediaLibrary(mediaPath, getExcludeFilter());
+        // scan media library using the specified mediaPath and sync media, starting from the specified crate
+        String mediaPath = getFolderPath();
+        MediaLibrary mediaLibrary = syncMediaLibrary(mediaPath, getExcludeFilter(), getSyncCrate());
 
-        // sync media, starting from the specified crate
-        String crate = getSyncCrate();
-        saveMediaLibraryToSerato(mediaLibrary, crate);
+        // let serato know about new tracks right away, if requested
+        if (registerTracks()) {
+            saveMediaLibraryToSeratoDatabase(mediaLibrary, mediaPath);
+        }
     }
 
 }
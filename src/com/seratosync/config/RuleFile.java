@@ -2,10 +2,21 @@ package com.seratosync.config;
 
 import com.seratosync.actions.AbstractAction;
 import com.seratosync.actions.BackupSeratoDatabaseAction;
+import com.seratosync.actions.FindDuplicatesAction;
+import com.seratosync.actions.ImportPlaylistsAction;
 import com.seratosync.actions.PruneSeratoDatabaseAction;
+import com.seratosync.actions.RelocateAction;
+import com.seratosync.actions.ReportAction;
+import com.seratosync.actions.RestoreAction;
+import com.seratosync.actions.RewritePathsAction;
 import com.seratosync.actions.SyncAction;
 import com.seratosync.filesystem.Drive;
+import com.seratosync.filesystem.DriveAccess;
+import com.seratosync.filesystem.MediaLibrary;
+import com.seratosync.filesystem.MediaLibraryCache;
+import com.seratosync.filesystem.MediaSniffer;
 import com.seratosync.log.Log;
+import com.seratosync.log.Trace;
 
 import java.io.*;
 import java.util.*;
@@ -45,19 +56,112 @@ public class RuleFile {
         return globalSettings.put("serato-base-path", value);
     }
 
+    /**
+     * Returns the deadline for filesystem calls ('drive-timeout' setting, in seconds)
+     *
+     * @return deadline in milliseconds
+     * @throws RuleFileLoadingException if the setting is not a number
+     */
+    private long getDriveTimeout() throws RuleFileLoadingException {
+        String value = globalSettings.get("drive-timeout");
+        if (value == null || value.isEmpty()) {
+            return DriveAccess.DEFAULT_TIMEOUT_MILLIS;
+        }
+        try {
+            return Math.max(1, Long.parseLong(value)) * 1000;
+        } catch (NumberFormatException e) {
+            throw new RuleFileLoadingException("Invalid drive timeout: " + value);
+        }
+    }
+
+    /**
+     * Returns what to do with directories which are symbolic links ('symlinks' setting: 'follow', 'skip' or
+     * 'follow-once')
+     *
+     * @return symlink policy
+     * @throws RuleFileLoadingException if the setting is not supported
+     */
+    private String getSymlinkPolicy() throws RuleFileLoadingException {
+        String value = globalSettings.get("symlinks");
+        if (value == null || value.isEmpty()) {
+            return MediaLibrary.SYMLINKS_FOLLOW_ONCE;
+        }
+        if (!MediaLibrary.SYMLINKS_FOLLOW.equals(value) && !MediaLibrary.SYMLINKS_SKIP.equals(value)
+                && !MediaLibrary.SYMLINKS_FOLLOW_ONCE.equals(value)) {
+            throw new RuleFileLoadingException("Unsupported symlinks setting, expected 'follow', 'skip' or 'follow-once': " + value);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the file to record the trace of the run into ('trace' setting, 'true' for the default file in serato
+     * base path)
+     *
+     * @return trace file, or null if the run is not traced
+     */
+    private File getTraceFile() {
+        String value = globalSettings.get("trace");
+        if (value == null || value.isEmpty() || "false".equals(value)) {
+            return null;
+        }
+        if ("true".equals(value)) {
+            return new File(getSeratoBasePath() + "/serato-sync.trace");
+        }
+        return new File(value);
+    }
+
+    /**
+     * Tells whether contents of media files have to be checked against their extensions ('sniff-media' setting)
+     *
+     * @return true if media files are sniffed
+     */
+    private boolean isSniffMedia() {
+        return "true".equals(globalSettings.get("sniff-media"));
+    }
+
     /**
      * Executes rule file
      *
      * @throws RuleFileLoadingException In case of rule execution error
      */
     public void execute() throws RuleFileLoadingException {
+        // every rule file gives all drives another chance, and scans with its own settings
+        DriveAccess.reset(getDriveTimeout());
+        MediaLibrary.setSymlinkPolicy(getSymlinkPolicy());
+        MediaLibraryCache.getInstance().clear();
+
         for (AbstractAction action : actions) {
             try {
-                action.run();
+                action.prepare();
             } catch (ActionExecutionException e) {
                 throw new RuleFileLoadingException(e);
             }
         }
+
+        File traceFile = getTraceFile();
+        if (traceFile != null) {
+            Trace.start(traceFile);
+        }
+        if (isSniffMedia()) {
+            MediaSniffer.start(getSeratoBasePath());
+        }
+        try {
+            for (AbstractAction action : actions) {
+                Trace.Event event = Trace.begin(Trace.ACTION, action.getClass().getSimpleName());
+                try {
+                    action.run();
+                } catch (ActionExecutionException e) {
+                    throw new RuleFileLoadingException(e);
+                } finally {
+                    event.end();
+                }
+            }
+        } finally {
+            MediaSniffer.stop();
+            if (traceFile != null) {
+                Trace.stop();
+            }
+        }
     }
 
     /**
@@ -293,6 +397,18 @@ public class RuleFile {
             result = new BackupSeratoDatabaseAction();
         } else if ("prune-serato-db".equals(action)) {
             result = new PruneSeratoDatabaseAction();
+        } else if ("report".equals(action)) {
+            result = new ReportAction();
+        } else if ("find-duplicates".equals(action)) {
+            result = new FindDuplicatesAction();
+        } else if ("relocate".equals(action)) {
+            result = new RelocateAction();
+        } else if ("rewrite-paths".equals(action)) {
+            result = new RewritePathsAction();
+        } else if ("import-playlists".equals(action)) {
+            result = new ImportPlaylistsAction();
+        } else if ("restore".equals(action)) {
+            result = new RestoreAction();
         } else {
             throw new RuleFileLoadingException("Unsupported action: " + action);
         }
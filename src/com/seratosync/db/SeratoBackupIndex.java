@@ -0,0 +1,232 @@
+package com.seratosync.db;
+
+import com.seratosync.filesystem.FileDirectoryUtils;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Sidecar file in the backup folder, which remembers the entries of every backup archive, so finding the copies of
+ * a crate doesn't require opening all archives. An archive is only read again (its central directory, not the whole
+ * archive) when its size or modification time changes. It also remembers the copies which turned out to be broken,
+ * so they are not extracted again.
+ */
+public class SeratoBackupIndex {
+
+    public static final String FILE_NAME = "serato-sync.backup-index";
+
+    private static final String VERSION = "serato-sync backup index 1";
+
+    /**
+     * Entries of a single archive
+     */
+    private static class Archive {
+        private final long size;
+        private final long lastModified;
+        private final Set<String> entries = new HashSet<String>();
+        private final Set<String> broken = new HashSet<String>();
+
+        private Archive(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final File folder;
+    private final File file;
+    private final Map<String, Archive> archives = new HashMap<String, Archive>();
+    private boolean modified = false;
+
+    /**
+     * @param folder backup folder
+     */
+    public SeratoBackupIndex(File folder) {
+        this.folder = folder;
+        this.file = new File(folder, FILE_NAME);
+    }
+
+    public static boolean isBackupArchive(String name) {
+        return name.startsWith("backup_") && name.toLowerCase().endsWith(".zip");
+    }
+
+    /**
+     * Brings the index up to date with the archives in the backup folder, reading only new and changed archives
+     *
+     * @return the number of archives which were read
+     */
+    public int refresh() {
+        String[] names = folder.list();
+        Set<String> found = new HashSet<String>();
+        int read = 0;
+        for (String name : names != null ? names : new String[0]) {
+            if (!isBackupArchive(name)) {
+                continue;
+            }
+            File archiveFile = new File(folder, name);
+            Archive known = archives.get(name);
+            if (known == null || known.size != archiveFile.length() || known.lastModified != archiveFile.lastModified()) {
+                Archive archive = readArchive(archiveFile);
+                if (archive == null) {
+                    continue;
+                }
+                archives.put(name, archive);
+                modified = true;
+                read++;
+            }
+            found.add(name);
+        }
+        if (archives.keySet().retainAll(found)) {
+            modified = true;
+        }
+        return read;
+    }
+
+    private static Archive readArchive(File archiveFile) {
+        Archive result = new Archive(archiveFile.length(), archiveFile.lastModified());
+        ZipFile zip;
+        try {
+            zip = new ZipFile(archiveFile);
+        } catch (IOException e) {
+            // not a zip archive, or a truncated one
+            return null;
+        }
+        try {
+            // entries come from the central directory at the end of the archive
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.isDirectory()) {
+                    result.entries.add(entry.getName());
+                }
+            }
+        } finally {
+            try {
+                zip.close();
+            } catch (IOException e) {
+                // do nothing
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns archives which have a copy of the entry, which is not known to be broken
+     *
+     * @param entryName entry name, i.e. 'Subcrates/Sets%%Friday.crate'
+     * @return archive names, the latest first
+     */
+    public List<String> getArchives(String entryName) {
+        List<String> result = new ArrayList<String>();
+        for (Map.Entry<String, Archive> e : archives.entrySet()) {
+            if (e.getValue().entries.contains(entryName) && !e.getValue().broken.contains(entryName)) {
+                result.add(e.getKey());
+            }
+        }
+        // archive names contain the date, so they sort chronologically
+        Collections.sort(result, Collections.reverseOrder());
+        return result;
+    }
+
+    /**
+     * Returns all entry names of the archive
+     *
+     * @param archiveName archive name
+     * @return entry names, or an empty set if the archive is not known
+     */
+    public Set<String> getEntries(String archiveName) {
+        Archive archive = archives.get(archiveName);
+        return archive != null ? Collections.unmodifiableSet(archive.entries) : Collections.<String>emptySet();
+    }
+
+    /**
+     * Remembers that the copy of the entry in the archive is broken
+     *
+     * @param archiveName archive name
+     * @param entryName   entry name
+     */
+    public void markBroken(String archiveName, String entryName) {
+        Archive archive = archives.get(archiveName);
+        if (archive != null && archive.broken.add(entryName)) {
+            modified = true;
+        }
+    }
+
+    /**
+     * Loads the index, starting with an empty one if the file doesn't exist or has an unsupported format
+     *
+     * @throws IOException in case of I/O exception
+     */
+    public void load() throws IOException {
+        archives.clear();
+        if (!file.isFile()) {
+            return;
+        }
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            if (!VERSION.equals(in.readLine())) {
+                return;
+            }
+
+            // 'archive', size, modification time, name - followed by the entries of the archive:
+            // 'entry', 1 if broken or 0, name
+            Archive archive = null;
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] items = line.split("\t", 4);
+                if ("archive".equals(items[0]) && items.length == 4) {
+                    try {
+                        archive = new Archive(Long.parseLong(items[1]), Long.parseLong(items[2]));
+                        archives.put(items[3], archive);
+                    } catch (NumberFormatException e) {
+                        // skip malformed archive, it will be read again
+                        archive = null;
+                    }
+                } else if ("entry".equals(items[0]) && items.length >= 3 && archive != null) {
+                    String name = line.substring(items[0].length() + items[1].length() + 2);
+                    archive.entries.add(name);
+                    if ("1".equals(items[1])) {
+                        archive.broken.add(name);
+                    }
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Saves the index, if anything was changed
+     *
+     * @throws IOException in case of I/O exception
+     */
+    public void save() throws IOException {
+        if (!modified) {
+            return;
+        }
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8"));
+        try {
+            out.write(VERSION);
+            out.write("\n");
+            for (Map.Entry<String, Archive> e : archives.entrySet()) {
+                Archive archive = e.getValue();
+                out.write("archive\t" + archive.size + "\t" + archive.lastModified + "\t" + e.getKey() + "\n");
+                for (String entry : archive.entries) {
+                    out.write("entry\t" + (archive.broken.contains(entry) ? "1" : "0") + "\t" + entry + "\n");
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!FileDirectoryUtils.replaceFile(tmpFile, file)) {
+            throw new IOException("Can't replace backup index file " + file.getName());
+        }
+        modified = false;
+    }
+
+}
@@ -0,0 +1,213 @@
+package com.seratosync.db;
+
+import com.seratosync.filesystem.FileDirectoryUtils;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sidecar file which remembers, for every crate written by sync, the digest of the directory subtree it was built
+ * from and the size and modification time of its crate files. When both are the same on the next run, the crate
+ * doesn't have to be loaded at all.
+ */
+public class SeratoCrateManifest {
+
+    public static final String FILE_NAME = "serato-sync.manifest";
+
+    private static final String VERSION = "serato-sync manifest 2";
+
+    // previous version, which didn't have the synced folder
+    private static final String VERSION_1 = "serato-sync manifest 1";
+
+    /**
+     * What we know about a single crate
+     */
+    public static class Entry {
+        private final String digest;
+        private final long[] fileStats;
+        private final String source;
+
+        public Entry(String digest, long[] fileStats) {
+            this(digest, fileStats, "");
+        }
+
+        public Entry(String digest, long[] fileStats, String source) {
+            this.digest = digest;
+            this.fileStats = fileStats;
+            this.source = source;
+        }
+
+        public String getDigest() {
+            return digest;
+        }
+
+        /**
+         * Returns the synced folder the crate was built from
+         *
+         * @return canonical path, or an empty string if unknown
+         */
+        public String getSource() {
+            return source;
+        }
+
+        /**
+         * Returns size and modification time of crate files, as pairs
+         *
+         * @return array of (size, modification time) pairs
+         */
+        public long[] getFileStats() {
+            return fileStats;
+        }
+    }
+
+    private final File file;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private boolean modified = false;
+
+    public SeratoCrateManifest(String seratoBasePath) {
+        this.file = new File(seratoBasePath + "/" + FILE_NAME);
+    }
+
+    public Entry get(String crateName) {
+        return entries.get(crateName);
+    }
+
+    /**
+     * Returns names of all crates built from the synced folder
+     *
+     * @param source canonical path of the synced folder
+     * @return crate names
+     */
+    public List<String> getCrateNames(String source) {
+        List<String> result = new ArrayList<String>();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            if (e.getValue().getSource().equals(source)) {
+                result.add(e.getKey());
+            }
+        }
+        return result;
+    }
+
+    public void put(String crateName, Entry entry) {
+        entries.put(crateName, entry);
+        modified = true;
+    }
+
+    public void remove(String crateName) {
+        if (entries.remove(crateName) != null) {
+            modified = true;
+        }
+    }
+
+    /**
+     * Returns size and modification time of the file, or -1s if it doesn't exist
+     *
+     * @param file file
+     * @return size and modification time
+     */
+    public static long[] getFileStats(File file) {
+        if (!file.isFile()) {
+            return new long[]{-1, -1};
+        }
+        return new long[]{file.length(), file.lastModified()};
+    }
+
+    /**
+     * Loads manifest from the serato base path, starting with an empty one if there is no manifest yet
+     *
+     * @throws SeratoLibraryException in case of I/O exception or unsupported format
+     */
+    public void load() throws SeratoLibraryException {
+        entries.clear();
+        if (!file.isFile()) {
+            return;
+        }
+
+        BufferedReader in;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        } catch (IOException e) {
+            throw new SeratoLibraryException(e);
+        }
+
+        try {
+            String version = in.readLine();
+            if (!VERSION.equals(version) && !VERSION_1.equals(version)) {
+                throw new SeratoLibraryException("Unsupported manifest format: " + file.getName());
+            }
+            int first = VERSION.equals(version) ? 2 : 1;
+
+            // digest, synced folder (since version 2), stats of crate files, crate name
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] items = line.split("\t", -1);
+                if (items.length < first + 2) {
+                    throw new SeratoLibraryException("Malformed manifest line: " + line);
+                }
+                long[] stats = new long[items.length - first - 1];
+                try {
+                    for (int i = 0; i < stats.length; i++) {
+                        stats[i] = Long.parseLong(items[i + first]);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new SeratoLibraryException("Malformed manifest line: " + line, e);
+                }
+                entries.put(items[items.length - 1], new Entry(items[0], stats, first > 1 ? items[1] : ""));
+            }
+        } catch (IOException e) {
+            throw new SeratoLibraryException(e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // do nothing
+            }
+        }
+    }
+
+    /**
+     * Saves manifest to the serato base path, if anything was changed
+     *
+     * @throws SeratoLibraryException in case of I/O exception
+     */
+    public void save() throws SeratoLibraryException {
+        if (!modified) {
+            return;
+        }
+
+        // write to a temporary file first, so a half-written manifest never makes us skip a crate
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8"));
+            try {
+                out.write(VERSION);
+                out.write("\n");
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    out.write(e.getValue().getDigest());
+                    out.write("\t");
+                    out.write(e.getValue().getSource());
+                    for (long stat : e.getValue().getFileStats()) {
+                        out.write("\t");
+                        out.write(Long.toString(stat));
+                    }
+                    out.write("\t");
+                    out.write(e.getKey());
+                    out.write("\n");
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new SeratoLibraryException(e);
+        }
+
+        if (!FileDirectoryUtils.replaceFile(tmpFile, file)) {
+            throw new SeratoLibraryException("Can't replace manifest file " + file.getName());
+        }
+        modified = false;
+    }
+
+}
@@ -1,12 +1,17 @@
 package com.seratosync.db;
 
+import com.seratosync.filesystem.FileDirectoryUtils;
 import com.seratosync.filesystem.MediaLibrary;
+import com.seratosync.filesystem.UnicodeNames;
 import com.seratosync.log.Log;
 import com.seratosync.db.files.SeratoCrateFile;
+import com.seratosync.db.files.SeratoDatabaseV2File;
 
 import java.io.File;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
 
 /**
  * @author Roman Alekseenkov
@@ -14,9 +19,73 @@ import java.util.TreeSet;
 @SuppressWarnings({"FieldCanBeLocal", "UnusedDeclaration"})
 public class SeratoLibrary {
 
+    /**
+     * Decides which tracks have to be removed from a crate before new tracks are added
+     */
+    private interface TrackRemoval {
+        Set<String> getRemovedTracks(Set<String> crateTracks);
+    }
+
     private int cratesIntact = 0;
     private int cratesCreated = 0;
     private int cratesModified = 0;
+    private int cratesSkipped = 0;
+    private int cratesDeleted = 0;
+
+    // manifest of crates written on previous runs and digests of the directories, when enabled
+    private SeratoCrateManifest manifest;
+    private Map<MediaLibrary, String> digests;
+    private String digestSeed;
+    private boolean skipUnchanged;
+
+    // where crates are written to, when crates are written directory by directory
+    private String seratoBasePath;
+    private String baseCrate;
+    private String syncPath;
+
+    // when mirroring, tracks and crates which are no longer in the synced folder are removed
+    private boolean mirror;
+    private Set<String> visitedCrates = new HashSet<String>();
+    private Map<MediaLibrary, Set<String>> seratoTracks = new IdentityHashMap<MediaLibrary, Set<String>>();
+
+    // false if some of the written directories couldn't be read completely, so their sub-directories may be missing
+    private boolean scanComplete = true;
+
+    // when crates include tracks of sub-directories: all tracks written so far, in a single sorted set. Tracks of
+    // a directory subtree share the directory path as a prefix, so they are a range of this set, which is complete
+    // by the time the directory is written (directories are written after their sub-directories)
+    private NavigableSet<String> subtreeTracks;
+
+    private SeratoLibrary() {
+    }
+
+    /**
+     * Creates serato library which writes crates directory by directory, as soon as each directory is scanned
+     * (see {@link #writeDirectory(MediaLibrary, List)}). Call {@link #finish()} once all directories are written.
+     *
+     * @param seratoBasePath  serato base path
+     * @param relativeToCrate crate to start from
+     * @param syncPath        canonical path of the synced folder
+     * @param useManifest     whether to skip crates which haven't changed since the last run
+     * @param mirror          whether to remove tracks and crates which are no longer in the synced folder
+     * @param includeSubcrateTracks whether crates should contain tracks of all their sub-directories as well
+     */
+    public SeratoLibrary(String seratoBasePath, String relativeToCrate, String syncPath, boolean useManifest, boolean mirror,
+                         boolean includeSubcrateTracks) {
+        this.seratoBasePath = seratoBasePath;
+        this.baseCrate = getBaseCrate(relativeToCrate);
+        this.syncPath = syncPath;
+        this.skipUnchanged = useManifest;
+        this.mirror = mirror;
+        if (includeSubcrateTracks) {
+            subtreeTracks = new TreeSet<String>();
+        }
+
+        // mirror needs manifest to know which crates were created by sync, even if nothing is skipped
+        if (useManifest || mirror) {
+            loadManifest(seratoBasePath, (mirror ? "mirror" : "") + (includeSubcrateTracks ? "+subcrate-tracks" : ""));
+        }
+    }
 
     public static String getBaseCrate(String relativeToCrate) {
         String result = relativeToCrate.replaceAll("^/", "");
@@ -26,60 +95,355 @@ public class SeratoLibrary {
         return result;
     }
 
-    public static SeratoLibrary writeToCrates(MediaLibrary fsLibrary, String seratoBasePath, String relativeToCrate) {
-        // create serato library
+    /**
+     * Writes crates for a single directory. Tracks of sub-directories are not included, so the directory can be
+     * written as soon as its subtree is scanned, before the rest of the media library.
+     *
+     * @param fsLibrary    media library of the directory, complete with all its sub-directories
+     * @param relativePath names of the directories from the synced folder down to this one
+     */
+    public void writeDirectory(MediaLibrary fsLibrary, List<String> relativePath) {
+        String crateName = baseCrate;
+        for (String directory : relativePath) {
+            crateName = crateName.length() > 0 ? crateName + "%%" + directory : directory;
+        }
+        visitedCrates.add(crateName);
+        scanComplete &= fsLibrary.isComplete();
+
+        // tracks of the directory, or of the whole subtree
+        SortedSet<String> all = fsLibrary.getTracks();
+        if (subtreeTracks != null) {
+            subtreeTracks.addAll(all);
+            all = getSubtreeTracks(relativePath);
+        }
+
+        // skip the crate if neither the directory, nor the crate files have changed since the last run
+        if (manifest != null && skipUnchanged) {
+            SeratoCrateManifest.Entry entry = manifest.get(crateName);
+            if (entry != null
+                    && entry.getDigest().equals(computeDigest(fsLibrary))
+                    && Arrays.equals(entry.getFileStats(), getCrateFileStats(getCrateFiles(seratoBasePath, crateName)))) {
+                if (!crateName.isEmpty() && !all.isEmpty()) {
+                    cratesIntact += 2;
+                    cratesSkipped += 2;
+                }
+                return;
+            }
+        }
+
+        // when mirroring, remove tracks which are no longer in the directory, unless it couldn't be read completely
+        TrackRemoval removal = null;
+        if (mirror && fsLibrary.isComplete()) {
+            final MediaLibrary mirrored = fsLibrary;
+            final String seratoPrefix = getSeratoPrefix(relativePath);
+            removal = new TrackRemoval() {
+                public Set<String> getRemovedTracks(Set<String> crateTracks) {
+                    return getVanishedTracks(crateTracks, mirrored, seratoPrefix);
+                }
+            };
+        }
+
+        writeCrate(fsLibrary, seratoBasePath, crateName, all, removal);
+    }
+
+    /**
+     * Returns tracks of the directory and all its sub-directories, as a view of the set of all written tracks
+     *
+     * @param relativePath names of the directories from the synced folder down to this one
+     * @return tracks with absolute paths
+     */
+    private SortedSet<String> getSubtreeTracks(List<String> relativePath) {
+        File directory = new File(syncPath);
+        for (String name : relativePath) {
+            directory = new File(directory, name);
+        }
+
+        // tracks are absolute paths, which start with the directory path and a separator
+        String prefix = directory.getAbsolutePath();
+        if (!prefix.endsWith(File.separator)) {
+            prefix += File.separator;
+        }
+        String end = prefix.substring(0, prefix.length() - 1) + (char) (File.separatorChar + 1);
+        return subtreeTracks.subSet(prefix, true, end, false);
+    }
+
+    /**
+     * Writes tracks into a single crate, which is not built from a directory (i.e. a list of duplicates)
+     *
+     * @param tracks          track names with absolute paths, in the order they should be added to the crate
+     * @param seratoBasePath  serato base path
+     * @param relativeToCrate crate
+     * @param replace         whether to remove tracks which are not in the list
+     * @return serato library with crate statistics
+     */
+    public static SeratoLibrary writeToCrate(Collection<String> tracks, String seratoBasePath, String relativeToCrate, boolean replace) {
         SeratoLibrary result = new SeratoLibrary();
 
-        // populate serato library it with the tracks from real library
-        //
-        // note: behavior of serato is slightly different on windows and mac os platforms
-        //       when includeSubcrateTracks is set to false, it allows serato on both platforms
-        //       to control crates behavior using "include subcrate tracks" option from the "library" menu
-        //       without forcing one way or another
-        result.processLibrary(fsLibrary, seratoBasePath, getBaseCrate(relativeToCrate), false);
+        TrackRemoval removal = null;
+        if (replace) {
+            final Set<String> keep = new HashSet<String>();
+            for (String track : tracks) {
+                keep.add(UnicodeNames.key(FileDirectoryUtils.convertFromFileToSeratoFile(track)));
+            }
+            removal = new TrackRemoval() {
+                public Set<String> getRemovedTracks(Set<String> crateTracks) {
+                    Set<String> removed = new HashSet<String>();
+                    for (String track : crateTracks) {
+                        if (!keep.contains(UnicodeNames.key(track))) {
+                            removed.add(track);
+                        }
+                    }
+                    return removed;
+                }
+            };
+        }
+
+        for (File crateFile : getCrateFiles(seratoBasePath, getBaseCrate(relativeToCrate))) {
+            if (!tracks.isEmpty() || removal != null && crateFile.isFile()) {
+                result.updateCrateFile(crateFile, tracks, removal);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Completes writing crates directory by directory. When mirroring, deletes crates which were created
+     * for the directories that are no longer there
+     */
+    public void finish() {
+        if (mirror && !scanComplete) {
+            Log.error("Not deleting crates of the directories which are gone, as some directories couldn't be read");
+        } else if (mirror) {
+            for (String crateName : manifest.getCrateNames(syncPath)) {
+                if (!visitedCrates.contains(crateName) && isWithinBaseCrate(crateName)) {
+                    deleteOrphanCrate(crateName);
+                }
+            }
+        }
+        if (manifest != null) {
+            saveManifest();
+        }
+    }
+
+    private boolean isWithinBaseCrate(String crateName) {
+        return baseCrate.isEmpty() || crateName.equals(baseCrate) || crateName.startsWith(baseCrate + "%%");
+    }
+
+    private void deleteOrphanCrate(String crateName) {
+        boolean deleted = true;
+        for (File crateFile : getCrateFiles(seratoBasePath, crateName)) {
+            if (crateFile.isFile()) {
+                if (crateFile.delete()) {
+                    cratesDeleted++;
+                } else {
+                    Log.error("Can't delete crate " + crateFile.getName());
+                    deleted = false;
+                }
+            }
+        }
+        if (deleted) {
+            manifest.remove(crateName);
+        }
+    }
+
+    /**
+     * Returns the path of the directory, as track paths in this directory start in serato files
+     *
+     * @param relativePath names of the directories from the synced folder down to this one
+     * @return path prefix ending with '/', or an empty string for the root of the drive
+     */
+    private String getSeratoPrefix(List<String> relativePath) {
+        StringBuilder path = new StringBuilder(syncPath.replaceAll("[/\\\\]+$", ""));
+        for (String directory : relativePath) {
+            path.append('/').append(directory);
+        }
+        String result = FileDirectoryUtils.convertFromFileToSeratoFile(path.toString());
+        return result.isEmpty() || result.endsWith("/") ? result : result + "/";
+    }
+
+    /**
+     * Finds tracks of the crate which are located in the directory (or its sub-directories), but are not
+     * there anymore according to the scan
+     *
+     * @param crateTracks  tracks of the crate
+     * @param fsLibrary    media library of the directory
+     * @param seratoPrefix path of the directory, as track paths in this directory start in serato files
+     * @return tracks to remove
+     */
+    private Set<String> getVanishedTracks(Set<String> crateTracks, MediaLibrary fsLibrary, String seratoPrefix) {
+        Set<String> result = new HashSet<String>();
+        for (String track : crateTracks) {
+            if (track.startsWith(seratoPrefix) && !isScanned(fsLibrary, track, seratoPrefix.length())) {
+                result.add(track);
+            }
+        }
+        return result;
+    }
+
+    private boolean isScanned(MediaLibrary fsLibrary, String track, int start) {
+        // descend into the sub-directory the track is located in
+        MediaLibrary library = fsLibrary;
+        for (int end; library != null && (end = track.indexOf('/', start)) >= 0; start = end + 1) {
+            library = library.getChild(track.substring(start, end));
+        }
+        return library != null && getSeratoTracks(library).contains(UnicodeNames.key(track));
+    }
 
+    /**
+     * Returns tracks of the directory converted to serato paths, as normalized keys (crates may have the same
+     * track in another unicode form than the file system)
+     */
+    private Set<String> getSeratoTracks(MediaLibrary fsLibrary) {
+        Set<String> result = seratoTracks.get(fsLibrary);
+        if (result == null) {
+            result = new HashSet<String>();
+            for (String track : fsLibrary.getTracks()) {
+                result.add(UnicodeNames.key(FileDirectoryUtils.convertFromFileToSeratoFile(track)));
+            }
+            seratoTracks.put(fsLibrary, result);
+        }
         return result;
     }
 
-    private SortedSet<String> processLibrary(MediaLibrary fsLibrary, String seratoBasePath, String crateName, boolean includeSubcrateTracks) {
-        // create the list of all tracks in this library
-        SortedSet<String> all = new TreeSet<String>();
+    private void loadManifest(String seratoBasePath, String seed) {
+        manifest = new SeratoCrateManifest(seratoBasePath);
+        try {
+            manifest.load();
+        } catch (SeratoLibraryException e) {
+            Log.error("Can't load crate manifest, all crates will be checked. " + e.getMessage());
+            manifest = new SeratoCrateManifest(seratoBasePath);
+        }
 
-        // add tracks from the current directory
-        all.addAll(fsLibrary.getTracks());
+        digests = new IdentityHashMap<MediaLibrary, String>();
+        digestSeed = seed;
+    }
 
-        // build everything for every sub-directory
-        for (MediaLibrary child : fsLibrary.getChildren()) {
-            String crateNameNext = crateName.length() > 0 ? crateName + "%%" + child.getDirectory() : child.getDirectory();
-            SortedSet<String> children = processLibrary(child, seratoBasePath, crateNameNext, includeSubcrateTracks);
+    private void saveManifest() {
+        try {
+            manifest.save();
+        } catch (SeratoLibraryException e) {
+            Log.error("Can't save crate manifest. " + e.getMessage());
+        }
+    }
+
+    /**
+     * Computes digest of the directory subtree: its tracks and digests of all its sub-directories.
+     * Digests are remembered, so every directory is digested only once
+     *
+     * @param fsLibrary media library
+     * @return digest as hex string
+     */
+    private String computeDigest(MediaLibrary fsLibrary) {
+        String known = digests.get(fsLibrary);
+        if (known != null) {
+            return known;
+        }
 
-            // include subcrate tracks, but only if the option is specified
-            if (includeSubcrateTracks) {
-                all.addAll(children);
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        try {
+            md.update(digestSeed.getBytes("UTF-8"));
+            for (String track : fsLibrary.getTracks()) {
+                md.update((byte) 1);
+                md.update(track.getBytes("UTF-8"));
+            }
+            for (MediaLibrary child : fsLibrary.getChildren()) {
+                md.update((byte) 2);
+                md.update(child.getDirectory().getBytes("UTF-8"));
+                md.update((byte) 0);
+                md.update(computeDigest(child).getBytes("UTF-8"));
             }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
         }
 
+        StringBuilder result = new StringBuilder();
+        for (byte b : md.digest()) {
+            result.append(Character.forDigit((b >> 4) & 0xF, 16));
+            result.append(Character.forDigit(b & 0xF, 16));
+        }
+        digests.put(fsLibrary, result.toString());
+        return result.toString();
+    }
+
+    private static File[] getCrateFiles(String seratoBasePath, String crateName) {
+        return new File[]{
+                new File(seratoBasePath + "/Subcrates/" + crateName + ".crate"),
+                new File(seratoBasePath + "/Crates/" + crateName + ".crate")
+        };
+    }
+
+    private static long[] getCrateFileStats(File[] crateFiles) {
+        long[] result = new long[crateFiles.length * 2];
+        for (int i = 0; i < crateFiles.length; i++) {
+            System.arraycopy(SeratoCrateManifest.getFileStats(crateFiles[i]), 0, result, i * 2, 2);
+        }
+        return result;
+    }
+
+    /**
+     * Adds tracks which serato doesn't know about yet to its database V2 file, so it doesn't have
+     * to discover them on start up
+     *
+     * @param fsLibrary media library
+     * @param seratoBasePath serato base path
+     * @return the number of tracks added to the database
+     * @throws SeratoLibraryException if database V2 file can't be read or written
+     */
+    public static int writeToDatabase(MediaLibrary fsLibrary, String seratoBasePath) throws SeratoLibraryException {
+        File dbV2File = new File(seratoBasePath + "/database V2");
+        SeratoDatabaseV2File dbV2 = new SeratoDatabaseV2File();
+        dbV2.loadFrom(dbV2File);
+
+        int added = dbV2.getEntries().appendDatabaseTracks(fsLibrary.getAllTracks());
+        if (added > 0) {
+            dbV2.saveTo(dbV2File);
+        }
+        return added;
+    }
+
+    /**
+     * Writes tracks into the crate and remembers the crate in the manifest
+     *
+     * @param fsLibrary      media library the crate is built from
+     * @param seratoBasePath serato base path
+     * @param crateName      crate name
+     * @param all            all tracks of the crate
+     * @param removal        tracks to remove from the crate, or null to only add tracks
+     */
+    private void writeCrate(MediaLibrary fsLibrary, String seratoBasePath, String crateName, SortedSet<String> all,
+                            TrackRemoval removal) {
+        File[] crateFiles = getCrateFiles(seratoBasePath, crateName);
+        boolean updated = true;
         if (crateName.isEmpty()) {
             // this is a root crate that corresponds to everything
             // we don't really need to update it, as serato automatically updates its database V2 file
-        } else if (!all.isEmpty()) {
-            // update subcrates
-            {
-                File crateFile = new File(seratoBasePath + "/Subcrates/" + crateName + ".crate");
-                updateCrateFile(crateFile, all);
+        } else {
+            // update subcrates and crates (when mirroring, existing crates may have to be cleaned up)
+            for (File crateFile : crateFiles) {
+                if (!all.isEmpty() || removal != null && crateFile.isFile()) {
+                    updated &= updateCrateFile(crateFile, all, removal);
+                }
             }
+        }
 
-            // update crates
-            {
-                File crateFile = new File(seratoBasePath + "/Crates/" + crateName + ".crate");
-                updateCrateFile(crateFile, all);
+        // remember the state of crate files, but only if they are written successfully
+        if (manifest != null) {
+            if (updated) {
+                manifest.put(crateName, new SeratoCrateManifest.Entry(computeDigest(fsLibrary), getCrateFileStats(crateFiles),
+                        syncPath != null ? syncPath : ""));
+            } else {
+                manifest.remove(crateName);
             }
         }
-
-        return all;
     }
 
-    private void updateCrateFile(File crateFile, SortedSet<String> all) {
+    private boolean updateCrateFile(File crateFile, Collection<String> all, TrackRemoval removal) {
         SeratoCrateFile crate = new SeratoCrateFile();
         boolean loaded = false;
         if (crateFile.exists() && crateFile.isFile()) {
@@ -92,8 +456,23 @@ public class SeratoLibrary {
             }
         }
 
+        // remove tracks which don't belong to the crate anymore
+        int removed = 0;
+        if (removal != null) {
+            removed = crate.getEntries().removeTracks(removal.getRemovedTracks(crate.getEntries().getTracks()));
+            if (removed > 0 && !crate.getEntries().hasTracks() && all.isEmpty()) {
+                // nothing left in the crate
+                if (!crateFile.delete()) {
+                    Log.error("Can't delete crate " + crateFile.getName());
+                    return false;
+                }
+                cratesDeleted++;
+                return true;
+            }
+        }
+
         crateFile.getParentFile().mkdirs();
-        boolean modified = crate.getEntries().addTracks(all);
+        boolean modified = crate.getEntries().addTracks(all) || removed > 0;
         if (modified) {
             try {
                 crate.saveTo(crateFile);
@@ -104,10 +483,12 @@ public class SeratoLibrary {
                 }
             } catch (SeratoLibraryException e) {
                 Log.error("Can't write crate " + crateFile.getName() + ". " + e.getMessage());
+                return false;
             }
         } else {
             cratesIntact++;
         }
+        return true;
     }
 
     public int getCratesCreated() {
@@ -122,4 +503,12 @@ public class SeratoLibrary {
         return cratesIntact;
     }
 
+    public int getCratesSkipped() {
+        return cratesSkipped;
+    }
+
+    public int getCratesDeleted() {
+        return cratesDeleted;
+    }
+
 }
@@ -0,0 +1,305 @@
+package com.seratosync.db;
+
+import java.util.*;
+
+/**
+ * Compact in-memory index of serato library: every distinct track gets an integer id, database V2 membership
+ * is kept as a bitset over track ids, and every crate as a sorted array of track ids. An inverted index
+ * (crates of every track) is built on demand, so questions like "which crates overlap" can be answered
+ * without loading anything twice.
+ */
+public class SeratoLibraryIndex {
+
+    /**
+     * Two crates sharing tracks
+     */
+    public static class Overlap implements Comparable<Overlap> {
+        private final String crate1;
+        private final String crate2;
+        private final int shared;
+        private final double ratio;
+
+        private Overlap(String crate1, String crate2, int shared, double ratio) {
+            this.crate1 = crate1;
+            this.crate2 = crate2;
+            this.shared = shared;
+            this.ratio = ratio;
+        }
+
+        public String getCrate1() {
+            return crate1;
+        }
+
+        public String getCrate2() {
+            return crate2;
+        }
+
+        public int getShared() {
+            return shared;
+        }
+
+        /**
+         * Returns the share of tracks of the smaller crate which are also in the other one
+         *
+         * @return value between 0 and 1
+         */
+        public double getRatio() {
+            return ratio;
+        }
+
+        public int compareTo(Overlap that) {
+            // the most overlapping first, then the largest
+            if (this.ratio != that.ratio) {
+                return this.ratio > that.ratio ? -1 : 1;
+            }
+            if (this.shared != that.shared) {
+                return that.shared - this.shared;
+            }
+            int result = this.crate1.compareTo(that.crate1);
+            return result != 0 ? result : this.crate2.compareTo(that.crate2);
+        }
+    }
+
+    private static final int[] NO_TRACKS = new int[0];
+
+    // tracks by id, and the other way around
+    private final List<String> tracks = new ArrayList<String>();
+    private final Map<String, Integer> trackIds = new HashMap<String, Integer>();
+
+    // tracks registered in database V2
+    private final BitSet databaseTracks = new BitSet();
+
+    // crates by id, with sorted track ids of every crate
+    private final List<String> crates = new ArrayList<String>();
+    private final List<int[]> crateTracks = new ArrayList<int[]>();
+
+    // crates of every track, built on demand: crates of track t are trackCrates[trackCrateOffsets[t]..trackCrateOffsets[t + 1])
+    private int[] trackCrateOffsets;
+    private int[] trackCrates;
+
+    private int getTrackId(String track) {
+        Integer result = trackIds.get(track);
+        if (result == null) {
+            result = tracks.size();
+            tracks.add(track);
+            trackIds.put(track, result);
+        }
+        return result;
+    }
+
+    /**
+     * Adds tracks of database V2 file
+     *
+     * @param trackSeratoPaths track paths, as they are stored in serato files
+     */
+    public void addDatabaseTracks(Collection<String> trackSeratoPaths) {
+        for (String track : trackSeratoPaths) {
+            databaseTracks.set(getTrackId(track));
+        }
+    }
+
+    /**
+     * Adds a crate
+     *
+     * @param crateName        crate name
+     * @param trackSeratoPaths track paths, as they are stored in serato files
+     */
+    public void addCrate(String crateName, Collection<String> trackSeratoPaths) {
+        int[] ids = new int[trackSeratoPaths.size()];
+        int count = 0;
+        for (String track : trackSeratoPaths) {
+            ids[count++] = getTrackId(track);
+        }
+        Arrays.sort(ids, 0, count);
+
+        // drop duplicates
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || ids[unique - 1] != ids[i]) {
+                ids[unique++] = ids[i];
+            }
+        }
+
+        crates.add(crateName);
+        crateTracks.add(unique > 0 ? Arrays.copyOf(ids, unique) : NO_TRACKS);
+        trackCrateOffsets = null;
+        trackCrates = null;
+    }
+
+    public int getTrackCount() {
+        return tracks.size();
+    }
+
+    public int getDatabaseTrackCount() {
+        return databaseTracks.cardinality();
+    }
+
+    public int getCrateCount() {
+        return crates.size();
+    }
+
+    /**
+     * Returns tracks which are in at least one crate
+     *
+     * @return bitset of track ids
+     */
+    public BitSet getCratedTracks() {
+        BitSet result = new BitSet(tracks.size());
+        for (int[] ids : crateTracks) {
+            for (int id : ids) {
+                result.set(id);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns tracks of database V2 which are not in any crate
+     *
+     * @return track paths, in the order of database V2
+     */
+    public List<String> getTracksWithoutCrate() {
+        BitSet result = (BitSet) databaseTracks.clone();
+        result.andNot(getCratedTracks());
+        return getTracks(result);
+    }
+
+    /**
+     * Returns tracks which are in crates, but not in database V2
+     *
+     * @return track paths
+     */
+    public List<String> getTracksNotInDatabase() {
+        BitSet result = getCratedTracks();
+        result.andNot(databaseTracks);
+        return getTracks(result);
+    }
+
+    /**
+     * Returns tracks of database V2
+     *
+     * @return track paths, in the order of database V2
+     */
+    public List<String> getDatabaseTracks() {
+        return getTracks(databaseTracks);
+    }
+
+    private List<String> getTracks(BitSet ids) {
+        List<String> result = new ArrayList<String>(ids.cardinality());
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+            result.add(tracks.get(id));
+        }
+        return result;
+    }
+
+    /**
+     * Counts database V2 tracks by the folder they are located in, only taking the first levels of the path
+     *
+     * @param depth how many levels of the path to take
+     * @return the number of tracks by folder
+     */
+    public SortedMap<String, Integer> countDatabaseTracksByFolder(int depth) {
+        SortedMap<String, Integer> result = new TreeMap<String, Integer>();
+        for (int id = databaseTracks.nextSetBit(0); id >= 0; id = databaseTracks.nextSetBit(id + 1)) {
+            String folder = getFolder(tracks.get(id), depth);
+            Integer count = result.get(folder);
+            result.put(folder, count == null ? 1 : count + 1);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the first levels of the track's folder
+     *
+     * @param track track path, as it's stored in serato files
+     * @param depth how many levels to take
+     * @return folder, or an empty string if the track is in the root
+     */
+    public static String getFolder(String track, int depth) {
+        int end = -1;
+        for (int level = 0; level < depth; level++) {
+            int next = track.indexOf('/', end + 1);
+            if (next < 0) {
+                break;
+            }
+            end = next;
+        }
+        return end > 0 ? track.substring(0, end) : "";
+    }
+
+    private void buildTrackCrates() {
+        if (trackCrates != null) {
+            return;
+        }
+
+        // count crates of every track, then fill them in (crate ids of every track are ordered)
+        int[] offsets = new int[tracks.size() + 1];
+        for (int[] ids : crateTracks) {
+            for (int id : ids) {
+                offsets[id + 1]++;
+            }
+        }
+        for (int t = 0; t < tracks.size(); t++) {
+            offsets[t + 1] += offsets[t];
+        }
+        int[] fill = Arrays.copyOf(offsets, tracks.size());
+        int[] result = new int[offsets[tracks.size()]];
+        for (int c = 0; c < crateTracks.size(); c++) {
+            for (int id : crateTracks.get(c)) {
+                result[fill[id]++] = c;
+            }
+        }
+
+        trackCrateOffsets = offsets;
+        trackCrates = result;
+    }
+
+    /**
+     * Finds pairs of crates which share most of their tracks
+     *
+     * @param minRatio share of tracks of the smaller crate which have to be in the other crate
+     * @param limit    maximum number of pairs to return
+     * @return pairs of crates, the most overlapping first
+     */
+    public List<Overlap> findOverlappingCrates(double minRatio, int limit) {
+        buildTrackCrates();
+
+        // keep the best pairs only, the worst one on top
+        PriorityQueue<Overlap> best = new PriorityQueue<Overlap>(Math.max(1, limit), Collections.reverseOrder());
+
+        // for every crate, count shared tracks with the crates after it, using the crates of its tracks
+        int[] shared = new int[crates.size()];
+        int[] touched = new int[crates.size()];
+        for (int c1 = 0; c1 < crates.size(); c1++) {
+            int touchedCount = 0;
+            for (int id : crateTracks.get(c1)) {
+                for (int k = trackCrateOffsets[id]; k < trackCrateOffsets[id + 1]; k++) {
+                    int c2 = trackCrates[k];
+                    if (c2 > c1) {
+                        if (shared[c2]++ == 0) {
+                            touched[touchedCount++] = c2;
+                        }
+                    }
+                }
+            }
+
+            for (int i = 0; i < touchedCount; i++) {
+                int c2 = touched[i];
+                int smaller = Math.min(crateTracks.get(c1).length, crateTracks.get(c2).length);
+                double ratio = (double) shared[c2] / smaller;
+                if (ratio >= minRatio) {
+                    best.add(new Overlap(crates.get(c1), crates.get(c2), shared[c2], ratio));
+                    if (best.size() > limit) {
+                        best.poll();
+                    }
+                }
+                shared[c2] = 0;
+            }
+        }
+
+        List<Overlap> result = new ArrayList<Overlap>(best);
+        Collections.sort(result);
+        return result;
+    }
+
+}
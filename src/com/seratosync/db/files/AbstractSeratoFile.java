@@ -3,6 +3,7 @@ package com.seratosync.db.files;
 import com.seratosync.db.SeratoLibraryException;
 import com.seratosync.io.SeratoInputStream;
 import com.seratosync.io.SeratoOutputStream;
+import com.seratosync.log.Trace;
 
 import java.io.*;
 
@@ -23,6 +24,15 @@ public abstract class AbstractSeratoFile {
      *          if something went wrong during reading
      */
     public void loadFrom(File inFile) throws SeratoLibraryException {
+        Trace.Event event = Trace.begin(Trace.LOAD, inFile.getPath());
+        try {
+            load(inFile);
+        } finally {
+            event.bytes(Trace.isRecording() ? inFile.length() : 0).end();
+        }
+    }
+
+    private void load(File inFile) throws SeratoLibraryException {
 
         // Create input stream to read serato crate file
         SeratoInputStream in;
@@ -44,37 +54,41 @@ public abstract class AbstractSeratoFile {
     }
 
     /**
-     * Writes itself into a stream
+     * Writes itself into a file
      *
-     * @param outStream print stream to write the result to
+     * @param outFile output file
      * @throws com.seratosync.db.SeratoLibraryException
      *          if something went wrong during writing
      */
-    private void saveTo(OutputStream outStream) throws SeratoLibraryException {
-        SeratoOutputStream out = new SeratoOutputStream(outStream);
-
-        writeTo(out);
-
+    public void saveTo(File outFile) throws SeratoLibraryException {
+        Trace.Event event = Trace.begin(Trace.SAVE, outFile.getPath());
         try {
-            out.close();
-        } catch (IOException e) {
-            // do nothing
+            save(outFile);
+        } finally {
+            event.bytes(Trace.isRecording() ? outFile.length() : 0).end();
         }
     }
 
-    /**
-     * Writes itself into a file
-     *
-     * @param outFile output file
-     * @throws com.seratosync.db.SeratoLibraryException
-     *          if something went wrong during writing
-     */
-    public void saveTo(File outFile) throws SeratoLibraryException {
+    private void save(File outFile) throws SeratoLibraryException {
+        SeratoOutputStream out;
         try {
-            saveTo(new FileOutputStream(outFile));
+            out = new SeratoOutputStream(new FileOutputStream(outFile).getChannel());
         } catch (FileNotFoundException e) {
             throw new SeratoLibraryException(e);
         }
+
+        try {
+            writeTo(out);
+            out.flush();
+        } catch (IOException e) {
+            throw new SeratoLibraryException(e);
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // do nothing
+            }
+        }
     }
 
 }
@@ -0,0 +1,275 @@
+package com.seratosync.db.files;
+
+import com.seratosync.db.SeratoLibraryException;
+import com.seratosync.db.files.entries.SeratoFileEntry;
+import com.seratosync.filesystem.FileDirectoryUtils;
+import com.seratosync.io.SeratoEofException;
+import com.seratosync.io.SeratoInputStream;
+import com.seratosync.io.SeratoOutputStream;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Replaces path prefixes of all tracks in a serato file (crate or database V2), e.g. when music is moved to
+ * another drive or folder. Files are streamed record by record and never loaded as a whole. Only path sections
+ * ('ptrk' or 'pfil') of track records are patched at the byte level, along with the length of the enclosing
+ * record, everything else is copied as is. If a track ends up at a path which the file already has, the entry
+ * with the old path is dropped, so the file doesn't get duplicate entries.
+ */
+public class SeratoPathRewriter {
+
+    // output of dry runs
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    // prefixes in UTF-16BE, the longest ones first, so the most specific mapping wins
+    private final byte[][] from;
+    private final byte[][] to;
+
+    // whether some tracks are moved to the drive root, so any path in the file may clash with the rewritten ones
+    private final boolean toRoot;
+
+    /**
+     * State of a single pass over a file
+     */
+    private static class Pass {
+        // paths of the tracks which are not rewritten, but may clash with the rewritten ones
+        private final Set<String> kept;
+
+        // rewritten paths which were written out
+        private final Set<String> targets = new HashSet<String>();
+
+        private int rewritten = 0;
+
+        // whether a rewritten path turned up later in the file, among the tracks which are not rewritten
+        private boolean clash = false;
+
+        private Pass(Set<String> kept) {
+            this.kept = kept;
+        }
+    }
+
+    /**
+     * Creates a rewriter
+     *
+     * @param prefixes new path prefixes by old path prefixes, as they are stored in serato files (relative to drive root),
+     *                 old prefixes must not be empty
+     */
+    public SeratoPathRewriter(Map<String, String> prefixes) {
+        List<String> sorted = new ArrayList<String>(prefixes.keySet());
+        Collections.sort(sorted, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return b.length() - a.length();
+            }
+        });
+
+        from = new byte[sorted.size()][];
+        to = new byte[sorted.size()][];
+        boolean root = false;
+        for (int i = 0; i < sorted.size(); i++) {
+            from[i] = encode(trimPrefix(sorted.get(i)));
+            to[i] = encode(trimPrefix(prefixes.get(sorted.get(i))));
+            root |= to[i].length == 0;
+        }
+        toRoot = root;
+    }
+
+    private static String trimPrefix(String prefix) {
+        // prefixes match whole folder names, so the trailing slash doesn't matter
+        String result = prefix.replace('\\', '/');
+        while (result.startsWith("/")) {
+            result = result.substring(1);
+        }
+        while (result.endsWith("/")) {
+            result = result.substring(0, result.length() - 1);
+        }
+        return result;
+    }
+
+    private static byte[] encode(String value) {
+        try {
+            return value.getBytes("UTF-16BE");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Rewrites paths in the file. The result is written into a temporary file first, and it only replaces
+     * the original one if anything was changed
+     *
+     * @param file   serato file
+     * @param dryRun if true, only counts the tracks which would be rewritten
+     * @return the number of rewritten track paths
+     * @throws SeratoLibraryException if the file can't be read or written
+     */
+    public int rewrite(File file, boolean dryRun) throws SeratoLibraryException {
+        // dry run doesn't write anything
+        File tmpFile = dryRun ? null : new File(file.getPath() + ".tmp");
+        Pass pass = rewrite(file, tmpFile, new Pass(new HashSet<String>()));
+        if (pass.clash) {
+            // tracks which have to be dropped are known only now, so once again
+            pass = rewrite(file, tmpFile, new Pass(pass.kept));
+        }
+
+        if (dryRun) {
+            return pass.rewritten;
+        }
+        if (pass.rewritten == 0) {
+            tmpFile.delete();
+        } else if (!FileDirectoryUtils.replaceFile(tmpFile, file)) {
+            throw new SeratoLibraryException("Can't replace " + file.getName() + " with the rewritten file");
+        }
+        return pass.rewritten;
+    }
+
+    /**
+     * @param tmpFile file to write the result into, or null to discard it
+     */
+    private Pass rewrite(File file, File tmpFile, Pass pass) throws SeratoLibraryException {
+        try {
+            SeratoInputStream in = new SeratoInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            try {
+                SeratoOutputStream out = tmpFile != null ? new SeratoOutputStream(new FileOutputStream(tmpFile).getChannel()) : new SeratoOutputStream(DISCARD);
+                try {
+                    rewrite(in, out, pass);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            delete(tmpFile);
+            throw new SeratoLibraryException(e);
+        } catch (SeratoLibraryException e) {
+            delete(tmpFile);
+            throw e;
+        }
+        return pass;
+    }
+
+    private static void delete(File tmpFile) {
+        if (tmpFile != null) {
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Copies all records from input to output, rewriting paths of track records
+     *
+     * @param in   serato input stream, positioned at the first record (header is a record as well)
+     * @param out  serato output stream
+     * @param pass state of the pass
+     * @throws SeratoLibraryException in case of I/O exception or a truncated record
+     */
+    private void rewrite(SeratoInputStream in, SeratoOutputStream out, Pass pass) throws SeratoLibraryException {
+        for (; ;) {
+            String name;
+            try {
+                name = in.readStringUTF8(4);
+            } catch (SeratoEofException e) {
+                break;
+            }
+            byte[] value;
+            try {
+                value = in.readBytes(in.readIntegerValue());
+            } catch (SeratoEofException e) {
+                throw new SeratoLibraryException("Unexpected end of file in '" + name + "' record");
+            }
+
+            // crate files and database V2 file contain 'otrk' records for tracks
+            if ("otrk".equals(name)) {
+                value = rewriteTrack(value, pass);
+                if (value == null) {
+                    // the track is already there at the new path
+                    continue;
+                }
+            }
+
+            try {
+                out.writeBytes(name);
+                out.writeInt(value.length);
+                out.write(value);
+            } catch (IOException e) {
+                throw new SeratoLibraryException(e);
+            }
+        }
+    }
+
+    /**
+     * Replaces path prefix in the track record
+     *
+     * @param value track record
+     * @param pass  state of the pass
+     * @return new track record, the same one if its path doesn't match any prefix, or null if the track should be
+     *         dropped as the file already has the new path
+     */
+    private byte[] rewriteTrack(byte[] value, Pass pass) {
+        int pos = SeratoFileEntry.findPathSection(value);
+        if (pos < 0) {
+            return value;
+        }
+        int length = SeratoFileEntry.getSectionLength(value, pos);
+        int rule = findPrefix(from, value, pos + 8, length);
+        if (rule < 0) {
+            if (toRoot || findPrefix(to, value, pos + 8, length) >= 0) {
+                String path = decode(value, pos + 8, length);
+                pass.kept.add(path);
+                pass.clash |= pass.targets.contains(path);
+            }
+            return value;
+        }
+
+        // moving to the drive root, the path must not start with a slash
+        int cut = from[rule].length;
+        if (to[rule].length == 0 && cut < length) {
+            cut += 2;
+        }
+        byte[] result = SeratoFileEntry.replacePath(value, pos, cut, to[rule]);
+        pass.rewritten++;
+
+        String target = decode(result, pos + 8, SeratoFileEntry.getSectionLength(result, pos));
+        if (pass.kept.contains(target) || !pass.targets.add(target)) {
+            return null;
+        }
+        return result;
+    }
+
+    private static String decode(byte[] data, int start, int length) {
+        try {
+            return new String(data, start, length, "UTF-16BE");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int findPrefix(byte[][] prefixes, byte[] data, int start, int length) {
+        for (int i = 0; i < prefixes.length; i++) {
+            byte[] prefix = prefixes[i];
+            if (prefix.length > length) {
+                continue;
+            }
+            boolean matches = true;
+            for (int k = 0; k < prefix.length && matches; k++) {
+                matches = data[start + k] == prefix[k];
+            }
+
+            // the whole folder name has to match, 'Music/Old' is not a prefix of 'Music/Oldies/track.mp3'
+            int next = start + prefix.length;
+            if (matches && (prefix.length == length || length - prefix.length >= 2 && data[next] == 0 && data[next + 1] == '/')) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
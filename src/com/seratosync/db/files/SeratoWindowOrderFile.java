@@ -2,10 +2,10 @@ package com.seratosync.db.files;
 
 import com.seratosync.db.SeratoLibraryException;
 import com.seratosync.actions.PruneSeratoDatabaseAction;
-import com.seratosync.io.SeratoEofException;
 import com.seratosync.io.SeratoInputStream;
 import com.seratosync.io.SeratoOutputStream;
 
+import java.io.UnsupportedEncodingException;
 import java.util.*;
 
 public class SeratoWindowOrderFile extends AbstractSeratoFile {
@@ -14,21 +14,31 @@ public class SeratoWindowOrderFile extends AbstractSeratoFile {
     private static final String HEADER_END = "[end record]";
     private static final String ENTRY_START = "[crate]";
 
+    // crate names in the window order, plus a hash index over them for fast membership checks
     private List<String> entries = new ArrayList<String>();
+    private Set<String> index = new HashSet<String>();
+
+    // crate names in the order they were loaded from the file
+    private List<String> loaded = Collections.emptyList();
 
     public SeratoWindowOrderFile() {
     }
 
     @Override
     public void readFrom(SeratoInputStream in) throws SeratoLibraryException {
+        // decode the entire file at once, lines are separated by UTF-16 new line characters
+        String content;
+        try {
+            content = new String(in.readRemainingBytes(), "UTF-16");
+        } catch (UnsupportedEncodingException e) {
+            throw new SeratoLibraryException(e);
+        }
+
+        int start = 0;
+        int end = content.indexOf('\n');
         {
             // start
-            String header;
-            try {
-                header = in.readLineUTF16();
-            } catch (SeratoEofException e) {
-                throw new SeratoLibraryException(e);
-            }
+            String header = end >= 0 ? content.substring(0, end) : content;
             if (!HEADER_START.equals(header)) {
                 throw new SeratoLibraryException("Window order file doesn't start with " + HEADER_START);
             }
@@ -36,22 +46,23 @@ public class SeratoWindowOrderFile extends AbstractSeratoFile {
 
         for (; ; ) {
             // is it the end
-            String line;
-            try {
-                line = in.readLineUTF16();
-            } catch (SeratoEofException e) {
-                throw new SeratoLibraryException(e);
+            if (end < 0) {
+                throw new SeratoLibraryException("Window order file doesn't end with " + HEADER_END);
             }
+            start = end + 1;
+            end = content.indexOf('\n', start);
+            String line = end >= 0 ? content.substring(start, end) : content.substring(start);
             if (HEADER_END.equals(line)) {
                 break;
             }
 
             // process line
             if (line.startsWith(ENTRY_START)) {
-                String entry = line.substring(ENTRY_START.length());
-                entries.add(entry);
+                add(line.substring(ENTRY_START.length()));
             }
         }
+
+        loaded = new ArrayList<String>(entries);
     }
 
     @Override
@@ -63,14 +74,27 @@ public class SeratoWindowOrderFile extends AbstractSeratoFile {
         out.writeLineUTF16(HEADER_END);
     }
 
+    public List<String> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
     public void add(String crateName) {
-        if (!entries.contains(crateName)) {
+        if (index.add(crateName)) {
             entries.add(crateName);
         }
     }
 
     public void reorder(final PruneSeratoDatabaseAction.CrateFileNameAdvancedComparator crateFileNameAdvancedComparator) {
-        Collections.sort(entries, crateFileNameAdvancedComparator);
+        crateFileNameAdvancedComparator.sort(entries);
+    }
+
+    /**
+     * Returns whether the crate order differs from the one which was loaded from the file
+     *
+     * @return true if the file needs to be written, false otherwise
+     */
+    public boolean isModified() {
+        return !entries.equals(loaded);
     }
 
 }
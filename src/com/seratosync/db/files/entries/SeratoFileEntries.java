@@ -2,21 +2,32 @@ package com.seratosync.db.files.entries;
 
 import com.seratosync.db.SeratoLibraryException;
 import com.seratosync.filesystem.Drive;
+import com.seratosync.filesystem.DriveAccess;
+import com.seratosync.filesystem.DriveUnavailableException;
 import com.seratosync.filesystem.FileDirectoryUtils;
+import com.seratosync.filesystem.UnicodeNames;
 import com.seratosync.log.Log;
 import com.seratosync.io.SeratoEofException;
 import com.seratosync.io.SeratoInputStream;
 import com.seratosync.io.SeratoOutputStream;
-import com.seratosync.io.SeratoOutputStreamDataCollector;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.*;
 
 public class SeratoFileEntries {
 
     // raw file entries
-    private LinkedList<SeratoFileEntry> rawData = new LinkedList<SeratoFileEntry>();
+    private ArrayList<SeratoFileEntry> rawData = new ArrayList<SeratoFileEntry>();
+
+    // index of track entries, track path -> number of entries with this path (crates may contain duplicates)
+    private Map<String, Integer> trackIndex = new HashMap<String, Integer>();
+
+    // normalized key -> number of entries, only for the track paths which are not their own keys (i.e. NFD paths
+    // written on mac os), so paths differing in unicode normalization only are recognized as the same track
+    private Map<String, Integer> keyIndex = new HashMap<String, Integer>();
+
+    // number of track entries, including the ones we were unable to extract track path from
+    private int trackEntries = 0;
 
     /**
      * Creates an empty serato tracks section
@@ -36,6 +47,7 @@ public class SeratoFileEntries {
             try {
                 SeratoFileEntry entry = SeratoFileEntry.readFrom(in);
                 rawData.add(entry);
+                indexAdd(entry);
             } catch (SeratoEofException e) {
                 break;
             }
@@ -55,135 +67,322 @@ public class SeratoFileEntries {
         }
     }
 
-    public int removeMissingTracks(Drive drive) {
-        int removed = 0;
-
-        Iterator<SeratoFileEntry> it = rawData.iterator();
-        for (; it.hasNext();) {
-            SeratoFileEntry entry = it.next();
+    /**
+     * Returns track path of the entry, if it's a track entry
+     *
+     * @param entry serato file entry
+     * @return track path, or null if it's not a track or track path can't be extracted
+     */
+    private static String getIndexedTrackName(SeratoFileEntry entry) {
+        if (!entry.isTrack()) {
+            return null;
+        }
+        try {
+            return entry.getTrackName();
+        } catch (SeratoLibraryException e) {
+            return null;
+        }
+    }
 
-            // skip all non-track files
-            if (!entry.isTrack()) {
-                continue;
+    private void indexAdd(SeratoFileEntry entry) {
+        if (entry.isTrack()) {
+            trackEntries++;
+        }
+        String track = getIndexedTrackName(entry);
+        if (track != null) {
+            increment(trackIndex, track);
+            String key = UnicodeNames.key(track);
+            if (key != track) {
+                increment(keyIndex, key);
             }
+        }
+    }
 
-            // retrieve track name
-            String track;
-            try {
-                track = entry.getTrackName();
-            } catch (SeratoLibraryException e) {
-                Log.error(e.getMessage());
-                continue;
+    private void indexRemove(SeratoFileEntry entry) {
+        if (entry.isTrack()) {
+            trackEntries--;
+        }
+        String track = getIndexedTrackName(entry);
+        if (track != null) {
+            decrement(trackIndex, track);
+            String key = UnicodeNames.key(track);
+            if (key != track) {
+                decrement(keyIndex, key);
             }
+        }
+    }
+
+    private static void increment(Map<String, Integer> index, String track) {
+        Integer count = index.get(track);
+        index.put(track, count == null ? 1 : count + 1);
+    }
 
-            // construct the entire path, including a drive
-            String path = drive.getPrefix() + FileDirectoryUtils.convertFromFileToSeratoFile(track);
+    private static void decrement(Map<String, Integer> index, String track) {
+        Integer count = index.get(track);
+        if (count == null || count <= 1) {
+            index.remove(track);
+        } else {
+            index.put(track, count - 1);
+        }
+    }
+
+    public int removeMissingTracks(Drive drive) throws DriveUnavailableException {
+        return removeMissingTracks(drive, new HashMap<String, Boolean>());
+    }
 
-            // check for existence
-            File file = new File(path);
-            if (!file.exists() || !file.isFile()) {
-                Log.debug("Removing: " + path + " (" + track + ")");
-                it.remove();
+    /**
+     * Removes tracks which don't exist on the drive. If the drive doesn't respond, nothing is removed
+     *
+     * @param drive drive where the tracks are located
+     * @param checkedTracks results of existence checks by track path, shared between files (and threads)
+     * @return the number of removed tracks
+     * @throws DriveUnavailableException if the drive doesn't respond, the entries are left intact then
+     */
+    public int removeMissingTracks(Drive drive, Map<String, Boolean> checkedTracks) throws DriveUnavailableException {
+        // find out what's missing first, so nothing is removed if the drive stops responding half way
+        DriveAccess access = DriveAccess.forDrive(drive);
+        boolean[] missing = new boolean[rawData.size()];
+        for (int i = 0; i < missing.length; i++) {
+            SeratoFileEntry entry = rawData.get(i);
+            missing[i] = entry.isTrack() && isMissing(entry, drive, access, checkedTracks);
+        }
+
+        // compact the list in place, keeping the entries which are not removed
+        int removed = 0;
+        int kept = 0;
+        for (int i = 0; i < missing.length; i++) {
+            SeratoFileEntry entry = rawData.get(i);
+            if (missing[i]) {
+                indexRemove(entry);
                 removed++;
+            } else {
+                rawData.set(kept++, entry);
             }
         }
+        truncate(kept);
         return removed;
     }
 
-    public boolean hasTracks() {
-        for (SeratoFileEntry entry : rawData)
-            if (entry.isTrack()) {
-                return true;
+    private static boolean isMissing(SeratoFileEntry entry, Drive drive, DriveAccess access, Map<String, Boolean> checkedTracks) throws DriveUnavailableException {
+        // retrieve track name
+        String track;
+        try {
+            track = entry.getTrackName();
+        } catch (SeratoLibraryException e) {
+            Log.error(e.getMessage());
+            return false;
+        }
+
+        // construct the entire path, including a drive
+        String path = drive.getPrefix() + FileDirectoryUtils.convertFromFileToSeratoFile(track);
+
+        // check for existence, unless it was already checked (a drive which doesn't respond is never cached as missing).
+        // File systems which don't normalize names may have the file in another unicode form than the crate
+        Boolean exists = checkedTracks.get(path);
+        if (exists == null) {
+            exists = access.isFile(new File(path));
+            for (Iterator<String> variants = UnicodeNames.getVariants(path).iterator(); !exists && variants.hasNext(); ) {
+                exists = access.isFile(new File(variants.next()));
             }
+            checkedTracks.put(path, exists);
+        }
+        if (!exists) {
+            Log.debug("Removing: " + path + " (" + track + ")");
+            return true;
+        }
         return false;
     }
 
+    private void truncate(int size) {
+        rawData.subList(size, rawData.size()).clear();
+    }
+
+    public boolean hasTracks() {
+        return trackEntries > 0;
+    }
+
     /**
-     * xxx...
+     * Returns the number of distinct tracks
      *
-     * @param tracks
-     * @return whether the crate was modified, or not
+     * @return number of tracks
      */
-    public boolean addTracks(Collection<String> tracks) {
-        // hash set of track names for optimization
-        Set<String> existingTrackNames = new HashSet<String>();
-        for (SeratoFileEntry entry : rawData)
-            if (entry.isTrack()) {
-                try {
-                    existingTrackNames.add(entry.getTrackName());
-                } catch (SeratoLibraryException e) {
-                    // do nothing
-                }
-            }
+    public int trackCount() {
+        return trackIndex.size();
+    }
+
+    /**
+     * Checks whether the track is present, regardless of unicode normalization of its path
+     *
+     * @param trackSeratoPath track path, as it's stored in serato files
+     * @return true if there is at least one entry for this track
+     */
+    public boolean containsTrack(String trackSeratoPath) {
+        if (trackIndex.containsKey(trackSeratoPath)) {
+            return true;
+        }
+        String key = UnicodeNames.key(trackSeratoPath);
+        return key != trackSeratoPath && trackIndex.containsKey(key) || keyIndex.containsKey(key);
+    }
 
-        // find a place to insert tracks (well, may be we'll start adding them to the end)
-        ListIterator<SeratoFileEntry> it = rawData.listIterator();
-        while (it.hasNext()) {
-            SeratoFileEntry entry = it.next();
+    /**
+     * Returns distinct tracks
+     *
+     * @return track paths, as they are stored in serato files
+     */
+    public Set<String> getTracks() {
+        return Collections.unmodifiableSet(trackIndex.keySet());
+    }
 
-            // if the next element is track, let's stop here (that's the right place, we'll be inserting to the beginning)
-            if (entry.isTrack()) {
-                break;
+    /**
+     * Removes all entries of the given track
+     *
+     * @param trackSeratoPath track path, as it's stored in serato files
+     * @return whether anything was removed
+     */
+    public boolean removeTrack(String trackSeratoPath) {
+        if (!containsTrack(trackSeratoPath)) {
+            return false;
+        }
+        return filterTracks(Collections.singleton(trackSeratoPath), false) > 0;
+    }
+
+    /**
+     * Removes all tracks which are not in the given set
+     *
+     * @param trackSeratoPaths track paths to keep, as they are stored in serato files
+     * @return the number of removed entries
+     */
+    public int retainTracks(Set<String> trackSeratoPaths) {
+        return filterTracks(trackSeratoPaths, true);
+    }
+
+    /**
+     * Removes all entries of the given tracks
+     *
+     * @param trackSeratoPaths track paths to remove, as they are stored in serato files
+     * @return the number of removed entries
+     */
+    public int removeTracks(Set<String> trackSeratoPaths) {
+        if (trackSeratoPaths.isEmpty()) {
+            return 0;
+        }
+        return filterTracks(trackSeratoPaths, false);
+    }
+
+    private int filterTracks(Set<String> trackSeratoPaths, boolean keep) {
+        int removed = 0;
+        int kept = 0;
+        for (SeratoFileEntry entry : rawData) {
+            String track = getIndexedTrackName(entry);
+            boolean drop = track != null && trackSeratoPaths.contains(track) != keep;
+            if (drop) {
+                indexRemove(entry);
+                removed++;
+            } else {
+                rawData.set(kept++, entry);
             }
         }
+        truncate(kept);
+        return removed;
+    }
 
-        boolean result = false;
+    /**
+     * Points track entries to new paths, keeping everything else serato knows about them. If the new path
+     * is already there, the entry with the old path is removed instead
+     *
+     * @param moves new track paths by old track paths, as they are stored in serato files
+     * @return the number of relocated entries
+     * @throws SeratoLibraryException if path can't be changed
+     */
+    public int relocateTracks(Map<String, String> moves) throws SeratoLibraryException {
+        int relocated = 0;
+        int kept = 0;
+        for (SeratoFileEntry entry : rawData) {
+            String track = getIndexedTrackName(entry);
+            String target = track != null ? moves.get(track) : null;
+            if (target != null) {
+                indexRemove(entry);
+                relocated++;
+                if (containsTrack(target)) {
+                    continue;
+                }
+                entry = entry.withTrackName(target);
+                indexAdd(entry);
+            }
+            rawData.set(kept++, entry);
+        }
+        truncate(kept);
+        return relocated;
+    }
+
+    /**
+     * Adds tracks which are not there yet. New tracks are inserted after the first existing track,
+     * in the same order as they are given
+     *
+     * @param tracks track names with absolute paths
+     * @return whether the crate was modified, or not
+     */
+    public boolean addTracks(Collection<String> tracks) {
+        // a single encoder with a reusable buffer for all new track entries
+        SeratoTrackEntryEncoder encoder = new SeratoTrackEntryEncoder();
+
+        List<SeratoFileEntry> added = new ArrayList<SeratoFileEntry>();
         for (String trackRaw : tracks) {
             // convert track name to serato path
             String trackSeratoPath = FileDirectoryUtils.convertFromFileToSeratoFile(trackRaw);
 
             // don't add track if it's already there
-            if (existingTrackNames.contains(trackSeratoPath)) {
+            if (containsTrack(trackSeratoPath)) {
                 continue;
             }
 
             // create track entry
-            SeratoFileEntry entry = createTrackEntry(trackSeratoPath);
+            SeratoFileEntry entry = encoder.createTrackEntry(trackSeratoPath);
+            indexAdd(entry);
+            added.add(entry);
+        }
 
-            // insert track entry into the appropriate place
-            it.add(entry);
+        if (added.isEmpty()) {
+            return false;
+        }
 
-            // ok, we have made a modification by adding a track
-            result = true;
+        // find a place to insert tracks (right after the first track, or to the end if there are no tracks)
+        int position = 0;
+        while (position < rawData.size()) {
+            if (rawData.get(position++).isTrack()) {
+                break;
+            }
         }
 
-        return result;
+        // insert all track entries at once, so existing entries are shifted only once
+        rawData.addAll(position, added);
+
+        // ok, we have made a modification by adding tracks
+        return true;
     }
 
     /**
-     * Creates default raw data for track entry in the crate file
+     * Appends minimal database V2 records for tracks which are not there yet
      *
-     * @param trackSeratoPath track path
-     * @return serato file entry to write into the crate file
+     * @param tracks track names with absolute paths
+     * @return the number of added tracks
      */
-    private SeratoFileEntry createTrackEntry(final String trackSeratoPath) {
-        // create track entry
-        byte[] data;
-        try {
-            data = new SeratoOutputStreamDataCollector() {
-                @Override
-                public void write() throws SeratoLibraryException {
-                    try {
-                        // ptrk as string
-                        getStream().writeBytes("ptrk");
-
-                        // likely all these 4 bytes is a length of the track name in UTF 16
-                        getStream().writeInt(trackSeratoPath.length() * 2);
-
-                        // track name
-                        getStream().writeUTF16(trackSeratoPath);
-                    } catch (IOException e) {
-                        throw new SeratoLibraryException(e);
-                    }
-                }
-            }.collect();
-        } catch (SeratoLibraryException e) {
-            Log.error("Failed to serialize track name: " + trackSeratoPath);
-            return null;
-        }
+    public int appendDatabaseTracks(Collection<String> tracks) {
+        SeratoTrackEntryEncoder encoder = new SeratoTrackEntryEncoder();
 
-        // add track entry
-        return new SeratoFileEntry("otrk", data);
+        int added = 0;
+        for (String trackRaw : tracks) {
+            String trackSeratoPath = FileDirectoryUtils.convertFromFileToSeratoFile(trackRaw);
+            if (containsTrack(trackSeratoPath)) {
+                continue;
+            }
+
+            SeratoFileEntry entry = encoder.createDatabaseTrackEntry(trackSeratoPath);
+            indexAdd(entry);
+            rawData.add(entry);
+            added++;
+        }
+        return added;
     }
 
 }
@@ -14,6 +14,9 @@ public class SeratoFileEntry {
     private String name;
     private byte[] value;
 
+    // track name, extracted on demand
+    private String trackName;
+
     public SeratoFileEntry(String name, byte[] value) {
         this.name = name;
         this.value = value;
@@ -33,6 +36,13 @@ public class SeratoFileEntry {
     }
 
     public String getTrackName() throws SeratoLibraryException {
+        if (trackName == null) {
+            trackName = extractTrackName();
+        }
+        return trackName;
+    }
+
+    private String extractTrackName() throws SeratoLibraryException {
         SeratoInputStream in = new SeratoInputStream(new ByteArrayInputStream(value));
         for (; ;) {
             try {
@@ -54,6 +64,88 @@ public class SeratoFileEntry {
         }
     }
 
+    /**
+     * Creates a copy of the track entry pointing to another path. Only the path section ('ptrk' or 'pfil')
+     * is replaced, everything else serato knows about the track is kept as is
+     *
+     * @param trackSeratoPath new track path, as it's stored in serato files
+     * @return track entry
+     * @throws SeratoLibraryException if there is no path section in the entry
+     */
+    public SeratoFileEntry withTrackName(String trackSeratoPath) throws SeratoLibraryException {
+        int pos = findPathSection(value);
+        if (pos < 0) {
+            throw new SeratoLibraryException("Can't change file name of serato track record because 'ptrk' or 'pfil' sections not found");
+        }
+        byte[] path;
+        try {
+            path = trackSeratoPath.getBytes("UTF-16BE");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        SeratoFileEntry entry = new SeratoFileEntry(name, replacePath(value, pos, getSectionLength(value, pos), path));
+        entry.trackName = trackSeratoPath;
+        return entry;
+    }
+
+    /**
+     * Finds the path section ('ptrk' for crates, 'pfil' for database V2) in the value of a track record
+     *
+     * @param value track record
+     * @return position of the section, or -1 if there is no path section or the record is malformed
+     */
+    public static int findPathSection(byte[] value) {
+        for (int pos = 0; pos + 8 <= value.length; ) {
+            int length = getSectionLength(value, pos);
+            if (length < 0 || length > value.length - pos - 8) {
+                break;
+            }
+            if (value[pos] == 'p' && (value[pos + 1] == 't' && value[pos + 2] == 'r' && value[pos + 3] == 'k'
+                    || value[pos + 1] == 'f' && value[pos + 2] == 'i' && value[pos + 3] == 'l')) {
+                return pos;
+            }
+            pos += 8 + length;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns length of the section data, which follows the section name and the length itself
+     *
+     * @param value track record
+     * @param pos   position of the section
+     * @return length in bytes
+     */
+    public static int getSectionLength(byte[] value, int pos) {
+        return (value[pos + 4] & 0xFF) << 24 | (value[pos + 5] & 0xFF) << 16 | (value[pos + 6] & 0xFF) << 8 | value[pos + 7] & 0xFF;
+    }
+
+    /**
+     * Replaces the beginning of the path in the path section, everything else is copied as is
+     *
+     * @param value       track record
+     * @param pos         position of the path section
+     * @param cut         how many bytes of the path are replaced (the whole path, if it's the length of the section)
+     * @param replacement new beginning of the path, in UTF-16BE
+     * @return new track record
+     */
+    public static byte[] replacePath(byte[] value, int pos, int cut, byte[] replacement) {
+        int delta = replacement.length - cut;
+        int length = getSectionLength(value, pos) + delta;
+        byte[] result = new byte[value.length + delta];
+
+        // everything up to the path, new length, new beginning of the path, the rest of the path and of the sections
+        System.arraycopy(value, 0, result, 0, pos + 4);
+        result[pos + 4] = (byte) (length >>> 24);
+        result[pos + 5] = (byte) (length >>> 16);
+        result[pos + 6] = (byte) (length >>> 8);
+        result[pos + 7] = (byte) length;
+        System.arraycopy(replacement, 0, result, pos + 8, replacement.length);
+        int rest = pos + 8 + cut;
+        System.arraycopy(value, rest, result, rest + delta, value.length - rest);
+        return result;
+    }
+
     public static SeratoFileEntry readFrom(SeratoInputStream in) throws SeratoLibraryException, SeratoEofException {
         String name = in.readStringUTF8(4);
         try {
@@ -0,0 +1,93 @@
+package com.seratosync.db.files.entries;
+
+import java.util.Arrays;
+
+/**
+ * Encodes 'otrk' records for crate and database V2 files. A single growable buffer is reused for every record,
+ * so adding thousands of tracks doesn't create a stream object per track.
+ */
+public class SeratoTrackEntryEncoder {
+
+    // track path in crate files
+    private static final byte[] PTRK = {'p', 't', 'r', 'k'};
+
+    // track path in database V2 file
+    private static final byte[] PFIL = {'p', 'f', 'i', 'l'};
+
+    // reusable buffer for the record being encoded
+    private byte[] buf;
+    private int size;
+
+    public SeratoTrackEntryEncoder() {
+        this(256);
+    }
+
+    public SeratoTrackEntryEncoder(int initialCapacity) {
+        this.buf = new byte[Math.max(initialCapacity, 16)];
+    }
+
+    /**
+     * Creates default raw data for track entry in the crate file
+     *
+     * @param trackSeratoPath track path
+     * @return serato file entry to write into the crate file
+     */
+    public SeratoFileEntry createTrackEntry(String trackSeratoPath) {
+        return createEntry(PTRK, trackSeratoPath);
+    }
+
+    /**
+     * Creates minimal raw data for track entry in the database V2 file, the rest is filled in by serato
+     *
+     * @param trackSeratoPath track path
+     * @return serato file entry to write into the database V2 file
+     */
+    public SeratoFileEntry createDatabaseTrackEntry(String trackSeratoPath) {
+        return createEntry(PFIL, trackSeratoPath);
+    }
+
+    private SeratoFileEntry createEntry(byte[] pathTag, String trackSeratoPath) {
+        size = 0;
+        appendTrackData(pathTag, trackSeratoPath);
+        return new SeratoFileEntry("otrk", Arrays.copyOf(buf, size));
+    }
+
+    /**
+     * Appends track path section ('ptrk' or 'pfil') for the given track to the buffer
+     *
+     * @param pathTag section name
+     * @param trackSeratoPath track path
+     */
+    private void appendTrackData(byte[] pathTag, String trackSeratoPath) {
+        int length = trackSeratoPath.length();
+        ensureCapacity(size + 8 + (length << 1));
+
+        // section name as string
+        System.arraycopy(pathTag, 0, buf, size, pathTag.length);
+        size += pathTag.length;
+
+        // length of the track name in UTF-16
+        appendInt(length << 1);
+
+        // track name, in the same byte order as DataOutputStream.writeChars()
+        for (int i = 0; i < length; i++) {
+            char c = trackSeratoPath.charAt(i);
+            buf[size++] = (byte) (c >>> 8);
+            buf[size++] = (byte) c;
+        }
+    }
+
+    private void appendInt(int value) {
+        buf[size++] = (byte) (value >>> 24);
+        buf[size++] = (byte) (value >>> 16);
+        buf[size++] = (byte) (value >>> 8);
+        buf[size++] = (byte) value;
+    }
+
+    private void ensureCapacity(int required) {
+        if (required > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(required, buf.length << 1));
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+package com.seratosync.filesystem;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Checks whether files exist by listing their directories, instead of asking the file system about every file.
+ * Every directory is listed only once, no matter how many files are looked up in it and by how many threads, so
+ * thousands of playlist entries cost as many listings as there are distinct folders.
+ * <p/>
+ * Directories are listed with a deadline (see {@link DriveAccess}). A directory on a drive which doesn't respond is
+ * treated as empty, and it's counted, so the caller can tell "missing" from "unknown".
+ */
+public class DirectoryListingCache {
+
+    /**
+     * Names in a single directory
+     */
+    private static class Listing {
+        private final Set<String> names = new HashSet<String>();
+        // lower case name to the actual name, or to null if several names differ only in case
+        private final Map<String, String> lowerCaseNames = new HashMap<String, String>();
+        private final boolean available;
+
+        private Listing(String[] names, boolean available) {
+            this.available = available;
+            if (names != null) {
+                for (String name : names) {
+                    this.names.add(name);
+                    String lowerCase = name.toLowerCase();
+                    lowerCaseNames.put(lowerCase, lowerCaseNames.containsKey(lowerCase) ? null : name);
+                }
+            }
+        }
+
+        private String find(String name) {
+            if (names.contains(name)) {
+                return name;
+            }
+            // playlists written on windows don't care much about the case
+            return lowerCaseNames.get(name.toLowerCase());
+        }
+    }
+
+    private final ConcurrentMap<String, Future<Listing>> listings = new ConcurrentHashMap<String, Future<Listing>>();
+
+    /**
+     * Finds the file
+     *
+     * @param path absolute path with '/' as a separator
+     * @return path of the file, with the file name in the case it actually has, or null if there is no such file
+     * @throws InterruptedException if interrupted while waiting for the directory to be listed
+     */
+    public String resolve(String path) throws InterruptedException {
+        int slash = path.lastIndexOf('/');
+        if (slash < 0 || slash == path.length() - 1) {
+            return null;
+        }
+        String directory = slash > 0 ? path.substring(0, slash) : "/";
+        String name = getListing(directory).find(path.substring(slash + 1));
+        return name != null ? new File(directory, name).getPath() : null;
+    }
+
+    /**
+     * @return the number of directories listed so far
+     */
+    public int getDirectoriesListed() {
+        return listings.size();
+    }
+
+    /**
+     * @return the number of directories which couldn't be listed because their drive isn't responding
+     */
+    public int getDirectoriesUnavailable() {
+        int result = 0;
+        for (Future<Listing> listing : listings.values()) {
+            try {
+                if (listing.isDone() && !listing.get().available) {
+                    result++;
+                }
+            } catch (ExecutionException e) {
+                result++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return result;
+    }
+
+    private Listing getListing(final String directory) throws InterruptedException {
+        Future<Listing> listing = listings.get(directory);
+        if (listing == null) {
+            // the first thread which needs the directory lists it, the others wait for it
+            FutureTask<Listing> task = new FutureTask<Listing>(new Callable<Listing>() {
+                public Listing call() {
+                    return list(directory);
+                }
+            });
+            listing = listings.putIfAbsent(directory, task);
+            if (listing == null) {
+                listing = task;
+                task.run();
+            }
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedException();
+        }
+        try {
+            return listing.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static Listing list(final String directory) {
+        try {
+            // names only, so files in the directory are not looked at one by one. A directory which doesn't exist
+            // is just empty
+            return DriveAccess.forPath(directory).call(new Callable<Listing>() {
+                public Listing call() {
+                    return new Listing(new File(directory).list(), true);
+                }
+            }, directory);
+        } catch (DriveUnavailableException e) {
+            return new Listing(null, false);
+        }
+    }
+
+}
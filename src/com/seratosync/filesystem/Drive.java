@@ -2,18 +2,15 @@ package com.seratosync.filesystem;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
 
 /**
  * @author Roman Alekseenkov
  */
 public class Drive {
 
-    // list of drives in the system
-    private static List<Drive> drives;
+    // drives in the system and the lookup trie over them, replaced as a whole when drives are refreshed
+    private static volatile DriveTable drives;
 
     // drive identifier which ends with a '/'
     private String prefix;
@@ -39,34 +36,90 @@ public class Drive {
         return prefix != null ? prefix.hashCode() : 0;
     }
 
-    private boolean isMoreSpecificThan(Drive that) {
-        return this.getPrefix().length() > that.getPrefix().length();
-    }
-
     private static String withTrailingSlash(String prefix) {
         return prefix.endsWith("/") ? prefix : prefix + "/";
     }
 
-    public static synchronized List<Drive> getAllDrives() {
-        if (drives == null) {
-            Set<Drive> result = new HashSet<Drive>();
+    /**
+     * Immutable list of drives plus a trie of their prefixes, split by '/'.
+     * Once built, it can be shared between threads without any locking
+     */
+    private static class DriveTable {
 
-            // first of all, add all root reported by the system
-            {
-                File[] roots = File.listRoots();
-                for (File dir : roots) {
-                    try {
-                        result.add(new Drive(dir.getCanonicalPath()));
-                    } catch (IOException e) {
-                        // skip the drive
+        private static class Node {
+            private Drive drive;
+            private final Map<String, Node> children = new HashMap<String, Node>();
+        }
+
+        private final List<Drive> list;
+        private final Node root = new Node();
+
+        private DriveTable(Collection<Drive> drives) {
+            List<Drive> sorted = new ArrayList<Drive>(new HashSet<Drive>(drives));
+            Collections.sort(sorted, new Comparator<Drive>() {
+                public int compare(Drive a, Drive b) {
+                    return a.getPrefix().compareTo(b.getPrefix());
+                }
+            });
+            this.list = Collections.unmodifiableList(sorted);
+
+            for (Drive drive : sorted) {
+                Node node = root;
+                String prefix = drive.getPrefix();
+                for (int start = 0, end; (end = prefix.indexOf('/', start)) >= 0; start = end + 1) {
+                    String segment = prefix.substring(start, end);
+                    Node next = node.children.get(segment);
+                    if (next == null) {
+                        next = new Node();
+                        node.children.put(segment, next);
                     }
+                    node = next;
                 }
+                node.drive = drive;
             }
+        }
+
+        /**
+         * Finds the most specific drive, which prefix the path starts with
+         *
+         * @param absolutePath path which ends with a '/'
+         * @return drive or null, if not found
+         */
+        private Drive find(String absolutePath) {
+            Drive result = null;
+            Node node = root;
+            for (int start = 0, end; (end = absolutePath.indexOf('/', start)) >= 0; start = end + 1) {
+                node = node.children.get(absolutePath.substring(start, end));
+                if (node == null) {
+                    break;
+                }
+                if (node.drive != null) {
+                    result = node.drive;
+                }
+            }
+            return result;
+        }
+    }
 
+    private static List<Drive> detectDrives() {
+        List<Drive> result = new ArrayList<Drive>();
+
+        // first of all, add all root reported by the system
+        {
+            File[] roots = File.listRoots();
+            for (File dir : roots) {
+                try {
+                    result.add(new Drive(dir.getCanonicalPath()));
+                } catch (IOException e) {
+                    // skip the drive
+                }
+            }
+        }
 
-            // second, add mounted points on Mac OS
-            {
-                File[] mounted = new File("/Volumes").listFiles();
+        // second, add mounted points on Mac OS
+        {
+            File[] mounted = new File("/Volumes").listFiles();
+            if (mounted != null) {
                 for (File dir : mounted) {
                     try {
                         result.add(new Drive(dir.getCanonicalPath()));
@@ -75,33 +128,63 @@ public class Drive {
                     }
                 }
             }
+        }
+
+        // third, add mount points on Linux (/media, /mnt, etc), they are already canonical
+        for (String mountPoint : MountTable.readMountPoints()) {
+            result.add(new Drive(mountPoint));
+        }
+
+        return result;
+    }
 
-            drives = new ArrayList<Drive>(result);
+    private static DriveTable getDriveTable() {
+        DriveTable result = drives;
+        if (result == null) {
+            synchronized (Drive.class) {
+                if (drives == null) {
+                    drives = new DriveTable(detectDrives());
+                }
+                result = drives;
+            }
         }
-        return drives;
+        return result;
+    }
+
+    public static List<Drive> getAllDrives() {
+        return getDriveTable().list;
+    }
+
+    /**
+     * Detects drives again, i.e. when a drive was mounted or unmounted
+     */
+    public static synchronized void refreshDrives() {
+        drives = new DriveTable(detectDrives());
     }
 
     static synchronized void setDrives(List<Drive> drives) {
-        Drive.drives = drives;
+        Drive.drives = new DriveTable(drives);
     }
 
     static synchronized void unsetDrives() {
         Drive.drives = null;
     }
 
-    public static Drive getDrive(String name) {
-        String absolutePath = withTrailingSlash(name);
-
-        Drive result = null;
-        for (Drive d : getAllDrives())
-            if (absolutePath.startsWith(d.getPrefix()) && (result == null || d.isMoreSpecificThan(result))) {
-                result = d;
-            }
+    /**
+     * Returns the drive for the path
+     *
+     * @param name absolute path
+     * @return drive or null, if not found
+     */
+    public static Drive findDrive(String name) {
+        return getDriveTable().find(withTrailingSlash(name));
+    }
 
+    public static Drive getDrive(String name) {
+        Drive result = findDrive(name);
         if (result == null) {
             throw new IllegalStateException("Failed to retrieve drive for path: " + name);
         }
-
         return result;
     }
 
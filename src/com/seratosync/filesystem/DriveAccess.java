@@ -0,0 +1,155 @@
+package com.seratosync.filesystem;
+
+import java.io.File;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Filesystem calls with a deadline. A call to a network share or a flaky USB drive which stopped responding may block
+ * forever, so calls run on worker threads of the drive, and the caller gives up waiting once the deadline passes.
+ * <p/>
+ * Every drive has a circuit breaker. After a few calls in a row time out, the drive is considered dead for the rest
+ * of the run, and all further calls fail right away. Callers must treat a failed call as "unknown", never as
+ * "missing", so nothing gets deleted because of a sick drive.
+ */
+public class DriveAccess {
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 20000;
+
+    // consecutive timeouts after which the drive is not called anymore
+    private static final int FAILURE_THRESHOLD = 3;
+
+    private static final ConcurrentMap<String, DriveAccess> INSTANCES = new ConcurrentHashMap<String, DriveAccess>();
+
+    private static volatile long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+    private final String prefix;
+    private final ExecutorService executor;
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile boolean tripped = false;
+
+    private DriveAccess(String prefix) {
+        this.prefix = prefix;
+
+        // threads stuck on a dead drive must not keep the application running, and idle ones go away
+        final String name = "drive " + prefix;
+        this.executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 10, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Returns access to the drive the path is on
+     *
+     * @param path absolute path
+     * @return drive access
+     */
+    public static DriveAccess forPath(String path) {
+        Drive drive = Drive.findDrive(path);
+        return forDrive(drive != null ? drive : new Drive("/"));
+    }
+
+    public static DriveAccess forDrive(Drive drive) {
+        DriveAccess result = INSTANCES.get(drive.getPrefix());
+        if (result == null) {
+            DriveAccess created = new DriveAccess(drive.getPrefix());
+            result = INSTANCES.putIfAbsent(drive.getPrefix(), created);
+            if (result == null) {
+                result = created;
+            } else {
+                created.executor.shutdown();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sets the deadline for all filesystem calls, and gives all drives another chance
+     *
+     * @param timeout deadline in milliseconds
+     */
+    public static void reset(long timeout) {
+        timeoutMillis = timeout;
+        for (DriveAccess access : INSTANCES.values()) {
+            access.failures.set(0);
+            access.tripped = false;
+        }
+    }
+
+    /**
+     * @return deadline for filesystem calls in milliseconds
+     */
+    public static long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public boolean isTripped() {
+        return tripped;
+    }
+
+    /**
+     * Runs a filesystem call on a worker thread of the drive, and waits for it until the deadline
+     *
+     * @param call filesystem call
+     * @param path what the call is about, for the log
+     * @return result of the call
+     * @throws DriveUnavailableException if the drive didn't respond in time, or it's known to be dead already
+     */
+    public <T> T call(Callable<T> call, String path) throws DriveUnavailableException {
+        if (tripped) {
+            throw new DriveUnavailableException("Drive " + prefix + " is not responding");
+        }
+
+        Future<T> result;
+        try {
+            result = executor.submit(call);
+        } catch (RejectedExecutionException e) {
+            throw new DriveUnavailableException("Drive " + prefix + " is not responding");
+        }
+        try {
+            T value = result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            failures.set(0);
+            return value;
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            if (failures.incrementAndGet() >= FAILURE_THRESHOLD) {
+                tripped = true;
+                throw new DriveUnavailableException("Drive " + prefix + " is not responding, the rest of its files are skipped: " + path);
+            }
+            throw new DriveUnavailableException("Drive " + prefix + " didn't respond in " + timeoutMillis + " ms: " + path);
+        } catch (InterruptedException e) {
+            // not the drive's fault, so it doesn't count as a failure
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new DriveUnavailableException("Interrupted while waiting for drive " + prefix + ": " + path);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Checks whether the file exists and it's a regular file
+     *
+     * @param file file
+     * @return true if it's a file
+     * @throws DriveUnavailableException if the drive didn't respond in time
+     */
+    public boolean isFile(final File file) throws DriveUnavailableException {
+        return call(new Callable<Boolean>() {
+            public Boolean call() {
+                return file.isFile();
+            }
+        }, file.getPath());
+    }
+
+}
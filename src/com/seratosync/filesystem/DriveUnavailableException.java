@@ -0,0 +1,14 @@
+package com.seratosync.filesystem;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a drive doesn't respond in time, or it has already stopped responding during this run
+ */
+public class DriveUnavailableException extends IOException {
+
+    public DriveUnavailableException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,301 @@
+package com.seratosync.filesystem;
+
+import com.seratosync.log.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds files with the same content while reading as little as possible. Files are grouped by size first,
+ * then only files of the same size are hashed by their first and last few kilobytes, and only the files which
+ * still look the same are hashed completely. All file access is done in parallel.
+ */
+public class DuplicateFinder {
+
+    // how many files are checked for size by a single task
+    private static final int SIZE_BATCH = 1000;
+
+    private static final int FULL_HASH_BUFFER = 64 * 1024;
+
+    private final ExecutorService executor;
+    private final int partialBytes;
+
+    private final AtomicLong bytesRead = new AtomicLong();
+    private long bytesTotal = 0;
+
+    /**
+     * @param executor     executor to access files
+     * @param partialBytes how many bytes are hashed at the beginning and at the end of a file
+     */
+    public DuplicateFinder(ExecutorService executor, int partialBytes) {
+        this.executor = executor;
+        this.partialBytes = partialBytes;
+    }
+
+    /**
+     * Finds groups of files with the same content. Files which can't be read are skipped
+     *
+     * @param paths absolute paths of files
+     * @return groups of at least two files, the largest files first
+     * @throws InterruptedException if interrupted
+     */
+    public List<List<String>> findDuplicates(Collection<String> paths) throws InterruptedException {
+        // group by size
+        Map<Long, List<String>> bySize = groupBySize(new ArrayList<String>(paths));
+
+        // group files of the same size by the first and the last bytes
+        Map<String, List<String>> byPartialHash = new HashMap<String, List<String>>();
+        List<String> candidates = new ArrayList<String>();
+        for (List<String> group : bySize.values()) {
+            candidates.addAll(group);
+        }
+        Map<String, String> partialHashes = hash(candidates, false);
+        for (Map.Entry<Long, List<String>> e : bySize.entrySet()) {
+            for (String path : e.getValue()) {
+                String hash = partialHashes.get(path);
+                if (hash != null) {
+                    add(byPartialHash, e.getKey() + ":" + hash, path);
+                }
+            }
+        }
+
+        // hash the survivors completely, unless partial hash has already covered the whole file
+        candidates.clear();
+        List<List<String>> result = new ArrayList<List<String>>();
+        for (List<String> group : byPartialHash.values()) {
+            if (group.size() > 1) {
+                if (new File(group.get(0)).length() <= 2L * partialBytes) {
+                    result.add(group);
+                } else {
+                    candidates.addAll(group);
+                }
+            }
+        }
+        Map<String, String> fullHashes = hash(candidates, true);
+        Map<String, List<String>> byFullHash = new HashMap<String, List<String>>();
+        for (List<String> group : byPartialHash.values()) {
+            if (group.size() > 1) {
+                for (String path : group) {
+                    String hash = fullHashes.get(path);
+                    if (hash != null) {
+                        add(byFullHash, hash, path);
+                    }
+                }
+            }
+        }
+        for (List<String> group : byFullHash.values()) {
+            if (group.size() > 1) {
+                result.add(group);
+            }
+        }
+
+        // largest files first, files of every group in order
+        final Map<String, Long> sizes = new HashMap<String, Long>();
+        for (List<String> group : result) {
+            Collections.sort(group);
+            sizes.put(group.get(0), new File(group.get(0)).length());
+        }
+        Collections.sort(result, new Comparator<List<String>>() {
+            public int compare(List<String> a, List<String> b) {
+                long sa = sizes.get(a.get(0));
+                long sb = sizes.get(b.get(0));
+                if (sa != sb) {
+                    return sa > sb ? -1 : 1;
+                }
+                return a.get(0).compareTo(b.get(0));
+            }
+        });
+        return result;
+    }
+
+    private static <K> void add(Map<K, List<String>> groups, K key, String path) {
+        List<String> group = groups.get(key);
+        if (group == null) {
+            group = new ArrayList<String>(2);
+            groups.put(key, group);
+        }
+        group.add(path);
+    }
+
+    /**
+     * Groups files by size, dropping the sizes which only one file has, as well as empty files
+     *
+     * @param paths file paths
+     * @return files by size
+     * @throws InterruptedException if interrupted
+     */
+    private Map<Long, List<String>> groupBySize(final List<String> paths) throws InterruptedException {
+        List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+        for (int start = 0; start < paths.size(); start += SIZE_BATCH) {
+            final List<String> batch = paths.subList(start, Math.min(start + SIZE_BATCH, paths.size()));
+            results.add(executor.submit(new Callable<long[]>() {
+                public long[] call() {
+                    long[] sizes = new long[batch.size()];
+                    for (int i = 0; i < sizes.length; i++) {
+                        sizes[i] = new File(batch.get(i)).length();
+                    }
+                    return sizes;
+                }
+            }));
+        }
+
+        Map<Long, List<String>> result = new HashMap<Long, List<String>>();
+        int i = 0;
+        for (Future<long[]> batch : results) {
+            for (long size : get(batch)) {
+                String path = paths.get(i++);
+                if (size > 0) {
+                    bytesTotal += size;
+                    add(result, size, path);
+                }
+            }
+        }
+        for (Iterator<List<String>> it = result.values().iterator(); it.hasNext(); ) {
+            if (it.next().size() < 2) {
+                it.remove();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Hashes files in parallel
+     *
+     * @param paths file paths
+     * @param full  whether to hash the whole file, or only the first and the last bytes
+     * @return hashes by file path, without the files which can't be read
+     * @throws InterruptedException if interrupted
+     */
+    private Map<String, String> hash(List<String> paths, final boolean full) throws InterruptedException {
+        Map<String, Future<String>> results = new LinkedHashMap<String, Future<String>>();
+        for (final String path : paths) {
+            results.put(path, executor.submit(new Callable<String>() {
+                public String call() throws IOException {
+                    return full ? hashFull(path) : hashPartial(path, partialBytes, bytesRead);
+                }
+            }));
+        }
+
+        Map<String, String> result = new HashMap<String, String>();
+        for (Map.Entry<String, Future<String>> e : results.entrySet()) {
+            try {
+                result.put(e.getKey(), e.getValue().get());
+            } catch (ExecutionException ex) {
+                Log.error("Can't read " + e.getKey() + ". " + ex.getCause().getMessage());
+            }
+        }
+        return result;
+    }
+
+    private static <T> T get(Future<T> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Hashes the first and the last bytes of the file
+     *
+     * @param path         file path
+     * @param partialBytes how many bytes to hash at the beginning and at the end
+     * @param bytesRead    counter of bytes read, or null
+     * @return hash as hex string
+     * @throws IOException if file can't be read
+     */
+    public static String hashPartial(String path, int partialBytes, AtomicLong bytesRead) throws IOException {
+        MessageDigest md = createDigest();
+        FileChannel channel = new FileInputStream(path).getChannel();
+        try {
+            long size = channel.size();
+            ByteBuffer buf = ByteBuffer.allocate(partialBytes);
+            update(md, channel, buf, 0, bytesRead);
+            if (size > partialBytes) {
+                update(md, channel, buf, Math.max(partialBytes, size - partialBytes), bytesRead);
+            }
+        } finally {
+            channel.close();
+        }
+        return toHex(md.digest());
+    }
+
+    /**
+     * Reads from the position until the buffer is full or the end of file is reached, and updates the digest
+     */
+    private static void update(MessageDigest md, FileChannel channel, ByteBuffer buf, long position, AtomicLong bytesRead) throws IOException {
+        buf.clear();
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position + buf.position());
+            if (n < 0) {
+                break;
+            }
+        }
+        buf.flip();
+        if (bytesRead != null) {
+            bytesRead.addAndGet(buf.remaining());
+        }
+        md.update(buf);
+    }
+
+    private String hashFull(String path) throws IOException {
+        MessageDigest md = createDigest();
+        FileChannel channel = new FileInputStream(path).getChannel();
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(FULL_HASH_BUFFER);
+            while (channel.read(buf) >= 0) {
+                buf.flip();
+                bytesRead.addAndGet(buf.remaining());
+                md.update(buf);
+                buf.clear();
+            }
+        } finally {
+            channel.close();
+        }
+        return toHex(md.digest());
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder result = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            result.append(Character.forDigit((b >> 4) & 0xF, 16));
+            result.append(Character.forDigit(b & 0xF, 16));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Returns how many bytes were read to find duplicates
+     *
+     * @return number of bytes
+     */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * Returns total size of all non-empty files
+     *
+     * @return number of bytes
+     */
+    public long getBytesTotal() {
+        return bytesTotal;
+    }
+
+}
@@ -1,5 +1,7 @@
 package com.seratosync.filesystem;
 
+import com.seratosync.log.Trace;
+
 import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
@@ -29,6 +31,22 @@ public class FileDirectoryUtils {
         new File(filePath).delete();
     }
 
+    /**
+     * Replaces the file with a temporary one. The file is only deleted first if it can't be renamed over (Windows),
+     * so elsewhere the original stays in place if the rename fails
+     *
+     * @param tmpFile temporary file
+     * @param file    file to replace, it may not exist
+     * @return false if the file couldn't be replaced
+     */
+    @SuppressWarnings({"ResultOfMethodCallIgnored"})
+    public static boolean replaceFile(File tmpFile, File file) {
+        if (tmpFile.renameTo(file)) {
+            return true;
+        }
+        return (!file.exists() || file.delete()) && tmpFile.renameTo(file);
+    }
+
     public static void zipDirectory(String directoryPath, File zipFileName, List<String> includeWildcardPatterns) throws IOException {
         List<Pattern> includePatterns = convertPatternsWildcardToRegex(includeWildcardPatterns);
 
@@ -77,14 +95,18 @@ public class FileDirectoryUtils {
             }
 
             // handle files, read it using FileInputStream and wrap into ZipEntry
+            Trace.Event event = Trace.begin(Trace.ZIP_ENTRY, relativePath);
             FileInputStream in = new FileInputStream(file.getAbsolutePath());
             out.putNextEntry(new ZipEntry(relativePath));
+            long bytes = 0;
             int len;
             while ((len = in.read(buf)) > 0) {
                 out.write(buf, 0, len);
+                bytes += len;
             }
             out.closeEntry();
             in.close();
+            event.count(1).bytes(bytes).end();
         }
 
     }
@@ -95,6 +117,7 @@ public class FileDirectoryUtils {
      * - no leading slashes at all
      * - no drive name on Windows (C:\, etc)
      * - no drive name on Mac OS (/Volumes/VolumeName/, etc)
+     * - no drive name on Linux (/media/VolumeName/, etc)
      *
      * @param name Track name with absolute path
      * @return Track name with all slashes replaced with forward slashes
@@ -109,6 +132,14 @@ public class FileDirectoryUtils {
         // remove drive on mac os
         name = name.replaceAll("^/[vV][oO][lL][uU][mM][eE][sS]/[^/]+/", "");
 
+        // remove drive on linux (/media/usb/, /mnt/nas/, etc), those are detected from the mount table
+        if (name.startsWith("/")) {
+            Drive drive = Drive.findDrive(name);
+            if (drive != null && drive.getPrefix().length() > 1 && name.startsWith(drive.getPrefix())) {
+                name = name.substring(drive.getPrefix().length());
+            }
+        }
+
         // remove all leading slashes
         name = name.replaceAll("^/", "");
 
@@ -0,0 +1,138 @@
+package com.seratosync.filesystem;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sidecar file which remembers size, modification time and partial hash of every track, by its serato path.
+ * Once a track is moved, its old path can't be hashed anymore, so this is what the moved file is recognized by.
+ * Hashes are only computed again when size or modification time of a file changes.
+ */
+public class FileFingerprints {
+
+    public static final String FILE_NAME = "serato-sync.fingerprints";
+
+    private static final String VERSION = "serato-sync fingerprints 1";
+
+    /**
+     * What we know about the contents of a single file
+     */
+    public static class Fingerprint {
+        private final long size;
+        private final long lastModified;
+        private final String hash;
+
+        public Fingerprint(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+    }
+
+    private final File file;
+    private final Map<String, Fingerprint> entries = new HashMap<String, Fingerprint>();
+    private boolean modified = false;
+
+    public FileFingerprints(String seratoBasePath) {
+        this.file = new File(seratoBasePath + "/" + FILE_NAME);
+    }
+
+    public Fingerprint get(String trackSeratoPath) {
+        return entries.get(trackSeratoPath);
+    }
+
+    public void put(String trackSeratoPath, Fingerprint fingerprint) {
+        entries.put(trackSeratoPath, fingerprint);
+        modified = true;
+    }
+
+    /**
+     * Forgets all files, except the given ones
+     *
+     * @param trackSeratoPaths serato paths of the files to keep
+     */
+    public void retain(Set<String> trackSeratoPaths) {
+        if (entries.keySet().retainAll(trackSeratoPaths)) {
+            modified = true;
+        }
+    }
+
+    /**
+     * Loads fingerprints, starting with none if the file doesn't exist or has an unsupported format
+     *
+     * @throws IOException in case of I/O exception
+     */
+    public void load() throws IOException {
+        entries.clear();
+        if (!file.isFile()) {
+            return;
+        }
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            if (!VERSION.equals(in.readLine())) {
+                return;
+            }
+
+            // size, modification time, hash, serato path
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] items = line.split("\t", 4);
+                if (items.length < 4) {
+                    continue;
+                }
+                try {
+                    entries.put(items[3], new Fingerprint(Long.parseLong(items[0]), Long.parseLong(items[1]), items[2]));
+                } catch (NumberFormatException e) {
+                    // skip malformed line, the file will be hashed again
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Saves fingerprints, if anything was changed
+     *
+     * @throws IOException in case of I/O exception
+     */
+    public void save() throws IOException {
+        if (!modified) {
+            return;
+        }
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8"));
+        try {
+            out.write(VERSION);
+            out.write("\n");
+            for (Map.Entry<String, Fingerprint> e : entries.entrySet()) {
+                Fingerprint fingerprint = e.getValue();
+                out.write(fingerprint.getSize() + "\t" + fingerprint.getLastModified() + "\t" + fingerprint.getHash() + "\t" + e.getKey() + "\n");
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!FileDirectoryUtils.replaceFile(tmpFile, file)) {
+            throw new IOException("Can't replace fingerprints file " + file.getName());
+        }
+        modified = false;
+    }
+
+}
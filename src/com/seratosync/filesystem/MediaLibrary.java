@@ -1,9 +1,20 @@
 package com.seratosync.filesystem;
 
+import com.seratosync.log.Log;
+import com.seratosync.log.Trace;
+
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.regex.Pattern;
 
 /**
@@ -11,6 +22,22 @@ import java.util.regex.Pattern;
  */
 public class MediaLibrary implements Comparable<MediaLibrary> {
 
+    /**
+     * Gets notified about every directory as soon as its entire subtree is scanned
+     */
+    public interface ScanListener {
+
+        /**
+         * Called for every directory, after all its sub-directories
+         *
+         * @param library      media library of the directory, which is complete at that point
+         * @param relativePath names of the directories from the scanned root down to this one
+         * @throws InterruptedException if scan needs to be stopped
+         */
+        void directoryScanned(MediaLibrary library, List<String> relativePath) throws InterruptedException;
+
+    }
+
     private static final Pattern[] MUSIC_FILENAME_PATTERNS = {
             Pattern.compile("(.*)\\.mp3", Pattern.CASE_INSENSITIVE),
             Pattern.compile("(.*)\\.wav", Pattern.CASE_INSENSITIVE),
@@ -32,10 +59,88 @@ public class MediaLibrary implements Comparable<MediaLibrary> {
             Pattern.compile("(.*)\\.qtz", Pattern.CASE_INSENSITIVE)
     };
 
+    /**
+     * Directories which are symbolic links (or junctions) are followed, only loops are cut
+     */
+    public static final String SYMLINKS_FOLLOW = "follow";
+
+    /**
+     * Directories which are symbolic links are not scanned
+     */
+    public static final String SYMLINKS_SKIP = "skip";
+
+    /**
+     * Directories which are symbolic links are followed, unless their target is scanned anyway, so every real
+     * directory is scanned at most once
+     */
+    public static final String SYMLINKS_FOLLOW_ONCE = "follow-once";
+
+    private static volatile String symlinkPolicy = SYMLINKS_FOLLOW_ONCE;
+
+    /**
+     * State of a single scan, shared by all its directories
+     */
+    private static class Scan {
+        private final DriveAccess access;
+        // canonical path of the scanned folder, or null if unknown
+        private final String root;
+        private final String policy = symlinkPolicy;
+        // canonical paths of all scanned directories, and of the directories from the root down to the current one
+        private final Set<String> visited = new HashSet<String>();
+        private final Set<String> ancestors = new HashSet<String>();
+
+        private Scan(String path, DriveAccess access) {
+            this.access = access;
+            this.root = getCanonicalPath(new File(path));
+        }
+
+        private boolean isWithinRoot(String canonicalPath) {
+            String prefix = root.endsWith(File.separator) ? root : root + File.separator;
+            return canonicalPath.equals(root) || canonicalPath.startsWith(prefix);
+        }
+
+        /**
+         * Decides whether the sub-directory should be scanned
+         *
+         * @param canonicalPath canonical path of the sub-directory, or null if unknown
+         * @param link          whether the sub-directory is a symbolic link
+         * @return true if it has to be skipped
+         */
+        private boolean skip(String canonicalPath, boolean link) {
+            if (canonicalPath == null) {
+                return false;
+            }
+            if (ancestors.contains(canonicalPath)) {
+                // link to a directory above, it would never end
+                return true;
+            }
+            if (SYMLINKS_SKIP.equals(policy)) {
+                return link;
+            }
+            if (SYMLINKS_FOLLOW_ONCE.equals(policy)) {
+                return visited.contains(canonicalPath) || link && root != null && isWithinRoot(canonicalPath);
+            }
+            return false;
+        }
+    }
+
     private String directory;
     private SortedSet<String> tracks = new TreeSet<String>();
     private SortedSet<MediaLibrary> children = new TreeSet<MediaLibrary>();
 
+    // sub-directories by name and by normalized name, built on the first lookup (the library is complete by then)
+    private volatile Map<String, MediaLibrary> childIndex;
+
+    // false if some directories of the subtree couldn't be read, as the drive didn't respond
+    private boolean complete = true;
+
+    // sub-directories which were not scanned, as they are links to directories which are scanned anyway, or loops
+    private int skippedLinks = 0;
+
+    // whether some of the skipped links were skipped because of what else the scan covered (their targets are
+    // scanned anyway, or they lead to a directory above), so scanning a sub-directory on its own may follow them
+    private boolean scopedSkips = false;
+
     public MediaLibrary(String directory) {
         this.directory = directory;
     }
@@ -52,6 +157,55 @@ public class MediaLibrary implements Comparable<MediaLibrary> {
         return children;
     }
 
+    /**
+     * Tells whether all directories were read. If not, tracks which are not in the library may still exist,
+     * so nothing should be removed based on this library
+     *
+     * @return true if all directories were read
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Returns sub-directory with the given name, the name may differ in unicode normalization only
+     *
+     * @param directory name of the sub-directory
+     * @return media library of the sub-directory, or null if there is no such sub-directory
+     */
+    public MediaLibrary getChild(String directory) {
+        Map<String, MediaLibrary> index = childIndex;
+        if (index == null) {
+            index = new HashMap<String, MediaLibrary>();
+            for (MediaLibrary child : children) {
+                index.put(child.directory, child);
+            }
+            // exact names take precedence over the names which only differ in normalization
+            for (MediaLibrary child : children) {
+                String key = UnicodeNames.key(child.directory);
+                if (!index.containsKey(key)) {
+                    index.put(key, child);
+                }
+            }
+            childIndex = index;
+        }
+        MediaLibrary result = index.get(directory);
+        return result != null ? result : index.get(UnicodeNames.key(directory));
+    }
+
+    public List<String> getAllTracks() {
+        List<String> result = new ArrayList<String>(getTotalNumberOfTracks());
+        collectAllTracks(result);
+        return result;
+    }
+
+    private void collectAllTracks(List<String> result) {
+        result.addAll(tracks);
+        for (MediaLibrary childLibrary : children) {
+            childLibrary.collectAllTracks(result);
+        }
+    }
+
     public int getTotalNumberOfTracks() {
         int result = tracks.size();
         for (MediaLibrary childLibrary : children) {
@@ -60,6 +214,65 @@ public class MediaLibrary implements Comparable<MediaLibrary> {
         return result;
     }
 
+    /**
+     * Returns the number of linked directories which were not scanned, as their contents are scanned anyway
+     * (or they are not wanted, see {@link #setSymlinkPolicy(String)})
+     *
+     * @return number of skipped directories
+     */
+    public int getTotalNumberOfSkippedLinks() {
+        int result = skippedLinks;
+        for (MediaLibrary childLibrary : children) {
+            result += childLibrary.getTotalNumberOfSkippedLinks();
+        }
+        return result;
+    }
+
+    /**
+     * Checks whether links were skipped in the sub-library because of what else the scan covered, so the
+     * sub-library may be different from a scan of its directory on its own
+     *
+     * @param relativePath path relative to this library, using '/' as a separator
+     * @return true if the sub-library can't be taken for a scan of its directory
+     */
+    public boolean hasScopedSkips(String relativePath) {
+        MediaLibrary library = this;
+        for (String name : relativePath.split("/")) {
+            if (name.isEmpty() || ".".equals(name)) {
+                continue;
+            }
+            library = library.getChild(name);
+            if (library == null) {
+                return false;
+            }
+        }
+        return library.hasScopedSkips();
+    }
+
+    private boolean hasScopedSkips() {
+        if (scopedSkips) {
+            return true;
+        }
+        for (MediaLibrary childLibrary : children) {
+            if (childLibrary.hasScopedSkips()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets what to do with directories which are symbolic links, for the scans which start after that
+     *
+     * @param policy {@link #SYMLINKS_FOLLOW}, {@link #SYMLINKS_SKIP} or {@link #SYMLINKS_FOLLOW_ONCE}
+     */
+    public static void setSymlinkPolicy(String policy) {
+        if (!SYMLINKS_FOLLOW.equals(policy) && !SYMLINKS_SKIP.equals(policy) && !SYMLINKS_FOLLOW_ONCE.equals(policy)) {
+            throw new IllegalArgumentException("Unsupported symlink policy: " + policy);
+        }
+        symlinkPolicy = policy;
+    }
+
     public int getTotalNumberOfDirectories() {
         int result = children.size();
         for (MediaLibrary childLibrary : children) {
@@ -69,44 +282,241 @@ public class MediaLibrary implements Comparable<MediaLibrary> {
     }
 
     public static MediaLibrary readFrom(String mediaLibraryPath, List<Pattern> excludePatterns) {
+        try {
+            return readFrom(mediaLibraryPath, excludePatterns, null);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static MediaLibrary readFrom(String mediaLibraryPath, List<Pattern> excludePatterns, ScanListener listener) throws InterruptedException {
+        MediaLibrary result = new MediaLibrary(".");
+        Scan scan = new Scan(mediaLibraryPath, DriveAccess.forPath(mediaLibraryPath));
+        result.collectAll(mediaLibraryPath, scan.root, "", excludePatterns, new ArrayList<String>(), listener, scan);
+        return result;
+    }
+
+    /**
+     * Notifies the listener about every directory of already scanned library, in the same order as during the scan
+     *
+     * @param listener scan listener
+     * @throws InterruptedException if listener stopped the scan
+     */
+    public void replay(ScanListener listener) throws InterruptedException {
+        replay(new ArrayList<String>(), listener);
+    }
+
+    private void replay(List<String> relativePath, ScanListener listener) throws InterruptedException {
+        for (MediaLibrary child : children) {
+            relativePath.add(child.directory);
+            child.replay(relativePath, listener);
+            relativePath.remove(relativePath.size() - 1);
+        }
+        listener.directoryScanned(this, Collections.unmodifiableList(new ArrayList<String>(relativePath)));
+    }
+
+    /**
+     * Derives media library of a sub-directory from this (complete, scanned without exclusions) library,
+     * so the sub-directory doesn't have to be scanned again. The result is the same as scanning the sub-directory
+     *
+     * @param relativePath    path of the sub-directory relative to this library, using '/' as a separator
+     * @param excludePatterns exclude patterns, relative to the sub-directory
+     * @return MediaLibrary
+     */
+    public MediaLibrary getSubLibrary(String relativePath, List<Pattern> excludePatterns) {
+        MediaLibrary library = this;
+        for (String name : relativePath.split("/")) {
+            if (name.isEmpty() || ".".equals(name)) {
+                continue;
+            }
+            MediaLibrary next = null;
+            for (MediaLibrary child : library.children)
+                if (child.directory.equals(name)) {
+                    next = child;
+                    break;
+                }
+            if (next == null) {
+                // same as scanning a directory which doesn't exist, unless its parent couldn't be read
+                MediaLibrary result = new MediaLibrary(".");
+                result.complete = library.complete;
+                return result;
+            }
+            library = next;
+        }
+
         MediaLibrary result = new MediaLibrary(".");
-        result.collectAll(mediaLibraryPath, "", excludePatterns);
+        result.copyFrom(library, "", excludePatterns);
         return result;
     }
 
-    private void collectAll(String path, String relativePath, List<Pattern> excludePatterns) {
-        File[] all = new File(path).listFiles();
+    private void copyFrom(MediaLibrary source, String relativePath, List<Pattern> excludePatterns) {
+        tracks = source.tracks;
+        complete = source.complete;
+        skippedLinks = source.skippedLinks;
+        scopedSkips = source.scopedSkips;
+        if (excludePatterns.isEmpty()) {
+            children = source.children;
+            return;
+        }
+
+        children = new TreeSet<MediaLibrary>();
+        for (MediaLibrary sourceChild : source.children) {
+            String childDirectory = sourceChild.directory;
+            if (!isExcluded(relativePath, childDirectory, excludePatterns)) {
+                MediaLibrary child = new MediaLibrary(childDirectory);
+                child.copyFrom(sourceChild, relativePath + "/" + childDirectory, excludePatterns);
+                children.add(child);
+            }
+        }
+    }
+
+    private static boolean isExcluded(String relativePath, String childDirectory, List<Pattern> excludePatterns) {
+        String excludePathForCheck = !relativePath.isEmpty() ? relativePath + "/" + childDirectory : childDirectory;
+        for (Pattern p : excludePatterns)
+            if (p.matcher(excludePathForCheck).matches()) {
+                return true;
+            }
+        return false;
+    }
+
+    /**
+     * Contents of a single directory
+     */
+    private static class Listing {
+        private final List<File> media = new ArrayList<File>();
+        private final List<String> directories = new ArrayList<String>();
+        // canonical paths of the sub-directories, null where they can't be resolved
+        private final List<String> canonicalPaths = new ArrayList<String>();
+        private long bytes = 0;
+        // the directory exists, but its contents can't be read
+        private boolean unreadable = false;
+    }
+
+    private static String getCanonicalPath(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private Listing list(final String path) {
+        Listing result = new Listing();
+        File directory = new File(path);
+        File[] all = directory.listFiles();
         if (all == null) {
-            all = new File[]{};
+            // i.e. no permission, or an I/O error of a failing drive
+            result.unreadable = directory.exists();
+            return result;
         }
 
         // process songs
         for (File file : all)
             if (file.isFile() && isMedia(file)) {
-                tracks.add(file.getAbsolutePath());
+                result.media.add(file);
+                if (Trace.isRecording()) {
+                    result.bytes += file.length();
+                }
             }
 
-        // process sub-directories
+        // sub-directories, canonical paths tell links from real directories
         for (File file : all)
             if (file.isDirectory()) {
-                // determine the directory to descent into
-                String childDirectory = file.getName();
-
-                // see if it's not excluded
-                boolean excluded = false;
-                String excludePathForCheck = !relativePath.isEmpty() ? relativePath + "/" + childDirectory : childDirectory;
-                for (Pattern p : excludePatterns)
-                    if (p.matcher(excludePathForCheck).matches()) {
-                        excluded = true;
-                        break;
-                    }
-                // scan it
-                if (!excluded) {
-                    MediaLibrary child = new MediaLibrary(childDirectory);
-                    child.collectAll(path + "/" + childDirectory, relativePath + "/" + childDirectory, excludePatterns);
-                    children.add(child);
+                result.directories.add(file.getName());
+                result.canonicalPaths.add(getCanonicalPath(file));
+            }
+        return result;
+    }
+
+    /**
+     * Scans the directory and its sub-directories
+     *
+     * @param path            path of the directory, as it's reached from the scanned folder
+     * @param canonicalPath   canonical path of the directory, or null if unknown
+     * @param relativePath    path relative to the scanned folder
+     * @param excludePatterns exclude patterns
+     * @param names           names of the directories from the scanned folder down to this one
+     * @param listener        scan listener, or null
+     * @param scan            state of the scan
+     * @throws InterruptedException if listener stopped the scan
+     */
+    private void collectAll(final String path, String canonicalPath, String relativePath, List<Pattern> excludePatterns, List<String> names,
+                            ScanListener listener, Scan scan) throws InterruptedException {
+        DriveAccess access = scan.access;
+        // only the directory itself is timed, sub-directories are separate events
+        Trace.Event event = Trace.begin(Trace.SCAN, path);
+        Listing listing;
+        boolean tripped = access.isTripped();
+        try {
+            // the drive may stop responding, so the directory is listed with a deadline
+            listing = access.call(new Callable<Listing>() {
+                public Listing call() {
+                    return list(path);
+                }
+            }, path);
+        } catch (DriveUnavailableException e) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+            // once the drive is known to be dead, directories are skipped silently
+            if (!tripped) {
+                Log.error("Can't read " + path + ". " + e.getMessage());
+            }
+            complete = false;
+            listing = new Listing();
+        }
+        if (listing.unreadable) {
+            Log.error("Can't read " + path);
+            complete = false;
+        }
+
+        // when sniffing, contents of the songs have to match their extensions as well. Reading them may take much
+        // longer than the listing, so they are read outside of its deadline, with a deadline of their own
+        List<File> media = listing.media;
+        MediaSniffer sniffer = MediaSniffer.getActive();
+        if (sniffer != null && !media.isEmpty() && !access.isTripped()) {
+            media = sniffer.filter(media, DriveAccess.getTimeoutMillis());
+        }
+        for (File file : media) {
+            tracks.add(file.getAbsolutePath());
+        }
+        event.count(tracks.size()).bytes(listing.bytes).end();
+
+        // process sub-directories
+        if (canonicalPath != null) {
+            scan.visited.add(canonicalPath);
+            scan.ancestors.add(canonicalPath);
+        }
+        for (int i = 0; i < listing.directories.size(); i++) {
+            String childDirectory = listing.directories.get(i);
+            String childCanonicalPath = listing.canonicalPaths.get(i);
+
+            // see if it's not excluded, and not a link to something which is scanned anyway, and scan it
+            if (!isExcluded(relativePath, childDirectory, excludePatterns)) {
+                boolean link = canonicalPath != null && childCanonicalPath != null
+                        && !childCanonicalPath.equals(new File(canonicalPath, childDirectory).getPath());
+                if (scan.skip(childCanonicalPath, link)) {
+                    skippedLinks++;
+                    scopedSkips |= !SYMLINKS_SKIP.equals(scan.policy);
+                    continue;
                 }
+                MediaLibrary child = new MediaLibrary(childDirectory);
+                names.add(childDirectory);
+                child.collectAll(path + "/" + childDirectory, childCanonicalPath, relativePath + "/" + childDirectory, excludePatterns, names,
+                        listener, scan);
+                names.remove(names.size() - 1);
+                children.add(child);
+                complete &= child.complete;
             }
+        }
+        if (canonicalPath != null) {
+            scan.ancestors.remove(canonicalPath);
+        }
+
+        // the whole subtree is scanned
+        if (listener != null) {
+            listener.directoryScanned(this, Collections.unmodifiableList(new ArrayList<String>(names)));
+        }
     }
 
     private boolean isMedia(File file) {
@@ -0,0 +1,389 @@
+package com.seratosync.filesystem;
+
+import com.seratosync.log.Log;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Keeps media library scans for the duration of a rule file, so several sync actions over the same or overlapping
+ * folders don't scan the same directories again and again. Actions announce the folders they are going to scan
+ * upfront, and when several of them fall into the same folder, that folder is scanned once and the rest are
+ * derived from that scan. Such a scan skips only the directories which all the announced folders exclude.
+ * A folder is scanned on its own after all if the wider scan skipped links in it because of the directories
+ * around it (see {@link MediaLibrary#hasScopedSkips(String)}), as a scan of the folder itself would follow them.
+ * <p/>
+ * Scans run without holding the lock, and whoever needs a scan which is in progress waits for it. Scans which
+ * couldn't read everything are not kept, so a later action scans again.
+ */
+public class MediaLibraryCache {
+
+    private static final MediaLibraryCache INSTANCE = new MediaLibraryCache();
+
+    /**
+     * Exclude pattern, relative to the folder of a scan
+     */
+    private static class Exclude {
+        // pattern prefixed with the path of the folder it came from
+        private final String pattern;
+
+        // the deepest directory everything matching the pattern is located in (or which it is)
+        private final String base;
+
+        private Exclude(String folder, String pattern) {
+            while (pattern.startsWith("/")) {
+                pattern = pattern.substring(1);
+            }
+            this.pattern = folder.isEmpty() ? pattern : folder + "/" + pattern;
+            int wildcard = this.pattern.indexOf('*');
+            this.base = wildcard < 0 ? this.pattern : this.pattern.substring(0, Math.max(0, this.pattern.lastIndexOf('/', wildcard)));
+        }
+
+        /**
+         * Checks whether the pattern may exclude something the folder needs
+         *
+         * @param folder path relative to the scanned folder
+         */
+        private boolean concerns(String folder) {
+            return isWithin(folder, base) || isWithin(base, folder);
+        }
+    }
+
+    /**
+     * Folder announced by an action
+     */
+    private static class Planned {
+        private final String path;
+        private final List<String> excludeFilter;
+
+        private Planned(String path, List<String> excludeFilter) {
+            this.path = path;
+            this.excludeFilter = excludeFilter;
+        }
+    }
+
+    /**
+     * Scan of a folder, which is either done or in progress
+     */
+    private static class Scan {
+        private final String path;
+
+        // directories skipped by the scan, by pattern
+        private final Map<String, Exclude> excludes = new HashMap<String, Exclude>();
+
+        // listener of the action which runs the scan, if the scan is exactly what the action asked for
+        private final MediaLibrary.ScanListener listener;
+
+        private final FutureTask<MediaLibrary> task;
+
+        // the scanned library, once the scan is done
+        private volatile MediaLibrary library;
+
+        private Scan(final String path, Collection<Exclude> excludes, MediaLibrary.ScanListener listener) {
+            this.path = path;
+            this.listener = listener;
+            for (Exclude exclude : excludes) {
+                this.excludes.put(exclude.pattern, exclude);
+            }
+            final List<String> patterns = new ArrayList<String>(this.excludes.keySet());
+            this.task = new FutureTask<MediaLibrary>(new Callable<MediaLibrary>() {
+                public MediaLibrary call() throws Exception {
+                    library = MediaLibrary.readFrom(path, FileDirectoryUtils.convertPatternsWildcardToRegex(patterns), Scan.this.listener);
+                    return library;
+                }
+            });
+        }
+
+        /**
+         * Checks whether the scan is exactly what the folder needs, so the scanned library can be taken as is
+         */
+        private boolean isExactly(String path, List<String> excludeFilter) {
+            return this.path.equals(path) && excludes.keySet().equals(getPatterns(getExcludes("", excludeFilter)));
+        }
+
+        /**
+         * Checks whether the folder can be taken from this scan, that is whether the scan doesn't skip anything
+         * the folder needs
+         *
+         * @param path          canonical path
+         * @param excludeFilter exclude patterns of the folder
+         */
+        private boolean covers(String path, List<String> excludeFilter) {
+            if (!isWithin(path, this.path)) {
+                return false;
+            }
+            String folder = getRelativePath(this.path, path);
+            MediaLibrary scanned = library;
+            if (scanned != null && scanned.hasScopedSkips(folder)) {
+                return false;
+            }
+            Set<String> needed = getPatterns(getExcludes(folder, excludeFilter));
+            for (Exclude exclude : excludes.values()) {
+                if (!needed.contains(exclude.pattern) && exclude.concerns(folder)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // folders which are going to be scanned by the actions
+    private final List<Planned> planned = new ArrayList<Planned>();
+
+    // scans which are done or in progress
+    private final List<Scan> scans = new ArrayList<Scan>();
+
+    public static MediaLibraryCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Announces that the folder is going to be scanned
+     *
+     * @param path          canonical path
+     * @param excludeFilter exclude patterns possibly containing wildcards
+     */
+    public synchronized void plan(String path, List<String> excludeFilter) {
+        planned.add(new Planned(path, excludeFilter));
+    }
+
+    /**
+     * Returns media library for the folder, scanning it only if there is no suitable scan in the cache
+     *
+     * @param path          canonical path
+     * @param excludeFilter exclude patterns possibly containing wildcards
+     * @return MediaLibrary
+     */
+    public MediaLibrary readFrom(String path, List<String> excludeFilter) {
+        try {
+            return readFrom(path, excludeFilter, null);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns media library for the folder, scanning it only if there is no suitable scan in the cache.
+     * Listener is notified about every directory as soon as it's scanned, or after the fact
+     * if the library is taken from the cache
+     *
+     * @param path          canonical path
+     * @param excludeFilter exclude patterns possibly containing wildcards
+     * @param listener      scan listener, or null
+     * @return MediaLibrary
+     * @throws InterruptedException if listener stopped the scan
+     */
+    public MediaLibrary readFrom(String path, List<String> excludeFilter, MediaLibrary.ScanListener listener) throws InterruptedException {
+        // whether the folder has to be scanned on its own, rather than taken from a wider scan
+        boolean alone = false;
+        for (; ;) {
+            Scan scan;
+            boolean owner = false;
+            synchronized (this) {
+                unplan(path, excludeFilter);
+                scan = findScan(path, excludeFilter, alone);
+                if (scan != null) {
+                    Log.info("  * reusing scan of " + scan.path);
+                } else {
+                    scan = alone ? new Scan(path, getExcludes("", excludeFilter), listener) : planScan(path, excludeFilter, listener);
+                    scans.add(scan);
+                    owner = true;
+                    Log.info("  * scanning " + scan.path + "...");
+                }
+            }
+
+            // the scan itself runs without holding the lock
+            if (owner) {
+                scan.task.run();
+            }
+            MediaLibrary result;
+            try {
+                result = scan.task.get();
+            } catch (ExecutionException e) {
+                forget(scan);
+                if (owner) {
+                    throw unwrap(e);
+                }
+                // the scan was stopped by another action, try again
+                continue;
+            }
+            if (!result.isComplete()) {
+                forget(scan);
+            }
+            if (!scan.isExactly(path, excludeFilter) && result.hasScopedSkips(getRelativePath(scan.path, path))) {
+                // links were skipped because of the directories around the folder, a scan of its own follows them
+                alone = true;
+                continue;
+            }
+
+            if (scan.isExactly(path, excludeFilter)) {
+                if (listener != null && scan.listener != listener) {
+                    result.replay(listener);
+                }
+                return result;
+            }
+            MediaLibrary derived = derive(result, scan.path, path, excludeFilter);
+            if (listener != null) {
+                derived.replay(listener);
+            }
+            return derived;
+        }
+    }
+
+    private static InterruptedException unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof InterruptedException) {
+            return (InterruptedException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new IllegalStateException(cause);
+    }
+
+    private synchronized void forget(Scan scan) {
+        scans.remove(scan);
+    }
+
+    private void unplan(String path, List<String> excludeFilter) {
+        for (Iterator<Planned> i = planned.iterator(); i.hasNext(); ) {
+            Planned p = i.next();
+            if (p.path.equals(path) && p.excludeFilter.equals(excludeFilter)) {
+                i.remove();
+                break;
+            }
+        }
+    }
+
+    private Scan findScan(String path, List<String> excludeFilter, boolean exactly) {
+        // exactly the same scan first
+        for (Scan scan : scans) {
+            if (scan.isExactly(path, excludeFilter)) {
+                return scan;
+            }
+        }
+        if (exactly) {
+            return null;
+        }
+        for (Scan scan : scans) {
+            if (scan.covers(path, excludeFilter)) {
+                return scan;
+            }
+        }
+        return null;
+    }
+
+    private Scan planScan(String path, List<String> excludeFilter, MediaLibrary.ScanListener listener) {
+        // the widest folder which also covers some of the folders to be scanned later
+        String widest = null;
+        for (Planned candidate : planned) {
+            if (isWithin(path, candidate.path) && (widest == null || isWithin(widest, candidate.path))) {
+                widest = candidate.path;
+            } else if (widest == null && isWithin(candidate.path, path)) {
+                widest = path;
+            }
+        }
+        if (widest == null) {
+            // nobody else needs it, so scan exactly what was requested
+            return new Scan(path, getExcludes("", excludeFilter), listener);
+        }
+
+        // folders which are going to be taken from the scan, this one included
+        List<Planned> covered = new ArrayList<Planned>();
+        covered.add(new Planned(path, excludeFilter));
+        for (Planned p : planned) {
+            if (isWithin(p.path, widest)) {
+                covered.add(p);
+            }
+        }
+        List<String> folders = new ArrayList<String>();
+        List<Set<String>> folderExcludes = new ArrayList<Set<String>>();
+        List<Exclude> candidates = new ArrayList<Exclude>();
+        for (Planned p : covered) {
+            String folder = getRelativePath(widest, p.path);
+            List<Exclude> excludes = getExcludes(folder, p.excludeFilter);
+            folders.add(folder);
+            folderExcludes.add(getPatterns(excludes));
+            candidates.addAll(excludes);
+        }
+
+        // a directory is only skipped if every folder which may need it excludes it as well
+        Map<String, Exclude> shared = new LinkedHashMap<String, Exclude>();
+        for (Exclude candidate : candidates) {
+            boolean all = true;
+            for (int k = 0; k < folders.size() && all; k++) {
+                all = folderExcludes.get(k).contains(candidate.pattern) || !candidate.concerns(folders.get(k));
+            }
+            if (all) {
+                shared.put(candidate.pattern, candidate);
+            }
+        }
+        Scan result = new Scan(widest, shared.values(), null);
+        return result.isExactly(path, excludeFilter) ? new Scan(widest, shared.values(), listener) : result;
+    }
+
+    private static List<Exclude> getExcludes(String folder, List<String> excludeFilter) {
+        List<Exclude> result = new ArrayList<Exclude>();
+        for (String pattern : excludeFilter) {
+            if (!pattern.isEmpty()) {
+                result.add(new Exclude(folder, pattern));
+            }
+        }
+        return result;
+    }
+
+    private static Set<String> getPatterns(List<Exclude> excludes) {
+        Set<String> result = new HashSet<String>();
+        for (Exclude exclude : excludes) {
+            result.add(exclude.pattern);
+        }
+        return result;
+    }
+
+    private static MediaLibrary derive(MediaLibrary complete, String completePath, String path, List<String> excludeFilter) {
+        return complete.getSubLibrary(getRelativePath(completePath, path), FileDirectoryUtils.convertPatternsWildcardToRegex(excludeFilter));
+    }
+
+    /**
+     * Returns path relative to the folder, using '/' as a separator
+     *
+     * @param folder canonical path of a folder
+     * @param path   canonical path within the folder
+     * @return relative path, "" if it's the folder itself
+     */
+    private static String getRelativePath(String folder, String path) {
+        String result = normalize(path).substring(normalize(folder).length());
+        return result.startsWith("/") ? result.substring(1) : result;
+    }
+
+    /**
+     * Checks whether the path is the same as the folder, or located inside of it
+     *
+     * @param path   canonical path
+     * @param folder canonical path of a folder
+     * @return true if the path is within the folder
+     */
+    private static boolean isWithin(String path, String folder) {
+        path = normalize(path);
+        folder = normalize(folder);
+        return folder.isEmpty() || path.equals(folder) || path.startsWith(folder.endsWith("/") ? folder : folder + "/");
+    }
+
+    private static String normalize(String path) {
+        return path.replace('\\', '/');
+    }
+
+    /**
+     * Forgets everything, i.e. when files might have been changed or scan settings are different
+     */
+    public synchronized void clear() {
+        planned.clear();
+        scans.clear();
+    }
+
+}
@@ -0,0 +1,328 @@
+package com.seratosync.filesystem;
+
+import com.seratosync.log.Log;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that media files are what their extensions say, by the signature in their first bytes, so HTML error pages
+ * and broken downloads saved as '.mp3' don't end up in crates. Only the first 16 bytes of a file are read, with
+ * positional reads, and files of a directory are checked in parallel.
+ * <p/>
+ * Verdicts are kept in a sidecar file by path, along with size and modification time, so a file is only read again
+ * once it changes. Verdicts of the files which were not looked up during a run are dropped. Files with extensions
+ * there are no signatures for (i.e. '.dv') are trusted.
+ * <p/>
+ * Sniffing is off unless it's started, like {@link com.seratosync.log.Trace}.
+ */
+public class MediaSniffer {
+
+    public static final String FILE_NAME = "serato-sync.sniffed";
+
+    private static final String VERSION = "serato-sync sniffed 1";
+
+    private static final int HEADER_SIZE = 16;
+    private static final int THREADS = 8;
+
+    // how many of the files left out are listed in the log
+    private static final int REJECTED_LIMIT = 50;
+
+    // extensions of the formats which signatures are known for
+    private static final Set<String> SNIFFED_EXTENSIONS = new HashSet<String>(Arrays.asList(
+            "mp3", "wav", "ogg", "aif", "aac", "alac", "mov", "mp4", "m4a", "avi", "flv", "mpg", "mpeg"));
+
+    private static volatile MediaSniffer active;
+
+    /**
+     * What is known about the contents of a single file
+     */
+    private static class Verdict {
+        private final long size;
+        private final long lastModified;
+        private final boolean media;
+
+        private Verdict(long size, long lastModified, boolean media) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.media = media;
+        }
+    }
+
+    private final File file;
+    private final ConcurrentMap<String, Verdict> verdicts = new ConcurrentHashMap<String, Verdict>();
+    private volatile boolean modified = false;
+    // paths of the files looked up during the run
+    private final Set<String> seen = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ExecutorService executor;
+
+    private final AtomicInteger filesRead = new AtomicInteger();
+    private final AtomicInteger filesCached = new AtomicInteger();
+    private final Set<String> rejected = Collections.synchronizedSet(new TreeSet<String>());
+
+    MediaSniffer(File file) {
+        this.file = file;
+        this.executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "media sniffer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return sniffer of the running rule file, or null if sniffing is off
+     */
+    public static MediaSniffer getActive() {
+        return active;
+    }
+
+    /**
+     * Starts sniffing media files, with verdicts of the previous runs
+     *
+     * @param seratoBasePath serato base path, where verdicts are kept
+     */
+    public static void start(String seratoBasePath) {
+        MediaSniffer sniffer = new MediaSniffer(new File(seratoBasePath + "/" + FILE_NAME));
+        try {
+            sniffer.load();
+        } catch (IOException e) {
+            Log.error("Can't load sniffed media files, all of them will be read. " + e.getMessage());
+            sniffer.verdicts.clear();
+        }
+        active = sniffer;
+    }
+
+    /**
+     * Stops sniffing, saves verdicts and logs files which were left out
+     */
+    public static void stop() {
+        MediaSniffer sniffer = active;
+        if (sniffer == null) {
+            return;
+        }
+        active = null;
+        sniffer.executor.shutdownNow();
+
+        try {
+            sniffer.save();
+        } catch (IOException e) {
+            Log.error("Can't save sniffed media files. " + e.getMessage());
+        }
+        Log.info("* sniffed media files: " + sniffer.filesRead.get() + " read, " + sniffer.filesCached.get() + " known from previous runs, "
+                + sniffer.rejected.size() + " left out as not media");
+        synchronized (sniffer.rejected) {
+            int listed = 0;
+            for (String path : sniffer.rejected) {
+                if (listed++ == REJECTED_LIMIT) {
+                    Log.info("  * ... and " + (sniffer.rejected.size() - REJECTED_LIMIT) + " more");
+                    break;
+                }
+                Log.info("  * not media: " + path);
+            }
+        }
+    }
+
+    /**
+     * Leaves out the files which don't look like media. Files are checked in parallel, and once the drive takes
+     * longer than the deadline to answer for a file, it and the rest of the files which are not checked yet
+     * are trusted by their extensions (and checked again next time)
+     *
+     * @param files         files with media extensions
+     * @param timeoutMillis how long to wait for a single file
+     * @return files which are media, in the same order
+     * @throws InterruptedException if interrupted
+     */
+    public List<File> filter(List<File> files, long timeoutMillis) throws InterruptedException {
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(files.size());
+        try {
+            for (final File file : files) {
+                seen.add(file.getAbsolutePath());
+                results.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() {
+                        return isMedia(file);
+                    }
+                }));
+            }
+
+            List<File> result = new ArrayList<File>(files.size());
+            boolean timedOut = false;
+            for (int i = 0; i < files.size(); i++) {
+                Future<Boolean> media = results.get(i);
+                if (!timedOut) {
+                    try {
+                        media.get(timeoutMillis, TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException e) {
+                        timedOut = true;
+                        Log.error("Reading " + files.get(i).getPath() + " timed out, the rest of its directory is taken by extensions");
+                    }
+                }
+                if (!media.isDone() || media.get()) {
+                    result.add(files.get(i));
+                }
+            }
+            return result;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            for (Future<Boolean> result : results) {
+                result.cancel(true);
+            }
+        }
+    }
+
+    private boolean isMedia(File file) {
+        String name = file.getName();
+        if (!SNIFFED_EXTENSIONS.contains(name.substring(name.lastIndexOf('.') + 1).trim().toLowerCase())) {
+            return true;
+        }
+
+        String path = file.getAbsolutePath();
+        long size = file.length();
+        long lastModified = file.lastModified();
+        Verdict known = verdicts.get(path);
+        if (known != null && known.size == size && known.lastModified == lastModified) {
+            filesCached.incrementAndGet();
+            if (!known.media) {
+                rejected.add(path);
+            }
+            return known.media;
+        }
+
+        byte[] header = new byte[HEADER_SIZE];
+        int length;
+        try {
+            length = readHeader(file, header);
+        } catch (IOException e) {
+            // can't tell, so the extension is trusted, and the file is read again next time
+            return true;
+        }
+        filesRead.incrementAndGet();
+
+        boolean media = hasMediaSignature(header, length);
+        verdicts.put(path, new Verdict(size, lastModified, media));
+        modified = true;
+        if (!media) {
+            rejected.add(path);
+        }
+        return media;
+    }
+
+    private static int readHeader(File file, byte[] header) throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(header);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, buf.position()) < 0) {
+                    break;
+                }
+            }
+            return buf.position();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Checks whether the first bytes of a file are a signature of an audio or video format
+     *
+     * @param header the first bytes of the file
+     * @param length how many bytes there are (the file may be shorter than the header)
+     * @return true if it's a media file
+     */
+    public static boolean hasMediaSignature(byte[] header, int length) {
+        return matches(header, length, 0, "ID3")
+                // MPEG audio frame, or AAC in ADTS
+                || length >= 2 && (header[0] & 0xFF) == 0xFF && (header[1] & 0xE0) == 0xE0
+                || (matches(header, length, 0, "RIFF") || matches(header, length, 0, "RF64"))
+                && (matches(header, length, 8, "WAVE") || matches(header, length, 8, "AVI "))
+                || matches(header, length, 0, "FORM") && (matches(header, length, 8, "AIFF") || matches(header, length, 8, "AIFC"))
+                // MP4 and M4A, and older QuickTime files which start with some other atom
+                || matches(header, length, 4, "ftyp") || matches(header, length, 4, "moov") || matches(header, length, 4, "mdat")
+                || matches(header, length, 4, "wide") || matches(header, length, 4, "free") || matches(header, length, 4, "skip")
+                || matches(header, length, 0, "OggS")
+                || matches(header, length, 0, "fLaC")
+                || matches(header, length, 0, "caff")
+                || matches(header, length, 0, "FLV")
+                // MPEG program stream and MPEG video
+                || length >= 4 && header[0] == 0 && header[1] == 0 && header[2] == 1 && ((header[3] & 0xFF) == 0xBA || (header[3] & 0xFF) == 0xB3);
+    }
+
+    private static boolean matches(byte[] header, int length, int offset, String signature) {
+        if (offset + signature.length() > length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length(); i++) {
+            if (header[offset + i] != (byte) signature.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void load() throws IOException {
+        if (!file.isFile()) {
+            return;
+        }
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            if (!VERSION.equals(in.readLine())) {
+                return;
+            }
+
+            // size, modification time, 1 for media or 0, path
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] items = line.split("\t", 4);
+                if (items.length < 4) {
+                    continue;
+                }
+                try {
+                    verdicts.put(items[3], new Verdict(Long.parseLong(items[0]), Long.parseLong(items[1]), "1".equals(items[2])));
+                } catch (NumberFormatException e) {
+                    // skip malformed line, the file will be read again
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    void save() throws IOException {
+        // files which were moved or deleted are forgotten, unless nothing was looked up at all
+        if (!seen.isEmpty() && verdicts.keySet().retainAll(seen)) {
+            modified = true;
+        }
+        if (!modified) {
+            return;
+        }
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8"));
+        try {
+            out.write(VERSION);
+            out.write("\n");
+            for (Map.Entry<String, Verdict> e : verdicts.entrySet()) {
+                Verdict verdict = e.getValue();
+                out.write(verdict.size + "\t" + verdict.lastModified + "\t" + (verdict.media ? "1" : "0") + "\t" + e.getKey() + "\n");
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!FileDirectoryUtils.replaceFile(tmpFile, file)) {
+            throw new IOException("Can't replace sniffed media files " + file.getName());
+        }
+        modified = false;
+    }
+
+}
@@ -0,0 +1,121 @@
+package com.seratosync.filesystem;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Reads mount points of external drives from the kernel mount table on Linux (/proc/self/mountinfo).
+ * Only the locations where removable and network drives are mounted are considered, and pseudo file systems
+ * are skipped, as they can never contain a music library.
+ */
+public class MountTable {
+
+    private static final String MOUNT_INFO = "/proc/self/mountinfo";
+
+    private static final Set<String> PSEUDO_FILESYSTEMS = new HashSet<String>(Arrays.asList(
+            "autofs", "binfmt_misc", "bpf", "cgroup", "cgroup2", "configfs", "debugfs", "devpts", "devtmpfs",
+            "efivarfs", "fusectl", "hugetlbfs", "mqueue", "nsfs", "proc", "pstore", "ramfs",
+            "rpc_pipefs", "securityfs", "squashfs", "sysfs", "tmpfs", "tracefs"
+    ));
+
+    private static final String[] MOUNT_DIRECTORIES = {"/media/", "/mnt/", "/run/media/"};
+
+    /**
+     * Returns mount points, or an empty list if mount table is not available (i.e. it's not Linux)
+     *
+     * @return list of mount points
+     */
+    public static List<String> readMountPoints() {
+        File mountInfo = new File(MOUNT_INFO);
+        if (!mountInfo.isFile()) {
+            return Collections.emptyList();
+        }
+
+        List<String> result = new ArrayList<String>();
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(mountInfo), "UTF-8"));
+            String line;
+            while ((line = in.readLine()) != null) {
+                String mountPoint = parseMountPoint(line);
+                if (mountPoint != null) {
+                    result.add(mountPoint);
+                }
+            }
+        } catch (IOException e) {
+            // use whatever we were able to read
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // do nothing
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Parses a line of mountinfo file, which looks like:
+     * "36 35 98:0 / /media/usb rw,noatime master:1 - vfat /dev/sdb1 rw"
+     *
+     * @param line line of mountinfo file
+     * @return mount point, or null if it should be skipped
+     */
+    static String parseMountPoint(String line) {
+        String[] fields = line.split(" ");
+        int separator = Arrays.asList(fields).indexOf("-");
+        if (fields.length < 5 || separator < 0 || separator + 1 >= fields.length) {
+            return null;
+        }
+
+        // skip pseudo file systems
+        String fsType = fields[separator + 1];
+        if (PSEUDO_FILESYSTEMS.contains(fsType)) {
+            return null;
+        }
+
+        // only take drives mounted into the usual locations for external drives
+        String mountPoint = unescape(fields[4]);
+        for (String dir : MOUNT_DIRECTORIES) {
+            if (mountPoint.startsWith(dir)) {
+                return mountPoint;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Spaces, tabs, new lines and backslashes are escaped as octal numbers in the mount table
+     *
+     * @param value escaped value
+     * @return unescaped value
+     */
+    private static String unescape(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 3 < value.length() && isOctal(value, i + 1, 3)) {
+                result.append((char) Integer.parseInt(value.substring(i + 1, i + 4), 8));
+                i += 3;
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    private static boolean isOctal(String value, int start, int length) {
+        for (int i = start; i < start + length; i++) {
+            if (value.charAt(i) < '0' || value.charAt(i) > '7') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,177 @@
+package com.seratosync.filesystem;
+
+import java.io.*;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads playlists exported by other DJ software: M3U, M3U8 and PLS. Playlists are read line by line, and entries
+ * are turned into absolute paths, relative entries being relative to the folder of the playlist. Nothing is checked
+ * against the file system here, see {@link DirectoryListingCache} for that.
+ * <p/>
+ * M3U8 playlists are UTF-8. Older M3U and PLS playlists are often written in a legacy encoding, so they are read as
+ * UTF-8 and, if that fails, as windows-1252.
+ */
+public class PlaylistReader {
+
+    private static final Pattern PLS_ENTRY = Pattern.compile("file(\\d+)\\s*=(.*)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern URL = Pattern.compile("^[a-zA-Z][a-zA-Z0-9+.-]+://.*");
+    private static final Pattern WINDOWS_DRIVE = Pattern.compile("^[a-zA-Z]:/.*");
+
+    private PlaylistReader() {
+    }
+
+    public static boolean isPlaylist(String name) {
+        String lowerCase = name.toLowerCase();
+        return lowerCase.endsWith(".m3u") || lowerCase.endsWith(".m3u8") || lowerCase.endsWith(".pls");
+    }
+
+    /**
+     * Reads playlist entries
+     *
+     * @param file playlist file
+     * @return absolute paths of the entries, in playlist order, with '/' as a separator. Entries which are not local
+     * files (i.e. stream URLs) are left out
+     * @throws IOException if the playlist can't be read
+     */
+    public static List<String> read(File file) throws IOException {
+        boolean utf8 = file.getName().toLowerCase().endsWith(".m3u8");
+        try {
+            return read(file, "UTF-8", utf8);
+        } catch (CharacterCodingException e) {
+            return read(file, "windows-1252", true);
+        }
+    }
+
+    private static List<String> read(File file, String charset, boolean lenient) throws IOException {
+        CodingErrorAction action = lenient ? CodingErrorAction.REPLACE : CodingErrorAction.REPORT;
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                Charset.forName(charset).newDecoder().onMalformedInput(action).onUnmappableCharacter(action)));
+        try {
+            File directory = file.getAbsoluteFile().getParentFile();
+            return file.getName().toLowerCase().endsWith(".pls") ? readPls(in, directory) : readM3u(in, directory);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static List<String> readM3u(BufferedReader in, File directory) throws IOException {
+        List<String> result = new ArrayList<String>();
+        for (String line; (line = in.readLine()) != null; ) {
+            line = stripBom(line).trim();
+            // '#EXTM3U', '#EXTINF' and other directives
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String path = toPath(line, directory);
+            if (path != null) {
+                result.add(path);
+            }
+        }
+        return result;
+    }
+
+    private static List<String> readPls(BufferedReader in, File directory) throws IOException {
+        // entries are numbered, and they don't have to be in order
+        Map<Integer, String> entries = new TreeMap<Integer, String>();
+        for (String line; (line = in.readLine()) != null; ) {
+            Matcher matcher = PLS_ENTRY.matcher(stripBom(line).trim());
+            if (matcher.matches()) {
+                try {
+                    entries.put(Integer.valueOf(matcher.group(1)), matcher.group(2).trim());
+                } catch (NumberFormatException e) {
+                    // number is too large, it's not a valid entry
+                }
+            }
+        }
+
+        List<String> result = new ArrayList<String>();
+        for (String entry : entries.values()) {
+            String path = entry.isEmpty() ? null : toPath(entry, directory);
+            if (path != null) {
+                result.add(path);
+            }
+        }
+        return result;
+    }
+
+    private static String stripBom(String line) {
+        return line.startsWith("\uFEFF") ? line.substring(1) : line;
+    }
+
+    /**
+     * Converts playlist entry to an absolute path
+     *
+     * @param entry     playlist entry: absolute or relative path, or file URL
+     * @param directory directory of the playlist
+     * @return normalized absolute path with '/' as a separator, or null if the entry is not a local file
+     */
+    static String toPath(String entry, File directory) {
+        String path;
+        if (entry.regionMatches(true, 0, "file:", 0, 5)) {
+            try {
+                path = new File(new URI(entry.replace(" ", "%20"))).getPath();
+            } catch (URISyntaxException e) {
+                // not escaped properly, which is common, so it's taken as is
+                path = entry.replaceFirst("^[fF][iI][lL][eE]:(//(localhost)?)?", "");
+            } catch (IllegalArgumentException e) {
+                // has a host or a query, so it's not a local file
+                return null;
+            }
+        } else if (URL.matcher(entry).matches()) {
+            return null;
+        } else {
+            path = entry;
+        }
+
+        // playlists written on windows use backslashes
+        path = path.replace('\\', '/');
+        if (!path.startsWith("/") && !WINDOWS_DRIVE.matcher(path).matches()) {
+            path = directory.getPath().replace('\\', '/') + "/" + path;
+        }
+        return normalize(path);
+    }
+
+    /**
+     * Removes '.' and '..' from the path without touching the file system, as playlists may refer to thousands
+     * of files
+     */
+    private static String normalize(String path) {
+        List<String> names = new ArrayList<String>();
+        for (String name : path.split("/")) {
+            if (name.isEmpty() || ".".equals(name)) {
+                continue;
+            }
+            if ("..".equals(name)) {
+                if (!names.isEmpty() && !isWindowsDrive(names.get(names.size() - 1))) {
+                    names.remove(names.size() - 1);
+                }
+                continue;
+            }
+            names.add(name);
+        }
+
+        StringBuilder result = new StringBuilder();
+        for (String name : names) {
+            if (result.length() > 0 || !isWindowsDrive(name)) {
+                result.append('/');
+            }
+            result.append(name);
+        }
+        return result.length() > 0 ? result.toString() : "/";
+    }
+
+    private static boolean isWindowsDrive(String name) {
+        return name.length() == 2 && name.charAt(1) == ':' && Character.isLetter(name.charAt(0));
+    }
+
+}
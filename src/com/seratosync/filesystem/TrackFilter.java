@@ -0,0 +1,248 @@
+package com.seratosync.filesystem;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+
+/**
+ * Predicate over media files, which defines a smart crate. It's a list of conditions separated by ';', and a file
+ * has to match all of them:
+ * <ul>
+ * <li>path *edit* - path relative to the synced folder matches the wildcard pattern</li>
+ * <li>extension mov, mp4 - file has one of the extensions</li>
+ * <li>age &lt; 7d - file was modified less than 7 days ago (also 'h' for hours, '&gt;' for older files)</li>
+ * <li>size &gt; 20mb - file is larger than 20 megabytes (also 'b', 'kb', 'gb', and '&lt;')</li>
+ * </ul>
+ * Size and modification time are only read if one of the filters needs them, and only once per file
+ * no matter how many filters check them. They are read with the deadline of the drive, and if the drive doesn't
+ * respond, conditions on them don't match.
+ */
+public class TrackFilter {
+
+    /**
+     * Media file being checked against filters, it reads file attributes on demand
+     */
+    public static class Track {
+        private final String path;
+        private final String relativePath;
+        private final DriveAccess access;
+        private long size = -1;
+        private long lastModified = -1;
+        private boolean read = false;
+        private boolean unknown = false;
+
+        /**
+         * @param path         absolute path
+         * @param relativePath path relative to the synced folder, using '/' as a separator
+         */
+        public Track(String path, String relativePath) {
+            this(path, relativePath, null);
+        }
+
+        /**
+         * @param path         absolute path
+         * @param relativePath path relative to the synced folder, using '/' as a separator
+         * @param access       access to the drive of the file, attributes are read without a deadline if null
+         */
+        public Track(String path, String relativePath, DriveAccess access) {
+            this.path = path;
+            this.relativePath = relativePath;
+            this.access = access;
+        }
+
+        /**
+         * Tells whether the attributes of the file were needed, but the drive didn't respond
+         *
+         * @return true if it's not known whether the file matches
+         */
+        public boolean isUnknown() {
+            return unknown;
+        }
+
+        private String getExtension() {
+            int dot = relativePath.lastIndexOf('.');
+            return dot > relativePath.lastIndexOf('/') ? relativePath.substring(dot + 1).toLowerCase() : "";
+        }
+
+        /**
+         * Reads size and modification time once
+         *
+         * @return false if the drive didn't respond
+         */
+        private boolean readAttributes() {
+            if (read) {
+                return !unknown;
+            }
+            read = true;
+            Callable<long[]> call = new Callable<long[]>() {
+                public long[] call() {
+                    File file = new File(path);
+                    return new long[]{file.length(), file.lastModified()};
+                }
+            };
+            try {
+                long[] attributes = access != null ? access.call(call, path) : call.call();
+                size = attributes[0];
+                lastModified = attributes[1];
+            } catch (DriveUnavailableException e) {
+                unknown = true;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            return !unknown;
+        }
+
+    }
+
+    private interface Condition {
+        boolean matches(Track track);
+    }
+
+    private final List<Condition> conditions = new ArrayList<Condition>();
+
+    private TrackFilter() {
+    }
+
+    /**
+     * Parses filter definition
+     *
+     * @param definition conditions separated by ';'
+     * @param now        current time, which file age is counted from
+     * @return filter
+     * @throws IllegalArgumentException if definition is malformed
+     */
+    public static TrackFilter parse(String definition, long now) {
+        TrackFilter result = new TrackFilter();
+        for (String item : definition.split(";")) {
+            item = item.trim();
+            if (item.isEmpty()) {
+                continue;
+            }
+            int space = item.indexOf(' ');
+            if (space < 0) {
+                throw new IllegalArgumentException("Invalid condition: " + item);
+            }
+            String name = item.substring(0, space);
+            String value = item.substring(space + 1).trim();
+            if ("path".equals(name)) {
+                result.conditions.add(pathCondition(value));
+            } else if ("extension".equals(name)) {
+                result.conditions.add(extensionCondition(value));
+            } else if ("age".equals(name)) {
+                result.conditions.add(ageCondition(value, now));
+            } else if ("size".equals(name)) {
+                result.conditions.add(sizeCondition(value));
+            } else {
+                throw new IllegalArgumentException("Unsupported condition: " + item);
+            }
+        }
+        if (result.conditions.isEmpty()) {
+            throw new IllegalArgumentException("No conditions: " + definition);
+        }
+        return result;
+    }
+
+    public boolean matches(Track track) {
+        for (Condition condition : conditions) {
+            if (!condition.matches(track)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Condition pathCondition(String value) {
+        // file names are matched regardless of the case, 'Edit' is as good as 'edit'
+        Pattern wildcard = FileDirectoryUtils.convertPatternsWildcardToRegex(Collections.singletonList(value)).get(0);
+        final Pattern pattern = Pattern.compile(wildcard.pattern(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+        return new Condition() {
+            public boolean matches(Track track) {
+                return pattern.matcher(track.relativePath).matches();
+            }
+        };
+    }
+
+    private static Condition extensionCondition(String value) {
+        final Set<String> extensions = new HashSet<String>();
+        for (String extension : value.split(",")) {
+            extension = extension.trim().toLowerCase();
+            if (extension.startsWith(".")) {
+                extension = extension.substring(1);
+            }
+            if (!extension.isEmpty()) {
+                extensions.add(extension);
+            }
+        }
+        return new Condition() {
+            public boolean matches(Track track) {
+                return extensions.contains(track.getExtension());
+            }
+        };
+    }
+
+    private static Condition ageCondition(String value, long now) {
+        final boolean less = isLess(value);
+        String amount = value.substring(1).trim().toLowerCase();
+        long unit;
+        if (amount.endsWith("d")) {
+            unit = 24L * 60 * 60 * 1000;
+        } else if (amount.endsWith("h")) {
+            unit = 60L * 60 * 1000;
+        } else {
+            throw new IllegalArgumentException("Invalid age, expected something like '< 7d' or '> 12h': " + value);
+        }
+        final long threshold = now - parseNumber(amount.substring(0, amount.length() - 1), value) * unit;
+        return new Condition() {
+            public boolean matches(Track track) {
+                if (!track.readAttributes()) {
+                    return false;
+                }
+                return less ? track.lastModified > threshold : track.lastModified < threshold;
+            }
+        };
+    }
+
+    private static Condition sizeCondition(String value) {
+        final boolean less = isLess(value);
+        String amount = value.substring(1).trim().toLowerCase();
+        long unit = 1;
+        if (amount.endsWith("kb")) {
+            unit = 1024;
+        } else if (amount.endsWith("mb")) {
+            unit = 1024 * 1024;
+        } else if (amount.endsWith("gb")) {
+            unit = 1024 * 1024 * 1024;
+        } else if (!amount.endsWith("b")) {
+            throw new IllegalArgumentException("Invalid size, expected something like '> 20mb' or '< 500kb': " + value);
+        }
+        final long threshold = parseNumber(amount.substring(0, amount.length() - (unit == 1 ? 1 : 2)), value) * unit;
+        return new Condition() {
+            public boolean matches(Track track) {
+                if (!track.readAttributes()) {
+                    return false;
+                }
+                return less ? track.size < threshold : track.size > threshold;
+            }
+        };
+    }
+
+    private static boolean isLess(String value) {
+        if (value.startsWith("<")) {
+            return true;
+        }
+        if (value.startsWith(">")) {
+            return false;
+        }
+        throw new IllegalArgumentException("Expected '<' or '>': " + value);
+    }
+
+    private static long parseNumber(String number, String value) {
+        try {
+            return Long.parseLong(number.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number: " + value);
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+package com.seratosync.filesystem;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Compares file names regardless of unicode normalization. Mac OS returns file names decomposed (NFD), while
+ * the same names written by Windows or other tools are usually composed (NFC), so an accented letter may be stored
+ * either as a single character or as a letter followed by a combining accent.
+ * <p/>
+ * The key of a name is its NFC form. Names with nothing to normalize (the vast majority of them) are their own
+ * keys, and are recognized with a single pass over characters. Keys of the other names are cached, so every name
+ * is normalized only once per run.
+ */
+public class UnicodeNames {
+
+    // characters below combining diacritical marks are left intact by composition (NFC)
+    private static final char FIRST_UNCOMPOSED = '\u0300';
+
+    // characters below latin-1 letters are left intact by decomposition (NFD) as well
+    private static final char FIRST_UNDECOMPOSED = '\u00c0';
+
+    // cache is not grown any further after this, names are normalized every time then
+    private static final int CACHE_LIMIT = 1 << 18;
+
+    private static final ConcurrentMap<String, String> keys = new ConcurrentHashMap<String, String>();
+
+    private static boolean isBelow(String name, char limit) {
+        for (int i = 0, length = name.length(); i < length; i++) {
+            if (name.charAt(i) >= limit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the key to compare names by
+     *
+     * @param name file name or path
+     * @return NFC form of the name, the same instance if there is nothing to normalize
+     */
+    public static String key(String name) {
+        if (isBelow(name, FIRST_UNCOMPOSED)) {
+            return name;
+        }
+        String result = keys.get(name);
+        if (result == null) {
+            result = Normalizer.normalize(name, Normalizer.Form.NFC);
+            if (keys.size() < CACHE_LIMIT) {
+                keys.putIfAbsent(name, result);
+            }
+        }
+        // the cached key may be an equal copy of the name
+        return result.equals(name) ? name : result;
+    }
+
+    /**
+     * Checks whether the names are the same, regardless of normalization
+     */
+    public static boolean equivalent(String name1, String name2) {
+        return name1.equals(name2) || key(name1).equals(key(name2));
+    }
+
+    /**
+     * Returns other forms the name may have on disk
+     *
+     * @param name file name or path
+     * @return NFC and NFD forms of the name which are different from it, none if there is nothing to normalize
+     */
+    public static List<String> getVariants(String name) {
+        List<String> result = new ArrayList<String>(2);
+        if (isBelow(name, FIRST_UNDECOMPOSED)) {
+            return result;
+        }
+        String composed = key(name);
+        if (!composed.equals(name)) {
+            result.add(composed);
+        }
+        String decomposed = Normalizer.normalize(name, Normalizer.Form.NFD);
+        if (!decomposed.equals(name) && !decomposed.equals(composed)) {
+            result.add(decomposed);
+        }
+        return result;
+    }
+
+}
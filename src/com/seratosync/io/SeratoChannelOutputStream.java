@@ -0,0 +1,100 @@
+package com.seratosync.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Output stream which collects data in a large direct buffer and writes it into a file channel.
+ * Blocks which don't fit into the buffer are written together with the pending data using a single
+ * gathering write, so they are never copied. Buffers are reused between streams created by the same thread.
+ */
+public class SeratoChannelOutputStream extends OutputStream {
+
+    private static final int BUFFER_SIZE = 1 << 18;
+
+    // direct buffers are expensive to allocate, so we keep one per thread and reuse it for every file
+    private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<ByteBuffer>();
+
+    private FileChannel channel;
+    private ByteBuffer buffer;
+
+    public SeratoChannelOutputStream(FileChannel channel) {
+        this.channel = channel;
+        this.buffer = BUFFERS.get();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        } else {
+            // taken by this stream until it's closed
+            BUFFERS.set(null);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (!buffer.hasRemaining()) {
+            flushBuffer();
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (len <= buffer.remaining()) {
+            buffer.put(b, off, len);
+            return;
+        }
+
+        // write pending data and the new block in one go
+        buffer.flip();
+        ByteBuffer[] batch = new ByteBuffer[]{buffer, ByteBuffer.wrap(b, off, len)};
+        long total = buffer.remaining() + (long) len;
+        while (total > 0) {
+            total -= channel.write(batch);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        flushBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            flushBuffer();
+        } finally {
+            try {
+                channel.close();
+            } finally {
+                channel = null;
+                BUFFERS.set(buffer);
+                buffer = null;
+            }
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (channel == null) {
+            throw new IOException("Stream is closed");
+        }
+    }
+
+}
@@ -203,6 +203,27 @@ public class SeratoInputStream extends DataInputStream {
         return data;
     }
 
+    /**
+     * Utility method for reading everything up to the end of the stream in bulk
+     *
+     * @return byte array that was read
+     * @throws com.seratosync.db.SeratoLibraryException
+     *          In case of I/O exception
+     */
+    public byte[] readRemainingBytes() throws SeratoLibraryException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 14);
+        byte[] buf = new byte[1 << 16];
+        try {
+            int read;
+            while ((read = read(buf)) >= 0) {
+                out.write(buf, 0, read);
+            }
+        } catch (IOException e) {
+            throw new SeratoLibraryException(e);
+        }
+        return out.toByteArray();
+    }
+
     /**
      * Utility method for reading UTF-8 string
      *
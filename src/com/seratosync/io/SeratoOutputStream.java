@@ -6,6 +6,7 @@ import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 
 public class SeratoOutputStream extends DataOutputStream {
 
@@ -13,9 +14,21 @@ public class SeratoOutputStream extends DataOutputStream {
         super(new BufferedOutputStream(out));
     }
 
+    public SeratoOutputStream(FileChannel channel) {
+        super(new SeratoChannelOutputStream(channel));
+    }
+
     public void writeUTF16(String value) throws SeratoLibraryException {
+        // same byte order as writeChars(), but encoded in bulk
+        int length = value.length();
+        byte[] data = new byte[length << 1];
+        for (int i = 0, k = 0; i < length; i++) {
+            char c = value.charAt(i);
+            data[k++] = (byte) (c >>> 8);
+            data[k++] = (byte) c;
+        }
         try {
-            writeChars(value);
+            write(data, 0, data.length);
         } catch (IOException e) {
             throw new SeratoLibraryException(e);
         }
@@ -27,12 +40,10 @@ public class SeratoOutputStream extends DataOutputStream {
             data[bytes - 1 - i] = (byte) (value & 0xFF);
             value >>>= 8;
         }
-        for (byte v : data) {
-            try {
-                write(v);
-            } catch (IOException e) {
-                throw new SeratoLibraryException(e);
-            }
+        try {
+            write(data, 0, bytes);
+        } catch (IOException e) {
+            throw new SeratoLibraryException(e);
         }
     }
 
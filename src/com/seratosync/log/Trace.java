@@ -0,0 +1,173 @@
+package com.seratosync.log;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Records timed events of a run (actions, directory scans, serato file reads and writes, existence checks, backup
+ * entries), so it can be seen where the time went when a run is slow. Each event carries a path, a count and a size
+ * in bytes. Recording is off unless it's started, and events cost nothing but a check then.
+ * <p/>
+ * Events are written into a tab separated file when recording stops, and totals by event type are logged.
+ */
+public class Trace {
+
+    public static final String ACTION = "action";
+    public static final String SCAN = "scan";
+    public static final String LOAD = "load";
+    public static final String SAVE = "save";
+    public static final String EXISTENCE_CHECK = "existence-check";
+    public static final String ZIP_ENTRY = "zip-entry";
+
+    private static final String VERSION = "serato-sync trace 1";
+
+    // events are only collected while recording
+    private static volatile Recording recording;
+
+    /**
+     * Single timed event
+     */
+    public static class Event {
+        private final Recording owner;
+        private final String type;
+        private final String path;
+        private final String thread;
+        private final long start;
+        private long duration;
+        private long count;
+        private long bytes;
+
+        private Event(Recording owner, String type, String path) {
+            this.owner = owner;
+            this.type = type;
+            this.path = path;
+            this.thread = owner != null ? Thread.currentThread().getName() : null;
+            this.start = owner != null ? System.nanoTime() : 0;
+        }
+
+        public Event count(long count) {
+            this.count = count;
+            return this;
+        }
+
+        public Event bytes(long bytes) {
+            this.bytes = bytes;
+            return this;
+        }
+
+        /**
+         * Completes the event, it's recorded only if recording is still the same as when the event has started
+         */
+        public void end() {
+            if (owner != null && owner == recording) {
+                duration = System.nanoTime() - start;
+                owner.events.add(this);
+            }
+        }
+    }
+
+    private static final Event DISABLED = new Event(null, null, null);
+
+    private static class Recording {
+        private final File file;
+        private final long start = System.nanoTime();
+        private final Queue<Event> events = new ConcurrentLinkedQueue<Event>();
+
+        private Recording(File file) {
+            this.file = file;
+        }
+    }
+
+    private Trace() {
+    }
+
+    public static boolean isRecording() {
+        return recording != null;
+    }
+
+    /**
+     * Starts an event, it has to be completed by {@link Event#end()}
+     *
+     * @param type event type
+     * @param path file or directory the event is about
+     * @return event
+     */
+    public static Event begin(String type, String path) {
+        Recording current = recording;
+        return current != null ? new Event(current, type, path) : DISABLED;
+    }
+
+    /**
+     * Starts recording, events recorded so far are dropped
+     *
+     * @param file file to write events into
+     */
+    public static void start(File file) {
+        recording = new Recording(file);
+    }
+
+    /**
+     * Stops recording, writes all events into the file and logs totals by event type
+     */
+    public static void stop() {
+        Recording current = recording;
+        if (current == null) {
+            return;
+        }
+        recording = null;
+
+        List<Event> events = new ArrayList<Event>(current.events);
+        Collections.sort(events, new Comparator<Event>() {
+            public int compare(Event a, Event b) {
+                return a.start < b.start ? -1 : a.start > b.start ? 1 : 0;
+            }
+        });
+        try {
+            write(current, events);
+        } catch (IOException e) {
+            Log.error("Can't write trace file " + current.file.getPath() + ". " + e.getMessage());
+        }
+        logTotals(events);
+    }
+
+    private static void write(Recording recording, List<Event> events) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(recording.file), "UTF-8"));
+        try {
+            // start and duration in microseconds, thread, type, count, bytes, path
+            out.write(VERSION);
+            out.write("\n");
+            for (Event event : events) {
+                out.write((event.start - recording.start) / 1000 + "\t" + event.duration / 1000 + "\t" + event.thread + "\t"
+                        + event.type + "\t" + event.count + "\t" + event.bytes + "\t" + event.path + "\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void logTotals(List<Event> events) {
+        Map<String, long[]> totals = new TreeMap<String, long[]>();
+        for (Event event : events) {
+            long[] total = totals.get(event.type);
+            if (total == null) {
+                // events, total time, the longest event, count, bytes
+                total = new long[5];
+                totals.put(event.type, total);
+            }
+            total[0]++;
+            total[1] += event.duration;
+            total[2] = Math.max(total[2], event.duration);
+            total[3] += event.count;
+            total[4] += event.bytes;
+        }
+
+        Log.info("* trace: " + events.size() + " events");
+        for (Map.Entry<String, long[]> e : totals.entrySet()) {
+            long[] total = e.getValue();
+            Log.info("  * " + e.getKey() + ": " + total[0] + " events, " + total[1] / 1000000 + " ms total, "
+                    + total[2] / 1000000 + " ms max, count " + total[3] + ", " + total[4] + " bytes");
+        }
+    }
+
+}
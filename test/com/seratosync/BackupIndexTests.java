@@ -0,0 +1,60 @@
+package com.seratosync;
+
+import com.seratosync.db.SeratoBackupIndex;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class BackupIndexTests extends TempDirTestCase {
+
+    private void createArchive(String name, String... entries) throws IOException {
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(new File(dir, name)));
+        try {
+            for (String entry : entries) {
+                out.putNextEntry(new ZipEntry(entry));
+                out.write(entry.getBytes("UTF-8"));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public void testLatestCopies() throws Exception {
+        createArchive("backup_2024_01_01_10_00_00.zip", "database V2", "Subcrates/Sets%%Friday.crate");
+        createArchive("backup_2024_02_01_10_00_00.zip", "database V2", "Subcrates/Sets%%Friday.crate", "Subcrates/New.crate");
+        createArchive("backup_2023_12_01_10_00_00.zip", "database V2");
+        createArchive("other.zip", "Subcrates/Sets%%Friday.crate");
+
+        SeratoBackupIndex index = new SeratoBackupIndex(dir);
+        index.load();
+        assertEquals(3, index.refresh());
+        assertEquals(Arrays.asList("backup_2024_02_01_10_00_00.zip", "backup_2024_01_01_10_00_00.zip"), index.getArchives("Subcrates/Sets%%Friday.crate"));
+        assertEquals(Collections.singletonList("backup_2024_02_01_10_00_00.zip"), index.getArchives("Subcrates/New.crate"));
+        assertEquals(3, index.getArchives("database V2").size());
+
+        // broken copies are skipped
+        index.markBroken("backup_2024_02_01_10_00_00.zip", "Subcrates/Sets%%Friday.crate");
+        assertEquals(Collections.singletonList("backup_2024_01_01_10_00_00.zip"), index.getArchives("Subcrates/Sets%%Friday.crate"));
+        index.save();
+
+        // archives are not read again, unless they change
+        index = new SeratoBackupIndex(dir);
+        index.load();
+        assertEquals(0, index.refresh());
+        assertEquals(Collections.singletonList("backup_2024_01_01_10_00_00.zip"), index.getArchives("Subcrates/Sets%%Friday.crate"));
+        assertEquals(3, index.getEntries("backup_2024_02_01_10_00_00.zip").size());
+
+        new File(dir, "backup_2023_12_01_10_00_00.zip").delete();
+        createArchive("backup_2024_01_01_10_00_00.zip", "database V2", "Subcrates/Sets%%Friday.crate", "Subcrates/New.crate");
+        assertEquals(1, index.refresh());
+        assertEquals(2, index.getArchives("database V2").size());
+        assertEquals(2, index.getArchives("Subcrates/New.crate").size());
+    }
+
+}
@@ -69,6 +69,22 @@ public class CrateSerializationTests extends TestCase {
         }
     }
 
+    private static void testRWChannel(String fileName) throws SeratoLibraryException, IOException {
+        File file = new File(fileName);
+        SeratoCrateFile crate = new SeratoCrateFile();
+        crate.loadFrom(file);
+
+        File reassembled = File.createTempFile("serato-sync", ".crate");
+        try {
+            crate.saveTo(reassembled);
+            if (!md5(file).equals(md5(reassembled))) {
+                throw new SeratoLibraryException("md5 mismatch");
+            }
+        } finally {
+            reassembled.delete();
+        }
+    }
+
     public void testMacCrates() throws SeratoLibraryException {
         // Crates from Mac OS
         testRW("test/resources/mac/small.crate");
@@ -85,4 +101,13 @@ public class CrateSerializationTests extends TestCase {
         testRW("test/resources/win/disk-z.crate");
     }
 
+    public void testChannelWrites() throws SeratoLibraryException, IOException {
+        // Crates written into the file channel
+        testRWChannel("test/resources/mac/small.crate");
+        testRWChannel("test/resources/mac/large.crate");
+        testRWChannel("test/resources/mac/main%%sub1%%subsub1.crate");
+        testRWChannel("test/resources/win/disk-c.crate");
+        testRWChannel("test/resources/win/disk-z.crate");
+    }
+
 }
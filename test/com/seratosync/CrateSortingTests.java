@@ -0,0 +1,42 @@
+package com.seratosync;
+
+import com.seratosync.actions.PruneSeratoDatabaseAction.CrateFileNameAdvancedComparator;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class CrateSortingTests extends TestCase {
+
+    private void test(String rules, List<String> expected) {
+        List<String> shuffled = new ArrayList<String>(expected);
+        Collections.reverse(shuffled);
+        Collections.rotate(shuffled, 2);
+
+        CrateFileNameAdvancedComparator comparator = new CrateFileNameAdvancedComparator(rules);
+        comparator.sort(shuffled);
+        assertEquals(expected, shuffled);
+    }
+
+    public void testPlainOrdering() {
+        test("default ascending", Arrays.asList("Set 1", "Set 10", "Set 2", "Set 2%%A", "Set 2%%B"));
+        test("default descending", Arrays.asList("Set 2", "Set 2%%B", "Set 2%%A", "Set 10", "Set 1"));
+        test("default ascending, level 1 descending", Arrays.asList("a", "a%%z", "a%%y", "b", "b%%x"));
+    }
+
+    public void testNaturalOrdering() {
+        test("default natural", Arrays.asList("Set 1", "Set 2", "Set 2%%Part 9", "Set 2%%Part 10", "Set 10", "Set 010b", "Setlist"));
+        test("default ascending, level 0 natural descending", Arrays.asList("Set 10", "Set 2", "Set 2%%Part 10", "Set 2%%Part 9", "Set 1"));
+    }
+
+    public void testCompareMatchesSort() {
+        CrateFileNameAdvancedComparator comparator = new CrateFileNameAdvancedComparator("default natural");
+        assertTrue(comparator.compare("Set 2", "Set 10") < 0);
+        assertTrue(comparator.compare("Set 2%%b", "Set 2%%a") > 0);
+        assertTrue(comparator.compare("a", "a%%b") < 0);
+        assertEquals(0, comparator.compare("a", "a"));
+    }
+
+}
@@ -0,0 +1,61 @@
+package com.seratosync;
+
+import com.seratosync.db.SeratoLibraryIndex;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+
+public class LibraryIndexTests extends TestCase {
+
+    private SeratoLibraryIndex createIndex() {
+        SeratoLibraryIndex index = new SeratoLibraryIndex();
+        index.addDatabaseTracks(Arrays.asList("Music/A/1.mp3", "Music/A/2.mp3", "Music/B/3.mp3", "Music/B/4.mp3", "Video/5.mp4"));
+        index.addCrate("A", Arrays.asList("Music/A/1.mp3", "Music/A/2.mp3", "Music/A/1.mp3"));
+        index.addCrate("B", Arrays.asList("Music/B/3.mp3"));
+        index.addCrate("All", Arrays.asList("Music/A/1.mp3", "Music/A/2.mp3", "Music/B/3.mp3", "Other/6.mp3"));
+        return index;
+    }
+
+    public void testCounts() {
+        SeratoLibraryIndex index = createIndex();
+        assertEquals(6, index.getTrackCount());
+        assertEquals(5, index.getDatabaseTrackCount());
+        assertEquals(3, index.getCrateCount());
+    }
+
+    public void testTracksWithoutCrate() {
+        SeratoLibraryIndex index = createIndex();
+        assertEquals(Arrays.asList("Music/B/4.mp3", "Video/5.mp4"), index.getTracksWithoutCrate());
+        assertEquals(Arrays.asList("Other/6.mp3"), index.getTracksNotInDatabase());
+    }
+
+    public void testOverlappingCrates() {
+        SeratoLibraryIndex index = createIndex();
+
+        List<SeratoLibraryIndex.Overlap> overlaps = index.findOverlappingCrates(0.9, 10);
+        assertEquals(2, overlaps.size());
+        assertEquals("A", overlaps.get(0).getCrate1());
+        assertEquals("All", overlaps.get(0).getCrate2());
+        assertEquals(2, overlaps.get(0).getShared());
+        assertEquals("B", overlaps.get(1).getCrate1());
+        assertEquals(1, overlaps.get(1).getShared());
+
+        // only the best ones are kept
+        assertEquals(1, index.findOverlappingCrates(0.9, 1).size());
+        assertEquals("A", index.findOverlappingCrates(0.9, 1).get(0).getCrate1());
+    }
+
+    public void testTracksByFolder() {
+        SortedMap<String, Integer> byFolder = createIndex().countDatabaseTracksByFolder(2);
+        assertEquals(3, byFolder.size());
+        assertEquals(Integer.valueOf(2), byFolder.get("Music/A"));
+        assertEquals(Integer.valueOf(2), byFolder.get("Music/B"));
+        assertEquals(Integer.valueOf(1), byFolder.get("Video"));
+
+        assertEquals("", SeratoLibraryIndex.getFolder("1.mp3", 2));
+        assertEquals("Music", SeratoLibraryIndex.getFolder("Music/A/1.mp3", 1));
+    }
+
+}
@@ -0,0 +1,126 @@
+package com.seratosync;
+
+import com.seratosync.db.SeratoLibraryException;
+import com.seratosync.db.files.SeratoCrateFile;
+import com.seratosync.db.files.SeratoPathRewriter;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+public class PathRewriteTests extends TestCase {
+
+    private static final String OLD = "Users/ralekseenkov/Music/iTunes/iTunes Music/Music";
+
+    private static File copy(String fileName) throws IOException {
+        File result = File.createTempFile("serato-sync", ".crate");
+        FileInputStream in = new FileInputStream(fileName);
+        FileOutputStream out = new FileOutputStream(result);
+        try {
+            byte[] buf = new byte[1 << 16];
+            int read;
+            while ((read = in.read(buf)) >= 0) {
+                out.write(buf, 0, read);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+        return result;
+    }
+
+    private static SeratoCrateFile load(File file) throws SeratoLibraryException {
+        SeratoCrateFile crate = new SeratoCrateFile();
+        crate.loadFrom(file);
+        return crate;
+    }
+
+    public void testRewrite() throws SeratoLibraryException, IOException {
+        File file = copy("test/resources/mac/large.crate");
+        try {
+            int tracks = load(file).getEntries().trackCount();
+
+            // longer prefix wins, and prefixes only match whole folder names
+            Map<String, String> prefixes = new HashMap<String, String>();
+            prefixes.put(OLD + "/", "/DJ/\u00C9lectro");
+            prefixes.put(OLD + "/UP-TO-2009-06", "DJ/2009");
+            prefixes.put("Users/ralekseenkov/Music/iTunes/iTunes", "Other");
+            assertEquals(tracks, new SeratoPathRewriter(prefixes).rewrite(file, false));
+
+            SeratoCrateFile crate = load(file);
+            assertEquals(tracks, crate.getEntries().trackCount());
+            assertTrue(crate.getEntries().containsTrack("DJ/2009/tech-house/Jay Cox - Frustrated (Original Mix).mp3"));
+            for (String track : crate.getEntries().getTracks()) {
+                assertTrue(track, track.startsWith("DJ/2009/") || track.startsWith("DJ/\u00C9lectro/"));
+            }
+
+            // nothing matches anymore, and the file is left as is
+            long lastModified = file.lastModified();
+            assertEquals(0, new SeratoPathRewriter(prefixes).rewrite(file, false));
+            assertEquals(lastModified, file.lastModified());
+
+            // dry run counts, but doesn't change anything
+            Map<String, String> back = new HashMap<String, String>();
+            back.put("DJ/2009", OLD + "/UP-TO-2009-06");
+            back.put("DJ/\u00C9lectro", OLD);
+            String md5 = CrateSerializationTests.md5(file);
+            // not even a temporary file is written, so it would fail if it did
+            File tmpFile = new File(file.getPath() + ".tmp");
+            assertTrue(tmpFile.mkdir());
+            try {
+                assertEquals(tracks, new SeratoPathRewriter(back).rewrite(file, true));
+            } finally {
+                tmpFile.delete();
+            }
+            assertEquals(md5, CrateSerializationTests.md5(file));
+
+            // the way back restores the original file byte by byte
+            assertEquals(tracks, new SeratoPathRewriter(back).rewrite(file, false));
+            assertEquals(CrateSerializationTests.md5(new File("test/resources/mac/large.crate")), CrateSerializationTests.md5(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testRewriteToDriveRoot() throws SeratoLibraryException, IOException {
+        File file = copy("test/resources/win/disk-c.crate");
+        try {
+            int tracks = load(file).getEntries().trackCount();
+            assertEquals(tracks, new SeratoPathRewriter(Collections.singletonMap("LOL", "")).rewrite(file, false));
+            for (String track : load(file).getEntries().getTracks()) {
+                assertFalse(track, track.startsWith("/"));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testRewriteOntoExistingPath() throws SeratoLibraryException, IOException {
+        // the entry with the old path is dropped, whichever comes first
+        for (boolean oldFirst : new boolean[]{true, false}) {
+            File file = File.createTempFile("serato-sync", ".crate");
+            try {
+                SeratoCrateFile crate = new SeratoCrateFile();
+                crate.getEntries().addTracks(oldFirst
+                        ? Arrays.asList("Music/Old/a.mp3", "Music/New/a.mp3", "Music/Old/b.mp3")
+                        : Arrays.asList("Music/New/a.mp3", "Music/Old/a.mp3", "Music/Old/b.mp3"));
+                crate.saveTo(file);
+
+                assertEquals(2, new SeratoPathRewriter(Collections.singletonMap("Music/Old", "Music/New")).rewrite(file, false));
+                crate = load(file);
+                assertEquals(new HashSet<String>(Arrays.asList("Music/New/a.mp3", "Music/New/b.mp3")), crate.getEntries().getTracks());
+                assertEquals(1, crate.getEntries().removeTracks(Collections.singleton("Music/New/a.mp3")));
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.seratosync;
+
+import com.seratosync.db.SeratoLibrary;
+import com.seratosync.db.files.SeratoCrateFile;
+import com.seratosync.filesystem.FileDirectoryUtils;
+import com.seratosync.filesystem.MediaLibrary;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+public class SubcrateTracksTests extends TempDirTestCase {
+
+    private Set<String> getTracks(String crateName) throws Exception {
+        File crateFile = new File(dir, "_Serato_/Subcrates/" + crateName + ".crate");
+        if (!crateFile.isFile()) {
+            return Collections.emptySet();
+        }
+        SeratoCrateFile crate = new SeratoCrateFile();
+        crate.loadFrom(crateFile);
+
+        // relative to the synced folder
+        String prefix = FileDirectoryUtils.convertFromFileToSeratoFile(new File(dir, "Music").getAbsolutePath()) + "/";
+        Set<String> result = new TreeSet<String>();
+        for (String track : crate.getEntries().getTracks()) {
+            assertTrue(track, track.startsWith(prefix));
+            result.add(track.substring(prefix.length()));
+        }
+        return result;
+    }
+
+    public void testSubtreeTracks() throws Exception {
+        // 'AB' and 'A.old' share the prefix with 'A', and sort right after and right before 'A/'
+        for (String name : Arrays.asList("root.mp3", "A/a.mp3", "A/Sub/s.mp3", "A/Sub/Deeper/d.mp3", "AB/b.mp3", "A.old/o.mp3")) {
+            createFile("Music/" + name, new byte[0]);
+        }
+        new File(dir, "_Serato_/Subcrates").mkdirs();
+
+        // synced folder with a trailing separator, it mustn't matter
+        String music = new File(dir, "Music").getAbsolutePath();
+        SeratoLibrary library = new SeratoLibrary(new File(dir, "_Serato_").getPath(), "/Music", music + File.separator, false, false, true);
+
+        // directories are written after their sub-directories, siblings of 'A' first, so their tracks are known by then
+        MediaLibrary scanned = MediaLibrary.readFrom(music, Collections.<Pattern>emptyList());
+        for (String path : Arrays.asList("AB", "A.old", "A/Sub/Deeper", "A/Sub", "A", "")) {
+            MediaLibrary directory = scanned;
+            List<String> relativePath = path.isEmpty() ? Collections.<String>emptyList() : Arrays.asList(path.split("/"));
+            for (String name : relativePath) {
+                directory = directory.getChild(name);
+            }
+            library.writeDirectory(directory, relativePath);
+        }
+        library.finish();
+
+        assertEquals(new TreeSet<String>(Arrays.asList("root.mp3", "A/a.mp3", "A/Sub/s.mp3", "A/Sub/Deeper/d.mp3", "AB/b.mp3", "A.old/o.mp3")),
+                getTracks("Music"));
+        assertEquals(new TreeSet<String>(Arrays.asList("A/a.mp3", "A/Sub/s.mp3", "A/Sub/Deeper/d.mp3")), getTracks("Music%%A"));
+        assertEquals(new TreeSet<String>(Arrays.asList("A/Sub/s.mp3", "A/Sub/Deeper/d.mp3")), getTracks("Music%%A%%Sub"));
+        assertEquals(new TreeSet<String>(Arrays.asList("AB/b.mp3")), getTracks("Music%%AB"));
+        assertEquals(new TreeSet<String>(Arrays.asList("A.old/o.mp3")), getTracks("Music%%A.old"));
+    }
+
+}
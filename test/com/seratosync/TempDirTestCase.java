@@ -0,0 +1,64 @@
+package com.seratosync;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Test case which works with files in a temporary directory, the directory is deleted after every test
+ */
+public abstract class TempDirTestCase extends TestCase {
+
+    protected File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = File.createTempFile(getClass().getSimpleName(), "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        delete(dir);
+    }
+
+    private static void delete(File file) throws IOException {
+        // linked directories are deleted, not their contents
+        File canonical = new File(file.getParentFile().getCanonicalFile(), file.getName());
+        if (canonical.getCanonicalFile().equals(canonical)) {
+            File[] files = file.listFiles();
+            if (files != null) {
+                for (File child : files) {
+                    delete(child);
+                }
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Creates a file in the temporary directory, along with its parent directories
+     *
+     * @param name path relative to the temporary directory
+     * @param data contents
+     * @return file
+     * @throws IOException in case of I/O exception
+     */
+    protected File createFile(String name, byte[] data) throws IOException {
+        File file = new File(dir, name);
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.seratosync;
+
+import com.seratosync.db.SeratoLibraryException;
+import com.seratosync.db.files.entries.SeratoFileEntry;
+import com.seratosync.db.files.entries.SeratoTrackEntryEncoder;
+import com.seratosync.io.SeratoOutputStream;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class TrackEntryEncodingTests extends TestCase {
+
+    private static byte[] encodeWithStream(String trackSeratoPath) throws IOException, SeratoLibraryException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        SeratoOutputStream out = new SeratoOutputStream(buf);
+        out.writeBytes("ptrk");
+        out.writeInt(trackSeratoPath.length() * 2);
+        out.writeUTF16(trackSeratoPath);
+        out.close();
+        return buf.toByteArray();
+    }
+
+    private void test(SeratoTrackEntryEncoder encoder, String trackSeratoPath) throws IOException, SeratoLibraryException {
+        SeratoFileEntry entry = encoder.createTrackEntry(trackSeratoPath);
+        assertEquals("otrk", entry.getName());
+        assertTrue(Arrays.equals(encodeWithStream(trackSeratoPath), entry.getValue()));
+        assertEquals(trackSeratoPath, entry.getTrackName());
+    }
+
+    public void testEncoding() throws IOException, SeratoLibraryException {
+        // small initial capacity, so the buffer has to grow along the way
+        SeratoTrackEntryEncoder encoder = new SeratoTrackEntryEncoder(16);
+        test(encoder, "root.mp3");
+        test(encoder, "Music/Very good album/track.mp3");
+        test(encoder, "Music/Bj\u00f6rk/J\u00f3ga \u2013 Radio Edit.mp3");
+        test(encoder, "a.mp3");
+    }
+
+    public void testRelocation() throws IOException, SeratoLibraryException {
+        // database V2 record with other sections around the path
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        SeratoOutputStream out = new SeratoOutputStream(buf);
+        out.writeBytes("ttyp");
+        out.writeInt(6);
+        out.writeUTF16("mp3");
+        out.writeBytes("pfil");
+        out.writeInt(20);
+        out.writeUTF16("Old/tr.mp3");
+        out.writeBytes("tsng");
+        out.writeInt(4);
+        out.writeUTF16("Hi");
+        out.close();
+        SeratoFileEntry entry = new SeratoFileEntry("otrk", buf.toByteArray());
+        assertEquals("Old/tr.mp3", entry.getTrackName());
+
+        SeratoFileEntry relocated = entry.withTrackName("New folder/track.mp3");
+        assertEquals("New folder/track.mp3", relocated.getTrackName());
+        assertEquals(entry.getValue().length + 20, relocated.getValue().length);
+
+        // the rest is left as is
+        byte[] value = relocated.getValue();
+        assertTrue(Arrays.equals(Arrays.copyOfRange(entry.getValue(), 0, 14), Arrays.copyOfRange(value, 0, 14)));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(entry.getValue(), entry.getValue().length - 12, entry.getValue().length),
+                Arrays.copyOfRange(value, value.length - 12, value.length)));
+
+        // crate entries are relocated the same way
+        SeratoFileEntry crateEntry = new SeratoTrackEntryEncoder().createTrackEntry("Old/track.mp3");
+        assertTrue(Arrays.equals(encodeWithStream("New/track.mp3"), crateEntry.withTrackName("New/track.mp3").getValue()));
+    }
+
+}
@@ -1,9 +1,14 @@
 package com.seratosync;
 
 import com.seratosync.db.SeratoLibraryException;
+import com.seratosync.db.files.entries.SeratoFileEntries;
 import com.seratosync.filesystem.FileDirectoryUtils;
+import com.seratosync.filesystem.UnicodeNames;
 import junit.framework.TestCase;
 
+import java.util.Arrays;
+import java.util.Collections;
+
 /**
  * @author Roman Alekseenkov
  */
@@ -44,4 +49,29 @@ public class UniformFileNameTests extends TestCase {
         );
     }
 
+    public void testUnicodeNormalization() {
+        String composed = "Music/Beyonc\u00e9/Caf\u00e9.mp3";
+        String decomposed = "Music/Beyonce\u0301/Cafe\u0301.mp3";
+        String plain = "Music/Beyonce/Cafe.mp3";
+
+        assertSame(plain, UnicodeNames.key(plain));
+        assertSame(composed, UnicodeNames.key(composed));
+        assertEquals(composed, UnicodeNames.key(decomposed));
+        assertTrue(UnicodeNames.equivalent(composed, decomposed));
+        assertEquals(Arrays.asList(composed), UnicodeNames.getVariants(decomposed));
+        assertEquals(Arrays.asList(decomposed), UnicodeNames.getVariants(composed));
+
+        // a track written on windows is not added again from mac os, and the other way round
+        SeratoFileEntries entries = new SeratoFileEntries();
+        assertTrue(entries.addTracks(Collections.singletonList("C:\\" + composed.replace('/', '\\'))));
+        assertFalse(entries.addTracks(Collections.singletonList("/Volumes/Drive/" + decomposed)));
+        assertEquals(Collections.singleton(composed), entries.getTracks());
+
+        entries = new SeratoFileEntries();
+        assertTrue(entries.addTracks(Collections.singletonList("/Volumes/Drive/" + decomposed)));
+        assertFalse(entries.addTracks(Collections.singletonList("C:\\" + composed.replace('/', '\\'))));
+        assertTrue(entries.containsTrack(composed));
+        assertEquals(Collections.singleton(decomposed), entries.getTracks());
+    }
+
 }
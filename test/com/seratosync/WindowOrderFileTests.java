@@ -0,0 +1,53 @@
+package com.seratosync;
+
+import com.seratosync.actions.PruneSeratoDatabaseAction;
+import com.seratosync.db.SeratoLibraryException;
+import com.seratosync.db.files.SeratoWindowOrderFile;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class WindowOrderFileTests extends TestCase {
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("neworder", ".pref");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        file.delete();
+    }
+
+    public void testReadWrite() throws SeratoLibraryException, IOException {
+        SeratoWindowOrderFile order = new SeratoWindowOrderFile();
+        order.add("main");
+        order.add("main%%sub2");
+        order.add("main%%sub1");
+        order.add("main");
+        assertEquals(Arrays.asList("main", "main%%sub2", "main%%sub1"), order.getEntries());
+        assertTrue(order.isModified());
+        order.saveTo(file);
+
+        SeratoWindowOrderFile loaded = new SeratoWindowOrderFile();
+        loaded.loadFrom(file);
+        assertEquals(order.getEntries(), loaded.getEntries());
+        assertFalse(loaded.isModified());
+
+        // adding known crates doesn't change anything
+        loaded.add("main%%sub1");
+        assertFalse(loaded.isModified());
+
+        // reordering does
+        loaded.reorder(new PruneSeratoDatabaseAction.CrateFileNameAdvancedComparator("default ascending"));
+        assertEquals(Arrays.asList("main", "main%%sub1", "main%%sub2"), loaded.getEntries());
+        assertTrue(loaded.isModified());
+    }
+
+}
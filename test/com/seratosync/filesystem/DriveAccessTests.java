@@ -0,0 +1,65 @@
+package com.seratosync.filesystem;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+public class DriveAccessTests extends TestCase {
+
+    private final CountDownLatch dead = new CountDownLatch(1);
+
+    private final Callable<Boolean> hanging = new Callable<Boolean>() {
+        public Boolean call() throws InterruptedException {
+            dead.await();
+            return true;
+        }
+    };
+
+    private final Callable<Boolean> quick = new Callable<Boolean>() {
+        public Boolean call() {
+            return true;
+        }
+    };
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        dead.countDown();
+        DriveAccess.reset(DriveAccess.DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    private static boolean fails(DriveAccess access, Callable<Boolean> call) {
+        try {
+            access.call(call, "test");
+            return false;
+        } catch (DriveUnavailableException e) {
+            return true;
+        }
+    }
+
+    public void testCircuitBreaker() throws Exception {
+        DriveAccess.reset(50);
+        DriveAccess access = DriveAccess.forDrive(new Drive("/serato-sync-test-drive/"));
+
+        // a single slow call doesn't take the drive down
+        assertTrue(fails(access, hanging));
+        assertFalse(access.isTripped());
+        assertTrue(access.call(quick, "test"));
+
+        // several in a row do, and then nothing is called anymore
+        assertTrue(fails(access, hanging));
+        assertTrue(fails(access, hanging));
+        assertTrue(fails(access, hanging));
+        assertTrue(access.isTripped());
+        long start = System.currentTimeMillis();
+        assertTrue(fails(access, quick));
+        assertTrue(System.currentTimeMillis() - start < 50);
+
+        // until the next run
+        DriveAccess.reset(50);
+        assertFalse(access.isTripped());
+        assertTrue(access.call(quick, "test"));
+    }
+
+}
@@ -0,0 +1,52 @@
+package com.seratosync.filesystem;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class DriveResolutionTestsLinux extends TestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        List<Drive> drives = new ArrayList<Drive>();
+        String[] prefixes = new String[] {"/", "/media/usb", "/media/usb/nested", "/mnt/nas share/"};
+        for (String prefix : prefixes) {
+            drives.add(new Drive(prefix));
+        }
+        Drive.setDrives(drives);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        Drive.unsetDrives();
+    }
+
+    public void testDriveChecks() {
+        assertEquals(new Drive("/"), Drive.getDrive("/home/djuser/Music"));
+        assertEquals(new Drive("/"), Drive.getDrive("/media/usb2/Music"));
+        assertEquals(new Drive("/media/usb"), Drive.getDrive("/media/usb"));
+        assertEquals(new Drive("/media/usb"), Drive.getDrive("/media/usb/Music/Trance/"));
+        assertEquals(new Drive("/media/usb/nested"), Drive.getDrive("/media/usb/nested/Music"));
+        assertEquals(new Drive("/mnt/nas share"), Drive.getDrive("/mnt/nas share/Music"));
+        assertFalse(Drive.onSameDrive("/media/usb/Music", "/home/djuser/Music"));
+    }
+
+    public void testSeratoPaths() {
+        assertEquals("Music/track.mp3", FileDirectoryUtils.convertFromFileToSeratoFile("/media/usb/Music/track.mp3"));
+        assertEquals("Music/track.mp3", FileDirectoryUtils.convertFromFileToSeratoFile("/mnt/nas share/Music/track.mp3"));
+        assertEquals("home/djuser/Music/track.mp3", FileDirectoryUtils.convertFromFileToSeratoFile("/home/djuser/Music/track.mp3"));
+    }
+
+    public void testMountTable() {
+        assertEquals("/media/usb", MountTable.parseMountPoint("36 35 98:0 / /media/usb rw,noatime master:1 - vfat /dev/sdb1 rw"));
+        assertEquals("/mnt/nas share", MountTable.parseMountPoint("40 28 0:45 / /mnt/nas\\040share rw - cifs //nas/share rw"));
+        assertNull(MountTable.parseMountPoint("28 1 254:0 / / rw,relatime - ext4 /dev/vda rw"));
+        assertNull(MountTable.parseMountPoint("25 28 0:6 / /mnt/ram rw,relatime - tmpfs tmpfs rw"));
+        assertNull(MountTable.parseMountPoint("23 28 0:22 / /proc rw,relatime - proc proc rw"));
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.seratosync.filesystem;
+
+import com.seratosync.TempDirTestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class DuplicateFinderTests extends TempDirTestCase {
+
+    private ExecutorService executor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdown();
+        super.tearDown();
+    }
+
+    private String createFile(String name, int size, int seed, int changeAt) throws IOException {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        if (changeAt >= 0) {
+            data[changeAt]++;
+        }
+        return createFile(name, data).getAbsolutePath();
+    }
+
+    public void testFindDuplicates() throws Exception {
+        List<String> paths = new ArrayList<String>();
+        String a1 = createFile("a1.mp3", 10000, 1, -1);
+        String a2 = createFile("a2.mp3", 10000, 1, -1);
+        String a3 = createFile("a3.mp3", 10000, 1, -1);
+        paths.addAll(Arrays.asList(a1, a2, a3));
+
+        // same size, same beginning and end, differs in the middle
+        paths.add(createFile("b.mp3", 10000, 1, 5000));
+
+        // same size, different beginning
+        paths.add(createFile("c.mp3", 10000, 2, -1));
+
+        // small files are hashed completely right away
+        String d1 = createFile("d1.mp3", 100, 3, -1);
+        String d2 = createFile("d2.mp3", 100, 3, -1);
+        paths.addAll(Arrays.asList(d1, d2));
+
+        // unique size, and empty files
+        paths.add(createFile("e.mp3", 200, 3, -1));
+        paths.add(createFile("f1.mp3", 0, 0, -1));
+        paths.add(createFile("f2.mp3", 0, 0, -1));
+
+        DuplicateFinder finder = new DuplicateFinder(executor, 1024);
+        List<List<String>> groups = finder.findDuplicates(paths);
+        assertEquals(2, groups.size());
+        assertEquals(Arrays.asList(a1, a2, a3), groups.get(0));
+        assertEquals(Arrays.asList(d1, d2), groups.get(1));
+
+        // partial hashes of five files, then full hashes of four of them, and two small files
+        assertEquals(5 * 2048 + 4 * 10000 + 200, finder.getBytesRead());
+    }
+
+}
@@ -0,0 +1,76 @@
+package com.seratosync.filesystem;
+
+import com.seratosync.TempDirTestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class MediaSnifferTests extends TempDirTestCase {
+
+    private static final long TIMEOUT = 20000;
+
+    private static boolean sniff(String header) throws Exception {
+        byte[] data = header.getBytes("ISO-8859-1");
+        return MediaSniffer.hasMediaSignature(Arrays.copyOf(data, 16), data.length);
+    }
+
+    public void testSignatures() throws Exception {
+        assertTrue(sniff("ID3\u0004\u0000"));
+        assertTrue(sniff("\u00FF\u00FB\u0090d"));
+        assertTrue(sniff("RIFF$\u0000\u0000\u0000WAVEfmt "));
+        assertTrue(sniff("FORM\u0000\u0000\u0000\u0000AIFFCOMM"));
+        assertTrue(sniff("\u0000\u0000\u0000 ftypM4A "));
+        assertTrue(sniff("OggS\u0000\u0002"));
+        assertTrue(sniff("fLaC\u0000\u0000\u0000\u0010"));
+
+        assertFalse(sniff("<!DOCTYPE html><html>"));
+        assertFalse(sniff("RIFF$\u0000\u0000\u0000WEBPVP8 "));
+        assertFalse(sniff("ID"));
+        assertFalse(sniff(""));
+    }
+
+    public void testFilter() throws Exception {
+        File song = createFile("song.mp3", "ID3\u0004\u0000 tags and frames".getBytes("ISO-8859-1"));
+        File page = createFile("page.mp3", "<html>Not Found</html>".getBytes("ISO-8859-1"));
+        File video = createFile("clip.dv", "no signature known".getBytes("ISO-8859-1"));
+
+        MediaSniffer sniffer = new MediaSniffer(new File(dir, MediaSniffer.FILE_NAME));
+        assertEquals(Arrays.asList(song, video), sniffer.filter(Arrays.asList(song, page, video), TIMEOUT));
+
+        // verdict is kept while size and modification time are the same
+        long lastModified = page.lastModified();
+        createFile("page.mp3", "ID3\u0004\u0000 fixed download!!".getBytes("ISO-8859-1"));
+        page.setLastModified(lastModified);
+        assertEquals(Collections.<File>emptyList(), sniffer.filter(Collections.singletonList(page), TIMEOUT));
+
+        page.setLastModified(lastModified - 10000);
+        assertEquals(Collections.singletonList(page), sniffer.filter(Collections.singletonList(page), TIMEOUT));
+    }
+
+    public void testForgetFilesNotSeen() throws Exception {
+        File song = createFile("song.mp3", "ID3\u0004\u0000 tags and frames".getBytes("ISO-8859-1"));
+        File page = createFile("page.mp3", "<html>Not Found</html>".getBytes("ISO-8859-1"));
+        File verdicts = new File(dir, MediaSniffer.FILE_NAME);
+
+        MediaSniffer sniffer = new MediaSniffer(verdicts);
+        sniffer.filter(Arrays.asList(song, page), TIMEOUT);
+        sniffer.save();
+
+        // page is gone, so its verdict is not kept after the next run
+        long lastModified = page.lastModified();
+        page.delete();
+        sniffer = new MediaSniffer(verdicts);
+        sniffer.load();
+        sniffer.filter(Collections.singletonList(song), TIMEOUT);
+        sniffer.save();
+
+        // a file of the same size and modification time is read instead of taken from the previous verdict
+        page = createFile("page.mp3", "ID3\u0004\u0000 fixed download!!".getBytes("ISO-8859-1"));
+        page.setLastModified(lastModified);
+        sniffer = new MediaSniffer(verdicts);
+        sniffer.load();
+        assertEquals(Arrays.asList(song, page), sniffer.filter(Arrays.asList(song, page), TIMEOUT));
+    }
+
+}
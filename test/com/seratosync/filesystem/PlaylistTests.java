@@ -0,0 +1,56 @@
+package com.seratosync.filesystem;
+
+import com.seratosync.TempDirTestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+public class PlaylistTests extends TempDirTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        new File(dir, "Music/Sub").mkdirs();
+    }
+
+    private String path(String name) {
+        return dir.getAbsolutePath().replace('\\', '/') + "/" + name;
+    }
+
+    public void testM3u() throws Exception {
+        File playlist = createFile("set.m3u8", ("\uFEFF#EXTM3U\r\n#EXTINF:123,Artist - Title\r\nMusic/One.mp3\r\n\r\n"
+                + "Music\\Sub\\..\\Two.mp3\r\nhttp://radio.example.com/stream\r\n" + path("Music/Caf\u00E9.mp3") + "\r\n").getBytes("UTF-8"));
+        assertEquals(Arrays.asList(path("Music/One.mp3"), path("Music/Two.mp3"), path("Music/Caf\u00E9.mp3")), PlaylistReader.read(playlist));
+
+        // not UTF-8, read as a legacy encoding
+        playlist = createFile("old.m3u", "Music/Caf\u00E9.mp3\n".getBytes("windows-1252"));
+        assertEquals(Arrays.asList(path("Music/Caf\u00E9.mp3")), PlaylistReader.read(playlist));
+    }
+
+    public void testPls() throws Exception {
+        File playlist = createFile("set.pls", ("[playlist]\nNumberOfEntries=3\nFile2=Music/Two.mp3\nTitle2=Two\n"
+                + "File1=" + new File(dir, "Music/One.mp3").toURI() + "\nFile3=https://example.com/stream\nVersion=2\n").getBytes("UTF-8"));
+        assertEquals(Arrays.asList(path("Music/One.mp3"), path("Music/Two.mp3")), PlaylistReader.read(playlist));
+    }
+
+    public void testResolve() throws Exception {
+        createFile("Music/One.mp3", new byte[1]);
+        createFile("Music/Sub/Two.MP3", new byte[1]);
+
+        DirectoryListingCache listings = new DirectoryListingCache();
+        assertEquals(new File(path("Music/One.mp3")).getPath(), listings.resolve(path("Music/One.mp3")));
+        assertEquals(new File(path("Music/Sub/Two.MP3")).getPath(), listings.resolve(path("Music/Sub/two.mp3")));
+        assertNull(listings.resolve(path("Music/Three.mp3")));
+        assertNull(listings.resolve(path("Gone/Four.mp3")));
+
+        // every directory is listed once
+        List<String> more = Arrays.asList("Music/One.mp3", "Music/Three.mp3", "Music/Sub/Two.MP3");
+        for (String name : more) {
+            listings.resolve(path(name));
+        }
+        assertEquals(3, listings.getDirectoriesListed());
+        assertEquals(0, listings.getDirectoriesUnavailable());
+    }
+
+}
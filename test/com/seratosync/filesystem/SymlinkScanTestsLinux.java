@@ -0,0 +1,103 @@
+package com.seratosync.filesystem;
+
+import com.seratosync.TempDirTestCase;
+import com.seratosync.log.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+public class SymlinkScanTestsLinux extends TempDirTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = dir.getCanonicalFile();
+
+        // Music/A/one.mp3, Music/B/two.mp3, Outside/three.mp3
+        mkdirs("Music/A");
+        mkdirs("Music/B");
+        mkdirs("Outside");
+        new File(dir, "Music/A/one.mp3").createNewFile();
+        new File(dir, "Music/B/two.mp3").createNewFile();
+        new File(dir, "Outside/three.mp3").createNewFile();
+
+        // a duplicate, a loop, and two links to the same folder outside
+        link("../A", "Music/B/A again");
+        link("..", "Music/A/loop");
+        link("../Outside", "Music/Outside 1");
+        link("../Outside", "Music/Outside 2");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        MediaLibrary.setSymlinkPolicy(MediaLibrary.SYMLINKS_FOLLOW_ONCE);
+    }
+
+    private void mkdirs(String path) {
+        new File(dir, path).mkdirs();
+    }
+
+    private void link(String target, String path) throws IOException, InterruptedException {
+        assertEquals(0, Runtime.getRuntime().exec(new String[]{"ln", "-s", target, new File(dir, path).getPath()}).waitFor());
+    }
+
+    private MediaLibrary scan(String policy) {
+        MediaLibrary.setSymlinkPolicy(policy);
+        return MediaLibrary.readFrom(new File(dir, "Music").getPath(), Collections.<Pattern>emptyList());
+    }
+
+    public void testFollowOnce() {
+        MediaLibrary library = scan(MediaLibrary.SYMLINKS_FOLLOW_ONCE);
+        assertEquals(3, library.getTotalNumberOfTracks());
+        assertTrue(library.getChild("Outside 1") == null ^ library.getChild("Outside 2") == null);
+        assertNull(library.getChild("B").getChild("A again"));
+        assertEquals(3, library.getTotalNumberOfSkippedLinks());
+    }
+
+    public void testFollow() {
+        // everything is followed, except for the loop
+        MediaLibrary library = scan(MediaLibrary.SYMLINKS_FOLLOW);
+        assertEquals(5, library.getTotalNumberOfTracks());
+        assertNull(library.getChild("A").getChild("loop"));
+        assertEquals(2, library.getTotalNumberOfSkippedLinks());
+    }
+
+    public void testSkip() {
+        MediaLibrary library = scan(MediaLibrary.SYMLINKS_SKIP);
+        assertEquals(2, library.getTotalNumberOfTracks());
+        assertEquals(4, library.getTotalNumberOfSkippedLinks());
+    }
+
+    public void testFollowOnceFromCache() throws Exception {
+        // the cache logs, to the console
+        System.setProperty("java.awt.headless", "true");
+        Log.initGui();
+
+        // B is scanned anyway when the whole of Music is, but not when A is scanned on its own
+        assertTrue(new File(dir, "Music/A/loop").delete());
+        link("../B", "Music/A/B");
+        String music = new File(dir, "Music").getPath();
+        String a = new File(dir, "Music/A").getPath();
+        List<String> none = Collections.emptyList();
+        List<String> tracks = MediaLibrary.readFrom(a, Collections.<Pattern>emptyList()).getAllTracks();
+        assertTrue(tracks.contains(new File(dir, "Music/A/B/two.mp3").getPath()));
+
+        MediaLibraryCache cache = MediaLibraryCache.getInstance();
+        cache.clear();
+        try {
+            cache.plan(music, none);
+            cache.plan(a, none);
+            assertEquals(3, cache.readFrom(music, none).getTotalNumberOfTracks());
+            assertEquals(tracks, cache.readFrom(a, none).getAllTracks());
+            // and the scan of its own is kept
+            assertEquals(tracks, cache.readFrom(a, none).getAllTracks());
+        } finally {
+            cache.clear();
+        }
+    }
+
+}
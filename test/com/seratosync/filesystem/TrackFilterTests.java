@@ -0,0 +1,61 @@
+package com.seratosync.filesystem;
+
+import com.seratosync.TempDirTestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+public class TrackFilterTests extends TempDirTestCase {
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    private TrackFilter.Track createTrack(String relativePath, int size, long lastModified) throws IOException {
+        File file = createFile(relativePath.substring(relativePath.lastIndexOf('/') + 1), new byte[size]);
+        file.setLastModified(lastModified);
+        return new TrackFilter.Track(file.getPath(), relativePath);
+    }
+
+    public void testConditions() throws IOException {
+        long now = System.currentTimeMillis();
+        TrackFilter.Track edit = createTrack("House/Artist - Track (Club Edit).MP3", 3000, now - DAY);
+        TrackFilter.Track old = createTrack("House/Artist - Old Track.mp3", 1000, now - 30 * DAY);
+        TrackFilter.Track video = createTrack("Video/clip.mp4", 2 * 1024 * 1024, now - 2 * DAY);
+
+        TrackFilter byPath = TrackFilter.parse("path *edit*", now);
+        assertTrue(byPath.matches(edit));
+        assertFalse(byPath.matches(old));
+
+        TrackFilter byExtension = TrackFilter.parse("extension .MOV, mp4", now);
+        assertTrue(byExtension.matches(video));
+        assertFalse(byExtension.matches(edit));
+
+        TrackFilter recent = TrackFilter.parse("age < 7d", now);
+        assertTrue(recent.matches(edit));
+        assertTrue(recent.matches(video));
+        assertFalse(recent.matches(old));
+        assertTrue(TrackFilter.parse("age > 48h", now).matches(old));
+
+        assertTrue(TrackFilter.parse("size > 1mb", now).matches(video));
+        assertFalse(TrackFilter.parse("size > 1mb", now).matches(edit));
+        assertTrue(TrackFilter.parse("size < 2kb", now).matches(old));
+
+        // all conditions have to match
+        TrackFilter combined = TrackFilter.parse("path House/*; extension mp3; size > 2000b", now);
+        assertTrue(combined.matches(edit));
+        assertFalse(combined.matches(old));
+        assertFalse(combined.matches(video));
+    }
+
+    public void testMalformed() {
+        String[] definitions = {"", "path", "color red", "age 7d", "age < 7w", "size > big", "size > 10tb"};
+        for (String definition : definitions) {
+            try {
+                TrackFilter.parse(definition, 0);
+                fail(definition);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+}